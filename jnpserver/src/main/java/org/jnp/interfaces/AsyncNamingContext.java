@@ -0,0 +1,304 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.Context;
+import javax.naming.Name;
+
+/** An asynchronous facade over a naming Context. The lookup, list and bind
+ operations run on an Executor and return a Future of their result, whose
+ get throws an ExecutionException with the NamingException of a failed
+ operation as its cause. An operation given a deadline is cancelled if it
+ has not completed by then, so its Future throws a CancellationException.
+ Cancelling interrupts the thread of a running operation, but an RMI call
+ blocked in a socket read is not interruptible, so that thread stays busy
+ until the call returns or fails with the jnp.sotimeout of the context.
+
+ The default executor is a fixed pool of daemon threads shared by all the
+ contexts created without an executor, so a burst of operations queues for
+ the pool instead of blocking a thread per operation. The facade caps the
+ number of concurrent naming calls at the pool size, it does not free the
+ threads of calls blocked on an unresponsive server. Each operation runs
+ with the thread context class loader of the caller.
+
+ @version $Revision$
+ */
+public class AsyncNamingContext
+{
+   private static ExecutorService defaultExecutor;
+   private static ScheduledThreadPoolExecutor deadlines;
+
+   private final Context ctx;
+   private final Executor executor;
+
+   /**
+    * Create a facade that runs the operations on the default executor.
+    *
+    * @param ctx the context to call
+    */
+   public AsyncNamingContext(Context ctx)
+   {
+      this(ctx, getDefaultExecutor());
+   }
+
+   /**
+    * @param ctx the context to call
+    * @param executor the executor that runs the operations
+    */
+   public AsyncNamingContext(Context ctx, Executor executor)
+   {
+      if (ctx == null)
+         throw new IllegalArgumentException("Null context");
+      if (executor == null)
+         throw new IllegalArgumentException("Null executor");
+      this.ctx = ctx;
+      this.executor = executor;
+   }
+
+   public Context getContext()
+   {
+      return ctx;
+   }
+
+   public Future lookupAsync(String name)
+   {
+      return lookupAsync(name, 0);
+   }
+
+   /**
+    * @param name the name to look up
+    * @param timeout the deadline in ms after which the lookup is cancelled,
+    *    0 for none
+    * @return the future of the bound object
+    */
+   public Future lookupAsync(final String name, long timeout)
+   {
+      return submit(new Callable()
+      {
+         public Object call() throws Exception
+         {
+            return ctx.lookup(name);
+         }
+      }, timeout);
+   }
+
+   public Future lookupAsync(Name name)
+   {
+      return lookupAsync(name, 0);
+   }
+
+   public Future lookupAsync(final Name name, long timeout)
+   {
+      return submit(new Callable()
+      {
+         public Object call() throws Exception
+         {
+            return ctx.lookup(name);
+         }
+      }, timeout);
+   }
+
+   public Future listAsync(String name)
+   {
+      return listAsync(name, 0);
+   }
+
+   /**
+    * @param name the name of the context to list
+    * @param timeout the deadline in ms after which the list is cancelled,
+    *    0 for none
+    * @return the future of the NamingEnumeration of NameClassPairs
+    */
+   public Future listAsync(final String name, long timeout)
+   {
+      return submit(new Callable()
+      {
+         public Object call() throws Exception
+         {
+            return ctx.list(name);
+         }
+      }, timeout);
+   }
+
+   public Future listAsync(Name name)
+   {
+      return listAsync(name, 0);
+   }
+
+   public Future listAsync(final Name name, long timeout)
+   {
+      return submit(new Callable()
+      {
+         public Object call() throws Exception
+         {
+            return ctx.list(name);
+         }
+      }, timeout);
+   }
+
+   public Future bindAsync(String name, Object obj)
+   {
+      return bindAsync(name, obj, 0);
+   }
+
+   /**
+    * @param name the name to bind
+    * @param obj the object to bind
+    * @param timeout the deadline in ms after which the bind is cancelled,
+    *    0 for none. The bind may still be applied by the naming server.
+    * @return the future of the bind, whose result is null
+    */
+   public Future bindAsync(final String name, final Object obj, long timeout)
+   {
+      return submit(new Callable()
+      {
+         public Object call() throws Exception
+         {
+            ctx.bind(name, obj);
+            return null;
+         }
+      }, timeout);
+   }
+
+   public Future bindAsync(Name name, Object obj)
+   {
+      return bindAsync(name, obj, 0);
+   }
+
+   public Future bindAsync(final Name name, final Object obj, long timeout)
+   {
+      return submit(new Callable()
+      {
+         public Object call() throws Exception
+         {
+            ctx.bind(name, obj);
+            return null;
+         }
+      }, timeout);
+   }
+
+   // Private -------------------------------------------------------
+
+   private Future submit(final Callable operation, long timeout)
+   {
+      final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      final DeadlineTask task = new DeadlineTask(new Callable()
+      {
+         public Object call() throws Exception
+         {
+            Thread thread = Thread.currentThread();
+            ClassLoader old = thread.getContextClassLoader();
+            thread.setContextClassLoader(loader);
+            try
+            {
+               return operation.call();
+            }
+            finally
+            {
+               thread.setContextClassLoader(old);
+            }
+         }
+      });
+      if (timeout > 0)
+      {
+         task.setDeadline(getDeadlines().schedule(new Runnable()
+         {
+            public void run()
+            {
+               task.cancel(true);
+            }
+         }, timeout, TimeUnit.MILLISECONDS));
+      }
+      executor.execute(task);
+      return task;
+   }
+
+   /**
+    * An operation that cancels its deadline once it is done, removing it
+    * from the queue of the deadlines so it does not hold the operation until
+    * the timeout.
+    */
+   private static class DeadlineTask extends FutureTask
+   {
+      private volatile Future deadline;
+
+      DeadlineTask(Callable callable)
+      {
+         super(callable);
+      }
+
+      void setDeadline(Future deadline)
+      {
+         this.deadline = deadline;
+         // The operation may have completed before the deadline was set
+         if (isDone())
+            cancelDeadline(deadline);
+      }
+
+      protected void done()
+      {
+         Future f = deadline;
+         if (f != null)
+            cancelDeadline(f);
+      }
+   }
+
+   private static synchronized ExecutorService getDefaultExecutor()
+   {
+      if (defaultExecutor == null)
+      {
+         int threads = 4 * Runtime.getRuntime().availableProcessors();
+         defaultExecutor = Executors.newFixedThreadPool(threads,
+            new DaemonThreadFactory("AsyncNamingContext"));
+      }
+      return defaultExecutor;
+   }
+
+   private static synchronized ScheduledThreadPoolExecutor getDeadlines()
+   {
+      if (deadlines == null)
+      {
+         deadlines = new ScheduledThreadPoolExecutor(1,
+            new DaemonThreadFactory("AsyncNamingContext deadlines"));
+      }
+      return deadlines;
+   }
+
+   /**
+    * Cancel a deadline and remove it from the queue, which a
+    * ScheduledThreadPoolExecutor does not do on cancel.
+    */
+   private static void cancelDeadline(Future deadline)
+   {
+      deadline.cancel(false);
+      getDeadlines().remove((Runnable) deadline);
+   }
+}
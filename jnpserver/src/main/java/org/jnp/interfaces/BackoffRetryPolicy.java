@@ -0,0 +1,163 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/** The default RetryPolicy. It retries up to jnp.maxRetries - 1 times, with
+ exponentially growing delays with decorrelated jitter: every delay is
+ randomly chosen between the base delay and three times the previous delay,
+ capped at the maximum delay. A call is not retried beyond its deadline, or
+ once the retry budget is spent. Every call adds a fraction of a retry to the
+ budget, which holds at most 10 retries, so retries stay a bounded share of
+ the calls while a server is down. The contexts with the same settings share
+ one policy, and so one budget.
+
+ @version $Revision$
+ */
+public class BackoffRetryPolicy implements RetryPolicy
+{
+   /** The delay in ms before the first retry. Defaults to 10. */
+   public static final String JNP_RETRY_BASE_DELAY = "jnp.retryBaseDelay";
+   /** The maximum delay in ms before a retry. Defaults to 1000. */
+   public static final String JNP_RETRY_MAX_DELAY = "jnp.retryMaxDelay";
+   /** The time in ms after which a call is no longer retried. Defaults to
+    0, for none. */
+   public static final String JNP_RETRY_DEADLINE = "jnp.retryDeadline";
+   /** The retries added to the budget by every call. Defaults to 0.2. */
+   public static final String JNP_RETRY_BUDGET = "jnp.retryBudget";
+
+   static final long DEFAULT_BASE_DELAY = 10;
+   static final long DEFAULT_MAX_DELAY = 1000;
+   static final double DEFAULT_BUDGET = 0.2;
+   /** The maximum number of retries the budget holds */
+   static final int BUDGET_RESERVE = 10;
+
+   private static Logger log = Logger.getLogger(BackoffRetryPolicy.class);
+   /** The shared policies by their settings */
+   private static final HashMap policies = new HashMap();
+   private static final Random random = new Random();
+
+   protected int maxRetries = 0;
+   protected long baseDelay = DEFAULT_BASE_DELAY;
+   protected long maxDelay = DEFAULT_MAX_DELAY;
+   protected long deadline = 0;
+   /** The thousandths of a retry added to the budget by a call */
+   private long deposit = (long) (DEFAULT_BUDGET * 1000);
+   /** The budget in thousandths of a retry */
+   private final AtomicLong budget = new AtomicLong(BUDGET_RESERVE * 1000);
+
+   /**
+    * Get the policy shared by the environments with the same settings.
+    */
+   static RetryPolicy getPolicy(Hashtable env)
+   {
+      String key = env.get(NamingContext.JNP_MAX_RETRIES) + ";" + env.get(JNP_RETRY_BASE_DELAY)
+         + ";" + env.get(JNP_RETRY_MAX_DELAY) + ";" + env.get(JNP_RETRY_DEADLINE)
+         + ";" + env.get(JNP_RETRY_BUDGET);
+      synchronized (policies)
+      {
+         RetryPolicy policy = (RetryPolicy) policies.get(key);
+         if (policy == null)
+         {
+            policy = new BackoffRetryPolicy(env);
+            policies.put(key, policy);
+         }
+         return policy;
+      }
+   }
+
+   /** Creates a policy that does not retry */
+   public BackoffRetryPolicy()
+   {
+   }
+
+   public BackoffRetryPolicy(Hashtable env)
+   {
+      try
+      {
+         String value = (String) env.get(NamingContext.JNP_MAX_RETRIES);
+         if (value != null)
+            maxRetries = Math.max(Integer.parseInt(value) - 1, 0);
+         value = (String) env.get(JNP_RETRY_BASE_DELAY);
+         if (value != null)
+            baseDelay = Long.parseLong(value);
+         value = (String) env.get(JNP_RETRY_MAX_DELAY);
+         if (value != null)
+            maxDelay = Long.parseLong(value);
+         value = (String) env.get(JNP_RETRY_DEADLINE);
+         if (value != null)
+            deadline = Long.parseLong(value);
+         value = (String) env.get(JNP_RETRY_BUDGET);
+         if (value != null)
+            deposit = (long) (Double.parseDouble(value) * 1000);
+      }
+      catch (Exception e)
+      {
+         log.debug("Invalid retry settings, using defaults for the rest", e);
+      }
+   }
+
+   public void startCall()
+   {
+      if (maxRetries == 0)
+         return;
+      long max = BUDGET_RESERVE * 1000;
+      long current = budget.get();
+      while (current < max && budget.compareAndSet(current, Math.min(current + deposit, max)) == false)
+         current = budget.get();
+   }
+
+   public long getRetryDelay(int retries, long previousDelay, long elapsed)
+   {
+      if (retries >= maxRetries)
+         return -1;
+      long previous = previousDelay > 0 ? previousDelay : baseDelay;
+      long upper = Math.min(maxDelay, previous * 3);
+      long delay = Math.min(baseDelay, maxDelay);
+      if (upper > delay)
+         delay += (long) (random.nextDouble() * (upper - delay));
+      if (deadline > 0 && elapsed + delay > deadline)
+         return -1;
+
+      // Spend a retry from the budget
+      long current = budget.get();
+      while (current >= 1000)
+      {
+         if (budget.compareAndSet(current, current - 1000))
+            return delay;
+         current = budget.get();
+      }
+      return -1;
+   }
+
+   public String toString()
+   {
+      return "BackoffRetryPolicy[maxRetries=" + maxRetries + ", baseDelay=" + baseDelay
+         + ", maxDelay=" + maxDelay + ", deadline=" + deadline + ", budget=" + budget.get() / 1000.0 + ']';
+   }
+}
@@ -0,0 +1,683 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NamingException;
+
+import org.jboss.logging.Logger;
+
+/** The Naming proxy of the binary naming protocol, vended by the bootstrap
+ port of a server with a binary port in place of the RMI stub. All the
+ proxies of a server share one connection to it, over which the calls of
+ any number of threads are in flight at once. The connection is a TCP
+ connection to the binary port, or for a server on the same host, to the
+ unix domain socket of the server.
+
+ A call waits for its response for the timeout of the proxy, after which
+ the connection is dropped and the call fails with a RemoteException.
+
+ While the binary port cannot be connected to, the calls go to the RMI stub
+ of the server, and a new connection is attempted after RECONNECT_INTERVAL.
+
+ @see BinaryProtocol
+ @version $Revision$
+ */
+public class BinaryNaming implements Naming, Serializable
+{
+   private static final long serialVersionUID = 1L;
+   private static Logger log = Logger.getLogger(BinaryNaming.class);
+
+   /** The time in ms to connect to the binary port */
+   public static final int CONNECT_TIMEOUT = 5000;
+   /** The time in ms the RMI stub is used after a failed connect */
+   public static final long RECONNECT_INTERVAL = 10000;
+
+   /** The connection by host:port */
+   private static final ConcurrentHashMap connections = new ConcurrentHashMap();
+
+   private final String host;
+   private final int port;
+   /** The path of the unix domain socket, null for TCP */
+   private final String unixPath;
+   /** The RMI stub of the server, null for none */
+   private final Naming fallback;
+   private transient volatile long connectFailed;
+   /** The time in ms a call waits for its response, 0 for no limit */
+   private transient volatile int timeout;
+
+   /**
+    * @param host the host of the binary port
+    * @param port the binary port
+    * @param fallback the RMI stub used when the binary port cannot be
+    *    connected to, null for none
+    */
+   public BinaryNaming(String host, int port, Naming fallback)
+   {
+      this.host = host;
+      this.port = port;
+      this.unixPath = null;
+      this.fallback = fallback;
+   }
+
+   /**
+    * @param unixPath the path of the unix domain socket of the server
+    * @param fallback the Naming used when the socket cannot be connected
+    *    to, null for none
+    */
+   public BinaryNaming(String unixPath, Naming fallback)
+   {
+      this.host = null;
+      this.port = -1;
+      this.unixPath = unixPath;
+      this.fallback = fallback;
+   }
+
+   public String getHost()
+   {
+      return host;
+   }
+
+   public int getPort()
+   {
+      return port;
+   }
+
+   public String getUnixPath()
+   {
+      return unixPath;
+   }
+
+   public Naming getFallback()
+   {
+      return fallback;
+   }
+
+   public int getTimeout()
+   {
+      return timeout;
+   }
+
+   /**
+    * Set the time a call waits for its response. It also applies to the
+    * calls of the other proxies of the server that have no timeout, as the
+    * proxies share one connection.
+    *
+    * @param timeout the time in ms, 0 for no limit
+    */
+   public void setTimeout(int timeout)
+   {
+      this.timeout = timeout;
+   }
+
+   /**
+    * @return host:port, or unix:path for a unix domain socket
+    */
+   public String getKey()
+   {
+      return unixPath != null ? "unix:" + unixPath : host + ":" + port;
+   }
+
+   /**
+    * Connect to the server unless a connection is open or the fallback is
+    * in use.
+    *
+    * @throws ConnectException if there is no fallback and the server cannot
+    *    be connected to
+    */
+   public void connect() throws ConnectException
+   {
+      getConnection();
+   }
+
+   public void bind(Name name, Object obj, String className)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+      {
+         fallback.bind(name, obj, className);
+         return;
+      }
+      Request request = new Request(BinaryProtocol.BIND);
+      try
+      {
+         BinaryProtocol.writeName(request, name);
+         request.writeBoolean(className != null);
+         if (className != null)
+            request.writeUTF(className);
+         BinaryProtocol.writeValue(request, obj, null);
+      }
+      catch (IOException e)
+      {
+         throw new MarshalException("Failed to marshal the request", e);
+      }
+      c.call(request);
+   }
+
+   public void rebind(Name name, Object obj, String className)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+      {
+         fallback.rebind(name, obj, className);
+         return;
+      }
+      Request request = new Request(BinaryProtocol.REBIND);
+      try
+      {
+         BinaryProtocol.writeName(request, name);
+         request.writeBoolean(className != null);
+         if (className != null)
+            request.writeUTF(className);
+         BinaryProtocol.writeValue(request, obj, null);
+      }
+      catch (IOException e)
+      {
+         throw new MarshalException("Failed to marshal the request", e);
+      }
+      c.call(request);
+   }
+
+   public void unbind(Name name)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+      {
+         fallback.unbind(name);
+         return;
+      }
+      c.call(nameRequest(BinaryProtocol.UNBIND, name));
+   }
+
+   public Object lookup(Name name)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+         return fallback.lookup(name);
+      return c.call(nameRequest(BinaryProtocol.LOOKUP, name));
+   }
+
+   public Collection list(Name name)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+         return fallback.list(name);
+      return (Collection) c.call(nameRequest(BinaryProtocol.LIST, name));
+   }
+
+   public Collection listBindings(Name name)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+         return fallback.listBindings(name);
+      return (Collection) c.call(nameRequest(BinaryProtocol.LIST_BINDINGS, name));
+   }
+
+   public Context createSubcontext(Name name)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+         return fallback.createSubcontext(name);
+      return (Context) c.call(nameRequest(BinaryProtocol.CREATE_SUBCONTEXT, name));
+   }
+
+   public NamingResult[] lookupAll(Name[] names)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+         return fallback.lookupAll(names);
+      Request request = new Request(BinaryProtocol.LOOKUP_ALL);
+      try
+      {
+         request.writeInt(names.length);
+         for (int i = 0; i < names.length; i ++)
+            BinaryProtocol.writeName(request, names[i]);
+      }
+      catch (IOException e)
+      {
+         throw new MarshalException("Failed to marshal the request", e);
+      }
+      return (NamingResult[]) c.call(request);
+   }
+
+   public NamingResult[] batch(NamingOperation[] operations, boolean atomic)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+         return fallback.batch(operations, atomic);
+      Request request = new Request(BinaryProtocol.BATCH);
+      try
+      {
+         request.writeBoolean(atomic);
+         BinaryProtocol.writeValue(request, operations, null);
+      }
+      catch (IOException e)
+      {
+         throw new MarshalException("Failed to marshal the request", e);
+      }
+      return (NamingResult[]) c.call(request);
+   }
+
+   public long getVersion(Name name)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+         return fallback.getVersion(name);
+      return ((Long) c.call(nameRequest(BinaryProtocol.GET_VERSION, name))).longValue();
+   }
+
+   public NamingResult lookupVersioned(Name name)
+      throws NamingException, RemoteException
+   {
+      Connection c = getConnection();
+      if (c == null)
+         return fallback.lookupVersioned(name);
+      return (NamingResult) c.call(nameRequest(BinaryProtocol.LOOKUP_VERSIONED, name));
+   }
+
+   public boolean equals(Object obj)
+   {
+      if (obj == this)
+         return true;
+      if ((obj instanceof BinaryNaming) == false)
+         return false;
+      return getKey().equals(((BinaryNaming) obj).getKey());
+   }
+
+   public int hashCode()
+   {
+      return getKey().hashCode();
+   }
+
+   public String toString()
+   {
+      return "BinaryNaming[" + getKey() + ", fallback=" + fallback + ']';
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Get the shared connection to the server, connecting if there is none.
+    *
+    * @return the connection, null if the calls go to the fallback
+    * @throws ConnectException if the binary port cannot be connected to and
+    *    there is no fallback
+    */
+   private Connection getConnection() throws ConnectException
+   {
+      Connection c = openConnection();
+      if (c != null && timeout > 0)
+         c.timeout = timeout;
+      return c;
+   }
+
+   private Connection openConnection() throws ConnectException
+   {
+      String hostKey = getKey();
+      Connection c = (Connection) connections.get(hostKey);
+      if (c != null)
+         return c;
+      if (fallback != null && System.currentTimeMillis() - connectFailed < RECONNECT_INTERVAL)
+         return null;
+      synchronized (connections)
+      {
+         c = (Connection) connections.get(hostKey);
+         if (c != null)
+            return c;
+         try
+         {
+            if (unixPath != null)
+               c = new Connection(hostKey, UnixSockets.connect(unixPath));
+            else
+               c = new Connection(hostKey, host, port);
+            connections.put(hostKey, c);
+            return c;
+         }
+         catch (IOException e)
+         {
+            if (fallback != null)
+            {
+               log.debug("Failed to connect to " + hostKey + ", using " + fallback, e);
+               connectFailed = System.currentTimeMillis();
+               return null;
+            }
+            throw new ConnectException("Failed to connect to " + hostKey, e);
+         }
+      }
+   }
+
+   private static Request nameRequest(byte operation, Name name)
+      throws MarshalException
+   {
+      Request request = new Request(operation);
+      try
+      {
+         BinaryProtocol.writeName(request, name);
+      }
+      catch (IOException e)
+      {
+         throw new MarshalException("Failed to marshal the request", e);
+      }
+      return request;
+   }
+
+   /**
+    * A request frame, written after room for its length and request id.
+    */
+   private static class Request extends DataOutputStream
+   {
+      private final ByteArrayOutputStream bytes;
+
+      Request(byte operation)
+      {
+         this(new ByteArrayOutputStream(), operation);
+      }
+
+      private Request(ByteArrayOutputStream bytes, byte operation)
+      {
+         super(bytes);
+         this.bytes = bytes;
+         // The length and request id are filled in by toFrame
+         for (int i = 0; i < 8; i ++)
+            bytes.write(0);
+         bytes.write(operation);
+      }
+
+      /**
+       * @return the frame of the request
+       */
+      byte[] toFrame(int requestId)
+      {
+         byte[] frame = bytes.toByteArray();
+         putInt(frame, 0, frame.length - 4);
+         putInt(frame, 4, requestId);
+         return frame;
+      }
+
+      private static void putInt(byte[] b, int offset, int value)
+      {
+         b[offset] = (byte) (value >>> 24);
+         b[offset + 1] = (byte) (value >>> 16);
+         b[offset + 2] = (byte) (value >>> 8);
+         b[offset + 3] = (byte) value;
+      }
+   }
+
+   /**
+    * The connection to a binary port. Callers write their requests under the
+    * lock of the output and wait for the reader thread to hand over their
+    * responses.
+    */
+   private static class Connection implements Runnable
+   {
+      private final String hostKey;
+      /** The TCP socket, null for a unix domain socket */
+      private Socket socket;
+      /** The unix domain socket channel, null for TCP */
+      private SocketChannel channel;
+      private final DataOutputStream out;
+      private final DataInputStream in;
+      private final AtomicInteger requestIds = new AtomicInteger();
+      /** The Call in flight by request id */
+      private final ConcurrentHashMap calls = new ConcurrentHashMap();
+      private volatile IOException closed;
+      /** The time in ms a call waits for its response, 0 for no limit */
+      volatile int timeout;
+
+      Connection(String hostKey, String host, int port) throws IOException
+      {
+         this.hostKey = hostKey;
+         socket = new Socket();
+         try
+         {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         }
+         catch (IOException e)
+         {
+            socket.close();
+            throw e;
+         }
+         startReader();
+      }
+
+      Connection(String hostKey, SocketChannel channel)
+      {
+         this.hostKey = hostKey;
+         this.channel = channel;
+         out = new DataOutputStream(new BufferedOutputStream(UnixSockets.getOutputStream(channel)));
+         in = new DataInputStream(new BufferedInputStream(UnixSockets.getInputStream(channel)));
+         startReader();
+      }
+
+      private void startReader()
+      {
+         Thread t = new Thread(this, "BinaryNaming " + hostKey);
+         t.setDaemon(true);
+         t.start();
+      }
+
+      /**
+       * Send a request and wait for its response.
+       *
+       * @return the value of the response
+       */
+      Object call(Request request) throws NamingException, RemoteException
+      {
+         Call call = new Call();
+         Integer id = Integer.valueOf(requestIds.incrementAndGet());
+         byte[] frame = request.toFrame(id.intValue());
+         calls.put(id, call);
+         try
+         {
+            synchronized (out)
+            {
+               if (closed != null)
+                  throw closed;
+               out.write(frame);
+               out.flush();
+            }
+         }
+         catch (IOException e)
+         {
+            calls.remove(id);
+            close(e);
+            // The request did not reach the server
+            throw new ConnectException("Failed to send the request to " + hostKey, e);
+         }
+
+         int limit = timeout;
+         if (call.await(hostKey, limit) == false)
+         {
+            // The server stopped answering, fail all the calls in flight
+            calls.remove(id);
+            close(new SocketTimeoutException("No response from " + hostKey + " in " + limit + " ms"));
+            throw new RemoteException("Timed out waiting for the response from " + hostKey);
+         }
+         DataInputStream response = call.getResponse(hostKey);
+         try
+         {
+            byte status = response.readByte();
+            Object value = BinaryProtocol.readValue(response);
+            if (status == BinaryProtocol.STATUS_OK)
+               return value;
+            if (value instanceof NamingException)
+               throw (NamingException) value;
+            if (value instanceof RemoteException)
+               throw (RemoteException) value;
+            if (value instanceof RuntimeException)
+               throw (RuntimeException) value;
+            if (value instanceof Error)
+               throw (Error) value;
+            throw new ServerException("Server exception", (Exception) value);
+         }
+         catch (IOException e)
+         {
+            throw new RemoteException("Failed to read the response from " + hostKey, e);
+         }
+         catch (ClassNotFoundException e)
+         {
+            throw new RemoteException("Failed to read the response from " + hostKey, e);
+         }
+      }
+
+      public void run()
+      {
+         try
+         {
+            while (true)
+            {
+               int length = in.readInt();
+               if (length < 4 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+                  throw new IOException("Invalid frame length: " + length);
+               Integer id = Integer.valueOf(in.readInt());
+               byte[] response = new byte[length - 4];
+               in.readFully(response);
+               Call call = (Call) calls.remove(id);
+               if (call != null)
+                  call.complete(response);
+            }
+         }
+         catch (IOException e)
+         {
+            close(e);
+         }
+      }
+
+      private void close(IOException e)
+      {
+         synchronized (out)
+         {
+            if (closed != null)
+               return;
+            closed = e;
+         }
+         connections.remove(hostKey, this);
+         log.debug("Closed the connection to " + hostKey, e);
+         try
+         {
+            if (socket != null)
+               socket.close();
+            else
+               channel.close();
+         }
+         catch (IOException ignored)
+         {
+         }
+         Iterator iter = calls.values().iterator();
+         while (iter.hasNext())
+         {
+            Call call = (Call) iter.next();
+            iter.remove();
+            call.fail(e);
+         }
+      }
+
+   }
+
+   /**
+    * A call waiting for its response.
+    */
+   private static class Call
+   {
+      private final CountDownLatch done = new CountDownLatch(1);
+      private byte[] response;
+      private IOException failure;
+
+      void complete(byte[] response)
+      {
+         this.response = response;
+         done.countDown();
+      }
+
+      void fail(IOException failure)
+      {
+         this.failure = failure;
+         done.countDown();
+      }
+
+      /**
+       * @param timeout the time in ms to wait, 0 for no limit
+       * @return false if the call is not done after the timeout
+       */
+      boolean await(String hostKey, long timeout) throws RemoteException
+      {
+         try
+         {
+            if (timeout <= 0)
+            {
+               done.await();
+               return true;
+            }
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for " + hostKey, e);
+         }
+      }
+
+      DataInputStream getResponse(String hostKey) throws RemoteException
+      {
+         if (failure != null)
+            throw new RemoteException("Lost the connection to " + hostKey, failure);
+         return new DataInputStream(new ByteArrayInputStream(response));
+      }
+   }
+}
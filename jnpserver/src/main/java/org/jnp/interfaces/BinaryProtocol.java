@@ -0,0 +1,261 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.rmi.server.RemoteObject;
+
+import javax.naming.Name;
+import javax.naming.NamingException;
+
+/** The frames and encodings of the binary naming protocol spoken between
+ BinaryNaming and the binary listener of org.jnp.server.Main. Every frame is
+ length prefixed:
+ <pre>
+ request:  int length, int requestId, byte operation, payload
+ response: int length, int requestId, byte status, value
+ </pre>
+ where length counts the bytes after it. Responses carry the requestId of
+ their request, so a connection carries any number of calls in flight.
+
+ Names are encoded as their count of components followed by each component
+ as UTF. Null, String and Long values are encoded directly, other values and
+ the exceptions of failed calls with Java serialization.
+
+ @version $Revision$
+ */
+public final class BinaryProtocol
+{
+   /** The operations */
+   public static final byte LOOKUP = 1;
+   public static final byte BIND = 2;
+   public static final byte REBIND = 3;
+   public static final byte UNBIND = 4;
+   public static final byte LIST = 5;
+   public static final byte LIST_BINDINGS = 6;
+   public static final byte CREATE_SUBCONTEXT = 7;
+   public static final byte LOOKUP_ALL = 8;
+   public static final byte BATCH = 9;
+   public static final byte GET_VERSION = 10;
+   public static final byte LOOKUP_VERSIONED = 11;
+
+   /** The response status */
+   public static final byte STATUS_OK = 0;
+   public static final byte STATUS_EXCEPTION = 1;
+
+   /** The value tags */
+   private static final byte NULL = 0;
+   private static final byte STRING = 1;
+   private static final byte LONG = 2;
+   private static final byte OBJECT = 3;
+
+   /** The longest String encoded as UTF, whose limit is 65535 bytes */
+   private static final int MAX_UTF_CHARS = 65535 / 3;
+
+   /** The largest frame accepted */
+   public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+   private static final NamingParser parser = new NamingParser();
+
+   private BinaryProtocol()
+   {
+   }
+
+   public static void writeName(DataOutput out, Name name) throws IOException
+   {
+      int size = name.size();
+      out.writeShort(size);
+      for (int i = 0; i < size; i ++)
+         out.writeUTF(name.get(i));
+   }
+
+   public static Name readName(DataInput in) throws IOException
+   {
+      int size = in.readUnsignedShort();
+      try
+      {
+         Name name = parser.parse("");
+         for (int i = 0; i < size; i ++)
+            name.add(in.readUTF());
+         return name;
+      }
+      catch (NamingException e)
+      {
+         IOException ex = new IOException("Invalid name");
+         ex.initCause(e);
+         throw ex;
+      }
+   }
+
+   /**
+    * Read a length and check it against the bytes left, so corrupt or hostile
+    * input cannot make the reader allocate a large array.
+    *
+    * @param in the stream over the bytes of a frame or encoded value
+    * @param minSize the minimum number of bytes of each element
+    * @return the length
+    * @throws IOException if the length is negative or exceeds the bytes left
+    */
+   public static int readLength(DataInputStream in, int minSize) throws IOException
+   {
+      int length = in.readInt();
+      if (length < 0 || length > in.available() / minSize)
+         throw new IOException("Invalid length " + length + " with " + in.available() + " bytes left");
+      return length;
+   }
+
+   /**
+    * Write a value.
+    *
+    * @param out the output
+    * @param value the value
+    * @param replacement the Naming that replaces the local naming servers
+    *    referenced by the value, null for none
+    * @throws IOException for a failure to serialize the value
+    */
+   public static void writeValue(DataOutput out, Object value, Naming replacement)
+      throws IOException
+   {
+      if (value == null)
+      {
+         out.writeByte(NULL);
+      }
+      else if (value instanceof String && ((String) value).length() <= MAX_UTF_CHARS)
+      {
+         out.writeByte(STRING);
+         out.writeUTF((String) value);
+      }
+      else if (value instanceof Long)
+      {
+         out.writeByte(LONG);
+         out.writeLong(((Long) value).longValue());
+      }
+      else
+      {
+         ByteArrayOutputStream baos = new ByteArrayOutputStream();
+         ObjectOutputStream oos = new NamingObjectOutputStream(baos, replacement);
+         oos.writeObject(value);
+         oos.close();
+         out.writeByte(OBJECT);
+         out.writeInt(baos.size());
+         out.write(baos.toByteArray());
+      }
+   }
+
+   /**
+    * Read a value, resolving its classes with the thread context class
+    * loader.
+    *
+    * @param in the stream over the bytes of the frame
+    */
+   public static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException
+   {
+      byte tag = in.readByte();
+      switch (tag)
+      {
+         case NULL:
+            return null;
+         case STRING:
+            return in.readUTF();
+         case LONG:
+            return Long.valueOf(in.readLong());
+         case OBJECT:
+            byte[] bytes = new byte[readLength(in, 1)];
+            in.readFully(bytes);
+            ObjectInputStream ois = new ContextObjectInputStream(new ByteArrayInputStream(bytes));
+            try
+            {
+               return ois.readObject();
+            }
+            finally
+            {
+               ois.close();
+            }
+         default:
+            throw new IOException("Invalid value tag: " + tag);
+      }
+   }
+
+   /**
+    * Replaces the naming servers that are not remote stubs, such as the one
+    * of a NamingContext returned by createSubcontext, with the Naming of the
+    * connection.
+    */
+   private static class NamingObjectOutputStream extends ObjectOutputStream
+   {
+      private final Naming replacement;
+
+      NamingObjectOutputStream(OutputStream out, Naming replacement) throws IOException
+      {
+         super(out);
+         this.replacement = replacement;
+         if (replacement != null)
+            enableReplaceObject(true);
+      }
+
+      protected Object replaceObject(Object obj) throws IOException
+      {
+         if (obj instanceof Naming && (obj instanceof RemoteObject) == false
+            && (obj instanceof BinaryNaming) == false
+            && Proxy.isProxyClass(obj.getClass()) == false)
+            return replacement;
+         return obj;
+      }
+   }
+
+   private static class ContextObjectInputStream extends ObjectInputStream
+   {
+      ContextObjectInputStream(InputStream in) throws IOException
+      {
+         super(in);
+      }
+
+      protected Class resolveClass(ObjectStreamClass desc)
+         throws IOException, ClassNotFoundException
+      {
+         ClassLoader loader = Thread.currentThread().getContextClassLoader();
+         if (loader != null)
+         {
+            try
+            {
+               return Class.forName(desc.getName(), false, loader);
+            }
+            catch (ClassNotFoundException e)
+            {
+               // Fall back to the default resolution
+            }
+         }
+         return super.resolveClass(desc);
+      }
+   }
+}
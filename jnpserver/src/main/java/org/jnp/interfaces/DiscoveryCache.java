@@ -0,0 +1,113 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+
+/** The cache of the naming servers found by multicast discovery, keyed by
+ the discovery group and partition. Concurrent discoveries with the same key
+ share a single multicast, and its result is kept for a time to live.
+
+ @version $Revision$
+ */
+class DiscoveryCache
+{
+   /** The Entry of the last discovery by key */
+   private static final ConcurrentHashMap entries = new ConcurrentHashMap();
+   /** The discoveries in progress by key */
+   private static final SingleFlight discoveries = new SingleFlight();
+
+   /**
+    * Get the servers found by a discovery, running it if there is no current
+    * result. Only one thread runs a discovery, the others wait for its
+    * result.
+    *
+    * @param key the discovery group and partition
+    * @param discovery returns the host:port of the responders, the fastest
+    *    first
+    * @param ttl the time in ms to keep the result, 0 to not keep it
+    * @return the host:port of the responders
+    * @throws NamingException if the discovery failed
+    */
+   static String[] get(final String key, final Callable discovery, final long ttl)
+      throws NamingException
+   {
+      Entry entry = (Entry) entries.get(key);
+      if (entry != null && System.currentTimeMillis() < entry.expires)
+         return entry.servers;
+
+      try
+      {
+         return (String[]) discoveries.run(key, new Callable()
+         {
+            public Object call() throws Exception
+            {
+               String[] servers = (String[]) discovery.call();
+               if (ttl > 0 && servers.length > 0)
+                  entries.put(key, new Entry(servers, System.currentTimeMillis() + ttl));
+               return servers;
+            }
+         });
+      }
+      catch (ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+         if (cause instanceof NamingException)
+            throw (NamingException) cause;
+         NamingException ex = new CommunicationException(cause.getMessage());
+         ex.setRootCause(cause);
+         throw ex;
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         NamingException ex = new CommunicationException("Interrupted during discovery");
+         ex.setRootCause(e);
+         throw ex;
+      }
+   }
+
+   /**
+    * Drop the result of a discovery whose servers all failed.
+    */
+   static void remove(String key)
+   {
+      entries.remove(key);
+   }
+
+   private static class Entry
+   {
+      final String[] servers;
+      final long expires;
+
+      Entry(String[] servers, long expires)
+      {
+         this.servers = servers;
+         this.expires = expires;
+      }
+   }
+}
@@ -0,0 +1,242 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/** A ValueCodec for the common configuration values: String, String[],
+ the primitive wrappers and Properties without defaults whose keys and
+ values are all Strings. A value is written as a tag byte followed by its
+ content with the java.io.DataOutput encodings, without class descriptors.
+
+ @version $Revision$
+ */
+public class FastValueCodec implements ValueCodec
+{
+   private static final byte STRING = 1;
+   private static final byte STRING_ARRAY = 2;
+   private static final byte INTEGER = 3;
+   private static final byte LONG = 4;
+   private static final byte BOOLEAN = 5;
+   private static final byte SHORT = 6;
+   private static final byte BYTE = 7;
+   private static final byte CHARACTER = 8;
+   private static final byte FLOAT = 9;
+   private static final byte DOUBLE = 10;
+   private static final byte PROPERTIES = 11;
+
+   public boolean canEncode(Object value)
+   {
+      if (value == null)
+         return false;
+      Class type = value.getClass();
+      if (type == String.class || type == String[].class || type == Integer.class
+         || type == Long.class || type == Boolean.class || type == Short.class
+         || type == Byte.class || type == Character.class || type == Float.class
+         || type == Double.class)
+         return true;
+      if (type == Properties.class)
+         return isPlain((Properties) value);
+      return false;
+   }
+
+   public byte[] encode(Object value) throws IOException
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(baos);
+      Class type = value.getClass();
+      if (type == String.class)
+      {
+         out.writeByte(STRING);
+         writeString(out, (String) value);
+      }
+      else if (type == String[].class)
+      {
+         String[] strings = (String[]) value;
+         out.writeByte(STRING_ARRAY);
+         out.writeInt(strings.length);
+         for (int i = 0; i < strings.length; i ++)
+         {
+            out.writeBoolean(strings[i] != null);
+            if (strings[i] != null)
+               writeString(out, strings[i]);
+         }
+      }
+      else if (type == Integer.class)
+      {
+         out.writeByte(INTEGER);
+         out.writeInt(((Integer) value).intValue());
+      }
+      else if (type == Long.class)
+      {
+         out.writeByte(LONG);
+         out.writeLong(((Long) value).longValue());
+      }
+      else if (type == Boolean.class)
+      {
+         out.writeByte(BOOLEAN);
+         out.writeBoolean(((Boolean) value).booleanValue());
+      }
+      else if (type == Short.class)
+      {
+         out.writeByte(SHORT);
+         out.writeShort(((Short) value).shortValue());
+      }
+      else if (type == Byte.class)
+      {
+         out.writeByte(BYTE);
+         out.writeByte(((Byte) value).byteValue());
+      }
+      else if (type == Character.class)
+      {
+         out.writeByte(CHARACTER);
+         out.writeChar(((Character) value).charValue());
+      }
+      else if (type == Float.class)
+      {
+         out.writeByte(FLOAT);
+         out.writeFloat(((Float) value).floatValue());
+      }
+      else if (type == Double.class)
+      {
+         out.writeByte(DOUBLE);
+         out.writeDouble(((Double) value).doubleValue());
+      }
+      else if (type == Properties.class && isPlain((Properties) value))
+      {
+         Properties props = (Properties) value;
+         synchronized (props)
+         {
+            out.writeByte(PROPERTIES);
+            out.writeInt(props.size());
+            Iterator iter = props.entrySet().iterator();
+            while (iter.hasNext())
+            {
+               Map.Entry entry = (Map.Entry) iter.next();
+               writeString(out, (String) entry.getKey());
+               writeString(out, (String) entry.getValue());
+            }
+         }
+      }
+      else
+      {
+         throw new IOException("Cannot encode " + type.getName());
+      }
+      out.close();
+      return baos.toByteArray();
+   }
+
+   public Object decode(byte[] bytes) throws IOException
+   {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      byte tag = in.readByte();
+      switch (tag)
+      {
+         case STRING:
+            return readString(in);
+         case STRING_ARRAY:
+         {
+            // Each element takes at least its null flag
+            String[] strings = new String[BinaryProtocol.readLength(in, 1)];
+            for (int i = 0; i < strings.length; i ++)
+               strings[i] = in.readBoolean() ? readString(in) : null;
+            return strings;
+         }
+         case INTEGER:
+            return Integer.valueOf(in.readInt());
+         case LONG:
+            return Long.valueOf(in.readLong());
+         case BOOLEAN:
+            return Boolean.valueOf(in.readBoolean());
+         case SHORT:
+            return Short.valueOf(in.readShort());
+         case BYTE:
+            return Byte.valueOf(in.readByte());
+         case CHARACTER:
+            return Character.valueOf(in.readChar());
+         case FLOAT:
+            return Float.valueOf(in.readFloat());
+         case DOUBLE:
+            return Double.valueOf(in.readDouble());
+         case PROPERTIES:
+         {
+            Properties props = new Properties();
+            // Each entry takes at least the lengths of its key and value
+            int size = BinaryProtocol.readLength(in, 8);
+            for (int i = 0; i < size; i ++)
+               props.put(readString(in), readString(in));
+            return props;
+         }
+         default:
+            throw new IOException("Invalid value tag: " + tag);
+      }
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * @return true if the properties have no defaults and only String keys
+    *    and values
+    */
+   private static boolean isPlain(Properties props)
+   {
+      synchronized (props)
+      {
+         Iterator iter = props.entrySet().iterator();
+         while (iter.hasNext())
+         {
+            Map.Entry entry = (Map.Entry) iter.next();
+            if ((entry.getKey() instanceof String) == false
+               || (entry.getValue() instanceof String) == false)
+               return false;
+         }
+         // The defaults are only visible through propertyNames
+         int names = 0;
+         for (Enumeration e = props.propertyNames(); e.hasMoreElements(); e.nextElement())
+            names ++;
+         return names == props.size();
+      }
+   }
+
+   /** Write a String of any length, unlike DataOutput.writeUTF */
+   private static void writeString(DataOutputStream out, String s) throws IOException
+   {
+      byte[] utf = s.getBytes("UTF-8");
+      out.writeInt(utf.length);
+      out.write(utf);
+   }
+
+   private static String readString(DataInputStream in) throws IOException
+   {
+      byte[] utf = new byte[BinaryProtocol.readLength(in, 1)];
+      in.readFully(utf);
+      return new String(utf, "UTF-8");
+   }
+}
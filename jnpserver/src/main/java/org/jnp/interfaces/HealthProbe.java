@@ -0,0 +1,152 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/** The health probe protocol of the bootstrap port. A probe writes the
+ REQUEST bytes as soon as it is connected and reads a fixed RESPONSE_LENGTH
+ byte response:
+ <pre>
+ 'J' 'N' 'P' 'H'   magic
+ byte              protocol version
+ byte              status, STATUS_READY or STATUS_NOT_READY
+ int               the number of bindings in the root context, -1 if unknown
+ long              the uptime of the server in ms
+ </pre>
+ in network byte order, without Java serialization. Bootstrap clients never
+ write to the bootstrap port, so they are sent the naming server stub as
+ before.
+
+ @version $Revision$
+ */
+public class HealthProbe
+{
+   /** The protocol version */
+   public static final byte VERSION = 1;
+   /** The probe request */
+   public static final byte[] REQUEST = {'J', 'N', 'P', 'H', VERSION};
+   /** The length of the probe response */
+   public static final int RESPONSE_LENGTH = REQUEST.length + 1 + 4 + 8;
+   /** The server is accepting naming requests */
+   public static final byte STATUS_READY = 0;
+   /** The server is up but has no naming service */
+   public static final byte STATUS_NOT_READY = 1;
+
+   private final byte status;
+   private final int bindingCount;
+   private final long uptime;
+
+   /**
+    * Probe the bootstrap port of a server.
+    *
+    * @param host the host of the server
+    * @param port the bootstrap port of the server
+    * @param timeout the connect and read timeout in ms, 0 for none
+    * @return the health of the server
+    * @throws IOException if the server cannot be reached or does not answer
+    *    the probe
+    */
+   public static HealthProbe probe(String host, int port, int timeout)
+      throws IOException
+   {
+      Socket s = new Socket();
+      try
+      {
+         s.setSoTimeout(timeout);
+         s.setTcpNoDelay(true);
+         s.connect(new InetSocketAddress(host, port), timeout);
+         OutputStream out = s.getOutputStream();
+         out.write(REQUEST);
+         out.flush();
+         DataInputStream in = new DataInputStream(s.getInputStream());
+         byte[] magic = new byte[REQUEST.length];
+         in.readFully(magic);
+         for (int i = 0; i < magic.length; i ++)
+         {
+            if (magic[i] != REQUEST[i])
+               throw new IOException("Not a health probe response from " + host + ":" + port);
+         }
+         byte status = in.readByte();
+         int bindingCount = in.readInt();
+         long uptime = in.readLong();
+         return new HealthProbe(status, bindingCount, uptime);
+      }
+      finally
+      {
+         s.close();
+      }
+   }
+
+   public HealthProbe(byte status, int bindingCount, long uptime)
+   {
+      this.status = status;
+      this.bindingCount = bindingCount;
+      this.uptime = uptime;
+   }
+
+   public byte getStatus()
+   {
+      return status;
+   }
+
+   public boolean isReady()
+   {
+      return status == STATUS_READY;
+   }
+
+   public int getBindingCount()
+   {
+      return bindingCount;
+   }
+
+   public long getUptime()
+   {
+      return uptime;
+   }
+
+   /**
+    * @return the response bytes of this health
+    */
+   public byte[] toByteArray()
+   {
+      byte[] response = new byte[RESPONSE_LENGTH];
+      System.arraycopy(REQUEST, 0, response, 0, REQUEST.length);
+      int i = REQUEST.length;
+      response[i ++] = status;
+      for (int shift = 24; shift >= 0; shift -= 8)
+         response[i ++] = (byte) (bindingCount >>> shift);
+      for (int shift = 56; shift >= 0; shift -= 8)
+         response[i ++] = (byte) (uptime >>> shift);
+      return response;
+   }
+
+   public String toString()
+   {
+      return "HealthProbe[status=" + status + ", bindingCount=" + bindingCount
+         + ", uptime=" + uptime + ']';
+   }
+}
@@ -0,0 +1,222 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import javax.naming.Name;
+import javax.naming.NamingException;
+
+import org.jboss.logging.Logger;
+
+/** The client side cache of lookup results used by NamingContext for the
+ names under the prefixes configured by the jnp.cachePrefixes property. An
+ entry is used without asking the naming server until its time to live
+ expires, and is then revalidated against the naming server version of the
+ name. The least recently used entries are evicted beyond the maximum size.
+ Contexts with the same cache settings share one cache.
+
+ @version $Revision$
+ */
+class LookupCache
+{
+   private static Logger log = Logger.getLogger(LookupCache.class);
+
+   /** The default time to live of an entry in ms */
+   static final long DEFAULT_TTL = 30000;
+   /** The default maximum number of entries */
+   static final int DEFAULT_MAX_SIZE = 1000;
+
+   /** The caches by their settings */
+   private static final HashMap caches = new HashMap();
+
+   /** The name prefixes whose lookups are cached */
+   private final Name[] prefixes;
+   private final long ttl;
+   private final Map entries;
+
+   /**
+    * Get the cache for the settings of a naming environment.
+    *
+    * @param env the environment
+    * @return the cache, null if the environment does not enable caching
+    */
+   static LookupCache getCache(Hashtable env)
+   {
+      String prefixes = (String) env.get(NamingContext.JNP_CACHE_PREFIXES);
+      if (prefixes == null)
+         return null;
+      long ttl = DEFAULT_TTL;
+      int maxSize = DEFAULT_MAX_SIZE;
+      try
+      {
+         String value = (String) env.get(NamingContext.JNP_CACHE_TTL);
+         if (value != null)
+            ttl = Long.parseLong(value);
+         value = (String) env.get(NamingContext.JNP_CACHE_MAX_SIZE);
+         if (value != null)
+            maxSize = Integer.parseInt(value);
+      }
+      catch (Exception e)
+      {
+         log.debug("Invalid lookup cache settings, using defaults", e);
+      }
+      if (ttl <= 0 || maxSize <= 0)
+         return null;
+
+      String key = prefixes + ';' + ttl + ';' + maxSize;
+      synchronized (caches)
+      {
+         LookupCache cache = (LookupCache) caches.get(key);
+         if (cache == null)
+         {
+            try
+            {
+               cache = new LookupCache(prefixes, ttl, maxSize);
+            }
+            catch (NamingException e)
+            {
+               log.debug("Invalid jnp.cachePrefixes: " + prefixes, e);
+               return null;
+            }
+            caches.put(key, cache);
+         }
+         return cache;
+      }
+   }
+
+   private LookupCache(String prefixList, long ttl, final int maxSize)
+      throws NamingException
+   {
+      StringTokenizer tokenizer = new StringTokenizer(prefixList, ",");
+      prefixes = new Name[tokenizer.countTokens()];
+      NamingParser parser = new NamingParser();
+      for (int i = 0; i < prefixes.length; i ++)
+         prefixes[i] = parser.parse(tokenizer.nextToken().trim());
+      this.ttl = ttl;
+      this.entries = new LinkedHashMap(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(Map.Entry eldest)
+         {
+            return size() > maxSize;
+         }
+      };
+   }
+
+   /**
+    * @param name an absolute name
+    * @return true if lookups of name are cached
+    */
+   boolean accepts(Name name)
+   {
+      for (int i = 0; i < prefixes.length; i ++)
+      {
+         if (name.startsWith(prefixes[i]))
+            return true;
+      }
+      return false;
+   }
+
+   synchronized Entry get(Key key)
+   {
+      return (Entry) entries.get(key);
+   }
+
+   /**
+    * Cache a lookup result.
+    *
+    * @param key the server and name of the lookup
+    * @param value the result as returned by the naming server, so a
+    *    MarshalledValuePair is unmarshalled for each use
+    * @param version the version of the name before the lookup
+    */
+   synchronized void put(Key key, Object value, long version)
+   {
+      entries.put(key, new Entry(value, version, System.currentTimeMillis() + ttl));
+   }
+
+   synchronized void remove(Key key)
+   {
+      entries.remove(key);
+   }
+
+   /**
+    * Extend the time to live of an entry whose version was current.
+    */
+   void renew(Entry entry)
+   {
+      entry.expires = System.currentTimeMillis() + ttl;
+   }
+
+   /**
+    * The naming server and absolute name of a cached lookup.
+    */
+   static class Key
+   {
+      private final Naming server;
+      private final String name;
+
+      Key(Naming server, String name)
+      {
+         this.server = server;
+         this.name = name;
+      }
+
+      public int hashCode()
+      {
+         return server.hashCode() * 31 + name.hashCode();
+      }
+
+      public boolean equals(Object obj)
+      {
+         if ((obj instanceof Key) == false)
+            return false;
+         Key key = (Key) obj;
+         return name.equals(key.name) && server.equals(key.server);
+      }
+   }
+
+   static class Entry
+   {
+      final Object value;
+      final long version;
+      volatile long expires;
+
+      Entry(Object value, long version, long expires)
+      {
+         this.value = value;
+         this.version = version;
+         this.expires = expires;
+      }
+
+      boolean isExpired()
+      {
+         return System.currentTimeMillis() > expires;
+      }
+   }
+}
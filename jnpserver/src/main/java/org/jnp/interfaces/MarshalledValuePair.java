@@ -22,13 +22,30 @@
 package org.jnp.interfaces;
 
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.rmi.MarshalledObject;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** An encapsulation of a JNDI binding as both the raw object and its
  MarshalledObject form. When accessed in the same VM as the JNP server,
  the raw object reference is used to avoid deserialization.
 
+ The MarshalledObject is only created when the pair is serialized, such as
+ when it is sent to a remote naming server, or when a lookup does not use
+ the reference, and is then kept. A value bound in the same VM as the
+ server is therefore not serialized until it is needed, and a value that
+ changes after the bind is marshalled in its state at that time.
+
+ A pair created with a ValueCodec that can encode the value is serialized
+ with the encoded bytes and the class name of the codec instead of the
+ MarshalledObject, and get decodes the bytes with that codec.
+
+ Each pair has a random version, so that a client can tell that a lookup
+ returned the same binding as an earlier one, and an immutable flag the
+ binder sets for values that lookups may share.
+
  @author Scott.Stark@jboss.org
  @version $Revision$
  */
@@ -38,8 +55,19 @@ public class MarshalledValuePair implements Serializable
    private static final long serialVersionUID = -3403843515711139134L;
 
    private static boolean enableCallByReference = true;
+   /** The source of the versions, random so versions of other VMs differ */
+   private static final AtomicLong versions = new AtomicLong(new Random().nextLong());
    public MarshalledObject marshalledValue;
    public transient Object value;
+   /** The class name of the ValueCodec of bytes */
+   public String codecName;
+   /** The value encoded by the codecName ValueCodec */
+   public byte[] bytes;
+   private transient ValueCodec codec;
+   /** The version of this binding, 0 for a pair of an older release */
+   public long version;
+   /** True if the value may be shared by the lookups of a client */
+   public boolean immutable;
 
    /** Get the lookp call by reference flag.
     * @return false if all lookups are unmarshalled using the caller's TCL,
@@ -60,16 +88,60 @@ public class MarshalledValuePair implements Serializable
 
    /** Creates a new instance of MashalledValuePair */
    public MarshalledValuePair(Object value) throws IOException
+   {
+      this(value, null);
+   }
+
+   /** Creates a new instance of MashalledValuePair
+    * @param value the value
+    * @param codec the codec that encodes the value when the pair is
+    *    serialized, null to serialize it in a MarshalledObject
+    */
+   public MarshalledValuePair(Object value, ValueCodec codec) throws IOException
    {
       this.value = value;
-      this.marshalledValue = new MarshalledObject(value);
+      long v = versions.incrementAndGet();
+      this.version = v != 0 ? v : versions.incrementAndGet();
+      if( codec != null && codec.canEncode(value) )
+         this.codec = codec;
    }
 
    public Object get() throws ClassNotFoundException, IOException
    {
       Object theValue = enableCallByReference ? value : null;
-      if( theValue == null && marshalledValue != null )
-         theValue = marshalledValue.get();
+      if( theValue == null && bytes != null )
+      {
+         theValue = ValueCodecs.getCodec(codecName).decode(bytes);
+      }
+      else if( theValue == null )
+      {
+         MarshalledObject mo = getMarshalledValue();
+         if( mo != null )
+            theValue = mo.get();
+      }
       return theValue;
    }
+
+   /** Get the marshalled form of the value, creating it on first use.
+    * @return the MarshalledObject of the value, null for a null value
+    * @throws IOException if the value cannot be serialized
+    */
+   public synchronized MarshalledObject getMarshalledValue() throws IOException
+   {
+      if( marshalledValue == null && value != null )
+         marshalledValue = new MarshalledObject(value);
+      return marshalledValue;
+   }
+
+   private synchronized void writeObject(ObjectOutputStream out) throws IOException
+   {
+      if( codec != null && bytes == null )
+      {
+         bytes = codec.encode(value);
+         codecName = codec.getClass().getName();
+      }
+      if( bytes == null )
+         getMarshalledValue();
+      out.defaultWriteObject();
+   }
 }
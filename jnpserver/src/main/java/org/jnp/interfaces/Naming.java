@@ -61,4 +61,50 @@ public interface Naming
       
    public Context createSubcontext(Name name)
       throws NamingException, RemoteException;
+
+   /**
+    * Look up a batch of names in a single call.
+    *
+    * @param names the names to look up
+    * @return the result of each name, in the order of names. The failure of
+    *    a name is returned as its result rather than thrown.
+    */
+   public NamingResult[] lookupAll(Name[] names)
+      throws NamingException, RemoteException;
+
+   /**
+    * Apply a batch of bind, rebind and unbind operations in a single call.
+    *
+    * @param operations the operations, applied in order
+    * @param atomic if true, a failed operation undoes the operations before
+    *    it and no further operations are applied. Other callers may still
+    *    see the intermediate updates.
+    * @return the result of each operation, in the order of operations. A
+    *    failed operation, or one that was not applied or undone in an
+    *    atomic batch, has a NamingException as its result.
+    */
+   public NamingResult[] batch(NamingOperation[] operations, boolean atomic)
+      throws NamingException, RemoteException;
+
+   /**
+    * Get the version of the contexts on the path of a name. The version
+    * changes whenever the binding of name, or the binding of one of the
+    * contexts on its path may have changed, so a client can check that a
+    * value it looked up earlier is still current.
+    *
+    * @param name the name of a binding
+    * @return the version, -1 if the name cannot be versioned
+    */
+   public long getVersion(Name name)
+      throws NamingException, RemoteException;
+
+   /**
+    * Look up a name along with its version, read before the value so the
+    * value is at least as current as the version.
+    *
+    * @param name the name to look up
+    * @return the value of the name and its version, as by getVersion
+    */
+   public NamingResult lookupVersioned(Name name)
+      throws NamingException, RemoteException;
 }
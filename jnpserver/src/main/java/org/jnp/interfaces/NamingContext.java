@@ -30,12 +30,16 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.InetSocketAddress;
 import java.rmi.ConnectException;
 import java.rmi.MarshalledObject;
 import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -44,6 +48,17 @@ import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.StringTokenizer;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.naming.Binding;
 import javax.naming.CannotProceedException;
 import javax.naming.CommunicationException;
@@ -53,10 +68,12 @@ import javax.naming.InitialContext;
 import javax.naming.InvalidNameException;
 import javax.naming.LinkRef;
 import javax.naming.Name;
+import javax.naming.NameNotFoundException;
 import javax.naming.NameParser;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.NotContextException;
+import javax.naming.OperationNotSupportedException;
 import javax.naming.ContextNotEmptyException;
 import javax.naming.Reference;
 import javax.naming.Referenceable;
@@ -64,6 +81,7 @@ import javax.naming.ServiceUnavailableException;
 import javax.naming.event.EventContext;
 import javax.naming.event.NamingListener;
 import javax.naming.spi.NamingManager;
+import javax.naming.spi.ObjectFactory;
 import javax.naming.spi.ResolveResult;
 import javax.net.SocketFactory;
 
@@ -125,6 +143,17 @@ public class NamingContext
     * The time in MS to wait for a discovery query response
     */
    public static final String JNP_DISCOVERY_TIMEOUT = "jnp.discoveryTimeout";
+   /**
+    * The time in ms to keep collecting discovery responses after the first
+    * one. The first responder that can be connected to is used.
+    */
+   public static final String JNP_DISCOVERY_WINDOW = "jnp.discoveryWindow";
+   /**
+    * The time in ms the servers found by a discovery are reused by the
+    * contexts with the same discovery group and partition, 0 to discover
+    * every time.
+    */
+   public static final String JNP_DISCOVERY_CACHE_TTL = "jnp.discoveryCacheTTL";
    /**
     * An internal property added by parseNameForScheme if the input name uses a
     * url prefix that was removed during cannonicalization. This is needed to
@@ -139,11 +168,147 @@ public class NamingContext
    public static final String JNP_USE_RELATIVE_NAME = "jnp.useRelativeName";
    /**
     * An integer that controls the number of connection retry attempts will
-    * be made on the initial connection to the naming server. This only applies
+    * be made on the calls to the naming server. This only applies
     * to ConnectException failures. A value <= 1 means that only one attempt
-    * will be made.
+    * will be made. See BackoffRetryPolicy for the delays between attempts.
     */ 
    public static final String JNP_MAX_RETRIES = "jnp.maxRetries";
+   /**
+    * The class name of the RetryPolicy that decides if calls to the naming
+    * server that failed with a ConnectException are retried. Defaults to
+    * BackoffRetryPolicy.
+    */
+   public static final String JNP_RETRY_POLICY = "jnp.retryPolicy";
+   /**
+    * A comma separated list of absolute name prefixes whose lookup results
+    * are cached by the client. Caching is disabled if this is not set, an
+    * empty prefix caches every lookup. Contexts and federated results are
+    * never cached.
+    */
+   public static final String JNP_CACHE_PREFIXES = "jnp.cachePrefixes";
+   /**
+    * The time in MS a cached lookup result is used before it is revalidated
+    * against the naming server version of the name. Defaults to 30000.
+    */
+   public static final String JNP_CACHE_TTL = "jnp.cacheTTL";
+   /**
+    * The maximum number of cached lookup results, the least recently used
+    * results are evicted beyond it. Defaults to 1000.
+    */
+   public static final String JNP_CACHE_MAX_SIZE = "jnp.cacheMaxSize";
+   /**
+    * The time to live in ms of the lookups that failed with a
+    * NameNotFoundException. A failed lookup is rethrown without asking the
+    * naming server again until it expires, or until the context binds the
+    * name. Unset or 0 disables the negative cache.
+    */
+   public static final String JNP_NEGATIVE_CACHE_TTL = "jnp.negativeCacheTTL";
+   /**
+    * The maximum number of cached failed lookups, the least recently used
+    * are evicted beyond it. Defaults to 1000.
+    */
+   public static final String JNP_NEGATIVE_CACHE_MAX_SIZE = "jnp.negativeCacheMaxSize";
+   /**
+    * The time in ms a naming server stub is kept for new contexts after it
+    * was last used. Defaults to 10 minutes.
+    */
+   public static final String JNP_SERVER_IDLE_TIMEOUT = "jnp.serverIdleTimeout";
+   /**
+    * A flag indicating if the Context.PROVIDER_URL servers are connected
+    * concurrently, using the first that returns its stub, instead of one
+    * after another. Defaults to false.
+    */
+   public static final String JNP_PARALLEL_CONNECT = "jnp.parallelConnect";
+   /**
+    * The path of the unix domain socket of a naming server on the same host,
+    * set with the UnixSocketPath of org.jnp.server.Main. It is tried before
+    * the Context.PROVIDER_URL servers, which are used if it cannot be
+    * connected to. Unix domain sockets need JDK 16 or later.
+    */
+   public static final String JNP_UNIX_SOCKET = "jnp.unixSocket";
+   /**
+    * The comma separated class names of the ValueCodecs of the bound values.
+    * A value that is not a Reference or Referenceable is encoded by the
+    * first codec that can encode it instead of being serialized in a
+    * MarshalledObject. The codec classes must be available wherever the
+    * value is looked up. Defaults to none.
+    */
+   public static final String JNP_VALUE_CODECS = "jnp.valueCodecs";
+   /**
+    * A flag that marks the values bound through a context immutable, so the
+    * value caches of the clients that look them up share one instance.
+    * Defaults to false.
+    */
+   public static final String JNP_IMMUTABLE_VALUES = "jnp.immutableValues";
+   /**
+    * A flag enabling the client cache of the values unmarshalled by lookups.
+    * A value is unmarshalled again only when the naming server returns
+    * another binding of its name or the thread context ClassLoader differs.
+    * Only the values marked with JNP_IMMUTABLE_VALUES, those under the
+    * JNP_VALUE_CACHE_PREFIXES and those of the JNP_VALUE_CACHE_TYPES are
+    * cached, as all lookups of them return the same instance. Defaults to
+    * false.
+    */
+   public static final String JNP_VALUE_CACHE = "jnp.valueCache";
+   /**
+    * A comma separated list of absolute name prefixes whose values the value
+    * cache shares even if they are not marked immutable.
+    */
+   public static final String JNP_VALUE_CACHE_PREFIXES = "jnp.valueCachePrefixes";
+   /**
+    * A comma separated list of class names whose instances, including those
+    * of their subclasses, the value cache shares. String and the primitive
+    * wrappers are always shared.
+    */
+   public static final String JNP_VALUE_CACHE_TYPES = "jnp.valueCacheTypes";
+   /**
+    * The maximum number of values the value cache keeps per thread context
+    * ClassLoader, the least recently used are evicted beyond it. Defaults to
+    * 1000.
+    */
+   public static final String JNP_VALUE_CACHE_MAX_SIZE = "jnp.valueCacheMaxSize";
+   /**
+    * A flag enabling the cache of the ObjectFactory instances that resolve
+    * the References returned by lookups, per factory class name and thread
+    * context ClassLoader. The objects of References marked with a
+    * JNP_SHAREABLE RefAddr are cached as well. References whose factory
+    * cannot be loaded from the thread context ClassLoader, and those without
+    * a factory, are resolved by NamingManager as without the cache, but an
+    * ObjectFactoryBuilder set on NamingManager is bypassed for the others.
+    * Defaults to false.
+    */
+   public static final String JNP_OBJECT_FACTORY_CACHE = "jnp.objectFactoryCache";
+   /**
+    * The address type of a RefAddr with the content "true" that marks a
+    * Reference whose resolved object may be shared by all the lookups of it
+    * with the same thread context ClassLoader, when the JNP_OBJECT_FACTORY_CACHE
+    * is enabled.
+    */
+   public static final String JNP_SHAREABLE = "jnp.shareable";
+   /**
+    * The number of failures of a naming server within the JNP_BREAKER_WINDOW
+    * after which its circuit breaker opens. Until a background probe of the
+    * server succeeds, contexts do not connect to it but fail at once or move
+    * on to the next provider url. Defaults to 0, which disables the circuit
+    * breaker.
+    */
+   public static final String JNP_BREAKER_THRESHOLD = "jnp.breakerThreshold";
+   /**
+    * The time in ms within which the failures of a server are counted
+    * against its circuit breaker. Defaults to 10000.
+    */
+   public static final String JNP_BREAKER_WINDOW = "jnp.breakerWindow";
+   /**
+    * The time in ms between the probes of a server whose circuit breaker is
+    * open. Defaults to 5000.
+    */
+   public static final String JNP_BREAKER_OPEN_TIME = "jnp.breakerOpenTime";
+   /**
+    * The delay in ms before the parallel connect to a server starts if the
+    * connect to the previous server has neither succeeded nor failed.
+    * Defaults to 100.
+    */
+   public static final String JNP_CONNECT_STAGGER = "jnp.connectStagger";
 
    /**
     * The default discovery multicast information
@@ -151,6 +316,9 @@ public class NamingContext
    public final static String DEFAULT_DISCOVERY_GROUP_ADDRESS = "230.0.0.4";
    public final static int DEFAULT_DISCOVERY_GROUP_PORT = 1102;
    public final static int DEFAULT_DISCOVERY_TIMEOUT = 5000;
+   public final static long DEFAULT_DISCOVERY_WINDOW = 100;
+   public final static long DEFAULT_DISCOVERY_CACHE_TTL = 30000;
+   public final static long DEFAULT_CONNECT_STAGGER = 100;
 
    /**
     * An obsolete constant replaced by the JNP_MAX_RETRIES value
@@ -163,6 +331,18 @@ public class NamingContext
 
    // Static --------------------------------------------------------
    
+   /** The shared TimedSocketFactory instances by their timeouts */
+   private static final ConcurrentHashMap timedSocketFactories = new ConcurrentHashMap();
+   /** The socket factory classes by class loader, then by class name */
+   private static final WeakHashMap socketFactoryClasses = new WeakHashMap();
+   /** The threads of the parallel connects */
+   private static ExecutorService connectExecutor;
+   /** The calls to the naming server retried after a ConnectException */
+   private static final AtomicLong retries = new AtomicLong();
+   /** The calls to the naming server that failed with a ConnectException
+    the RetryPolicy did not retry */
+   private static final AtomicLong retriesDenied = new AtomicLong();
+
    public static Hashtable haServers = new Hashtable();
 
    public static void setHANamingServerForPartition(String partitionName, Naming haServer)
@@ -184,50 +364,85 @@ public class NamingContext
 
    // Attributes ----------------------------------------------------
    Naming naming;
+   /** The host:port of the registered server of naming, to remove after a failure */
+   transient volatile String hostKey;
    Hashtable env;
    Name prefix;
+   /** True for an immutable handle that a naming server shares between callers */
+   transient boolean handle;
+   /** True if env is shared with another context and must be copied before it is modified */
+   transient volatile boolean envShared;
+   /** The lookup caches configured by env, valid if lookupCacheChecked is set */
+   private transient LookupCache lookupCache;
+   private transient NegativeLookupCache negativeCache;
+   private transient ValueCache valueCache;
+   private transient boolean lookupCacheChecked;
+   /** The retry policy configured by env, created on first use */
+   private transient RetryPolicy retryPolicy;
 
    NameParser parser = new NamingParser();
    
    // Static --------------------------------------------------------
    
-   // Cache of naming server stubs
-   // This is a critical optimization in the case where new InitialContext
-   // is performed often. The server stub will be shared between all those
-   // calls, which will improve performance.
-   // Weak references are used so if no contexts use a particular server
-   // it will be removed from the cache.
-   static HashMap cachedServers = new HashMap();
-
-   static void addServer(String name, Naming server)
+   /**
+    * Get the stub of a naming server from the ServerRegistry, obtaining it
+    * from the bootstrap port of the server if it is not registered.
+    * This is a critical optimization in the case where new InitialContext
+    * is performed often. The server stub will be shared between all those
+    * calls, which will improve performance.
+    */
+   static Naming getServer(final String host, final int port, final Hashtable serverEnv)
+      throws NamingException
    {
-      // Add server to map
-      synchronized (NamingContext.class)
+      // Check the registry for a host:port entry
+      final String hostKey = host + ":" + port;
+      Callable bootstrap = new Callable()
       {
-         cachedServers.put(name, new WeakReference(server));
-      }
+         public Object call() throws Exception
+         {
+            return bootstrapServer(host, port, serverEnv);
+         }
+      };
+      return ServerRegistry.get(hostKey, bootstrap, serverEnv);
    }
 
-   static Naming getServer(String host, int port, Hashtable serverEnv)
-      throws NamingException
+   /**
+    * Get the Naming of the unix domain socket of a server on this host.
+    *
+    * @return the Naming, null if the socket cannot be connected to
+    */
+   static Naming getUnixServer(final String path, Hashtable serverEnv)
    {
-      // Check the server cache for a host:port entry
-      String hostKey = host + ":" + port;
-      WeakReference ref = (WeakReference) cachedServers.get(hostKey);
-      Naming server;
-      if (ref != null)
+      final String hostKey = "unix:" + path;
+      final int timeout = getSoTimeout(serverEnv);
+      Callable connect = new Callable()
       {
-         server = (Naming) ref.get();
-         if (server != null)
+         public Object call() throws Exception
          {
-            // JBAS-4622. Ensure the env for the request has the
-            // hostKey so we can remove the cache entry if there is a failure
-            serverEnv.put("hostKey", hostKey);
+            BinaryNaming server = new BinaryNaming(path, null);
+            server.setTimeout(timeout);
+            server.connect();
             return server;
          }
+      };
+      try
+      {
+         return ServerRegistry.get(hostKey, connect, serverEnv);
+      }
+      catch (NamingException e)
+      {
+         log.debug("Failed to connect to " + hostKey, e);
+         return null;
       }
+   }
 
-      // Server not found; add it to cache
+   /**
+    * Obtain the stub of a naming server from its bootstrap port.
+    */
+   private static Naming bootstrapServer(String host, int port, Hashtable serverEnv)
+      throws NamingException
+   {
+      String hostKey = host + ":" + port;
       try
       {
          SocketFactory factory = loadSocketFactory(serverEnv);
@@ -256,15 +471,16 @@ public class NamingContext
          BufferedInputStream bis = new BufferedInputStream(s.getInputStream());
          ObjectInputStream in = new ObjectInputStream(bis);
          MarshalledObject stub = (MarshalledObject) in.readObject();
-         server = (Naming) stub.get();
+         Naming server = (Naming) stub.get();
          s.close();
-
-         // Add it to cache
-         addServer(hostKey, server);
-         serverEnv.put("hostKey", hostKey);
-
+         if (server instanceof BinaryNaming)
+            ((BinaryNaming) server).setTimeout(getSoTimeout(serverEnv));
          return server;
       }
+      catch (NamingException e)
+      {
+         throw e;
+      }
       catch (IOException e)
       {
          NamingException ex = new CommunicationException("Failed to retrieve stub from server " + hostKey);
@@ -279,10 +495,20 @@ public class NamingContext
       }
    }
 
+   /**
+    * @return the TimedSocketFactory.JNP_SO_TIMEOUT of env, 0 if it is not set
+    */
+   static int getSoTimeout(Hashtable env)
+   {
+      return (int) ServerRegistry.getLong(env, TimedSocketFactory.JNP_SO_TIMEOUT, 0);
+   }
+
    /**
     * Create a SocketFactory based on the JNP_SOCKET_FACTORY property in the
     * given env. If JNP_SOCKET_FACTORY is not specified default to the
-    * TimedSocketFactory.
+    * TimedSocketFactory. TimedSocketFactory instances are shared by the
+    * environments with the same timeouts, the classes of other factories
+    * are cached by class loader.
     */
    static SocketFactory loadSocketFactory(Hashtable serverEnv)
       throws ClassNotFoundException, IllegalAccessException,
@@ -295,7 +521,14 @@ public class NamingContext
       if (socketFactoryName == null ||
          socketFactoryName.equals(TimedSocketFactory.class.getName()))
       {
-         factory = new TimedSocketFactory(serverEnv);
+         String key = serverEnv.get(TimedSocketFactory.JNP_TIMEOUT) + ";"
+            + serverEnv.get(TimedSocketFactory.JNP_SO_TIMEOUT);
+         factory = (SocketFactory) timedSocketFactories.get(key);
+         if (factory == null)
+         {
+            factory = new TimedSocketFactory(serverEnv);
+            timedSocketFactories.putIfAbsent(key, factory);
+         }
          return factory;
       }
 
@@ -303,7 +536,7 @@ public class NamingContext
        Hashtable and if not found use the default ctor.
        */
       ClassLoader loader = Thread.currentThread().getContextClassLoader();
-      Class factoryClass = loader.loadClass(socketFactoryName);
+      Class factoryClass = loadSocketFactoryClass(loader, socketFactoryName);
       try
       {
          Class[] ctorSig = {Hashtable.class};
@@ -319,7 +552,30 @@ public class NamingContext
       return factory;
    }
 
-   static void removeServer(Hashtable serverEnv)
+   private static Class loadSocketFactoryClass(ClassLoader loader, String name)
+      throws ClassNotFoundException
+   {
+      synchronized (socketFactoryClasses)
+      {
+         HashMap classes = (HashMap) socketFactoryClasses.get(loader);
+         if (classes == null)
+         {
+            classes = new HashMap();
+            socketFactoryClasses.put(loader, classes);
+         }
+         // The class is held weakly so it does not keep its loader alive
+         WeakReference ref = (WeakReference) classes.get(name);
+         Class factoryClass = ref != null ? (Class) ref.get() : null;
+         if (factoryClass == null)
+         {
+            factoryClass = loader.loadClass(name);
+            classes.put(name, new WeakReference(factoryClass));
+         }
+         return factoryClass;
+      }
+   }
+
+   void removeServer(Hashtable serverEnv)
    {
       String host = "localhost";
       int port = 1099;
@@ -359,11 +615,8 @@ public class NamingContext
                   }
                }
 
-               // Remove server from map
-               synchronized (NamingContext.class)
-               {
-                  cachedServers.remove(host + ":" + port);
-               }
+               // Remove server from the registry
+               ServerRegistry.remove(host + ":" + port);
             }
             catch (NamingException ignored)
             {
@@ -372,14 +625,10 @@ public class NamingContext
       }
       
       // JBAS-4622. Always do this.
-      Object hostKey = serverEnv.remove("hostKey");
-      if (hostKey != null)
-      {
-         synchronized (NamingContext.class)
-         {
-            cachedServers.remove(hostKey);
-         }
-      }
+      String failedKey = hostKey;
+      hostKey = null;
+      if (failedKey != null)
+         ServerRegistry.failed(failedKey);
    }
 
    /**
@@ -447,6 +696,94 @@ public class NamingContext
       localServer = server;
    }
 
+   /**
+    * @return the number of calls to the naming server that were retried
+    *    after a ConnectException
+    */
+   public static long getRetryCount()
+   {
+      return retries.get();
+   }
+
+   /**
+    * @return the number of calls to the naming server that failed with a
+    *    ConnectException the RetryPolicy did not retry
+    */
+   public static long getRetryDeniedCount()
+   {
+      return retriesDenied.get();
+   }
+
+   /**
+    * @return the number of lookups answered by the negative lookup cache
+    */
+   public static long getNegativeCacheHits()
+   {
+      return NegativeLookupCache.hits.get();
+   }
+
+   /**
+    * @return the number of lookups checked against the negative lookup cache
+    *    that were passed to the naming server
+    */
+   public static long getNegativeCacheMisses()
+   {
+      return NegativeLookupCache.misses.get();
+   }
+
+   /**
+    * @return the number of lookups whose value was found in the value cache
+    */
+   public static long getValueCacheHits()
+   {
+      return ValueCache.hits.get();
+   }
+
+   /**
+    * @return the number of lookups checked against the value cache that
+    *    unmarshalled their value
+    */
+   public static long getValueCacheMisses()
+   {
+      return ValueCache.misses.get();
+   }
+
+   /**
+    * @return the number of Reference lookups whose ObjectFactory was found
+    *    in the object factory cache
+    */
+   public static long getObjectFactoryCacheHits()
+   {
+      return ObjectFactoryCache.factoryHits.get();
+   }
+
+   /**
+    * @return the number of ObjectFactory instances the object factory cache
+    *    created
+    */
+   public static long getObjectFactoryCacheMisses()
+   {
+      return ObjectFactoryCache.factoryMisses.get();
+   }
+
+   /**
+    * @return the number of shareable Reference lookups whose object was
+    *    found in the object factory cache
+    */
+   public static long getSharedObjectHits()
+   {
+      return ObjectFactoryCache.objectHits.get();
+   }
+
+   /**
+    * @return the number of shareable Reference lookups resolved by their
+    *    ObjectFactory
+    */
+   public static long getSharedObjectMisses()
+   {
+      return ObjectFactoryCache.objectMisses.get();
+   }
+
    // Constructors --------------------------------------------------
    public NamingContext(Hashtable e, Name baseName, Naming server)
       throws NamingException
@@ -464,6 +801,38 @@ public class NamingContext
       this.naming = server;
    }
 
+   /**
+    * Create a context that shares env with another context. The env is
+    * copied before either context modifies it.
+    */
+   private NamingContext(Name baseName, Naming server, Hashtable sharedEnv)
+   {
+      this.prefix = baseName;
+      this.env = sharedEnv;
+      this.envShared = true;
+      this.naming = server;
+   }
+
+   /**
+    * Create an immutable handle of a context. A naming server can return the
+    * same handle for every in-VM lookup of the context, a NamingContext that
+    * obtains a handle gives its caller a new context that shares the
+    * caller's environment instead.
+    *
+    * @param baseName the name of the context
+    * @param server the naming server the context resolves names against
+    * @return the handle
+    * @throws NamingException for any error
+    */
+   public static NamingContext createHandle(Name baseName, Naming server)
+      throws NamingException
+   {
+      NamingContext ctx = new NamingContext(null, baseName, server);
+      ctx.handle = true;
+      ctx.envShared = true;
+      return ctx;
+   }
+
    // Public --------------------------------------------------------
    public Naming getNaming()
    {
@@ -507,30 +876,24 @@ public class NamingContext
             if( obj != null )
                className = obj.getClass().getName();
             // Normal object - serialize using a MarshalledValuePair
-            obj = new MarshalledValuePair(obj);
+            obj = createPair(obj, refEnv);
          }
          else
          {
             className = ((Reference) obj).getClassName();
          }
-         try
-         {
-            naming.rebind(getAbsoluteName(name), obj, className);
-         }
-         catch (RemoteException re)
+         final Name n = getAbsoluteName(name);
+         final Object value = obj;
+         final String valueClassName = className;
+         invoke(new NamingCall()
          {
-            // Check for JBAS-4574.
-            if (handleStaleNamingStub(re, refEnv))
+            public Object call(Naming server) throws NamingException, IOException
             {
-               // try again with new naming stub                  
-               naming.rebind(getAbsoluteName(name), obj, className);
+               server.rebind(n, value, valueClassName);
+               return null;
             }
-            else
-            {
-               // Not JBAS-4574. Throw exception and let outer logic handle it.
-               throw re;
-            }            
-         }
+         }, refEnv);
+         invalidateLookup(n, refEnv);
       }
       catch (CannotProceedException cpe)
       {
@@ -580,32 +943,24 @@ public class NamingContext
                className = obj.getClass().getName();
 
             // Normal object - serialize using a MarshalledValuePair
-            obj = new MarshalledValuePair(obj);
+            obj = createPair(obj, refEnv);
          }
          else
          {
             className = ((Reference) obj).getClassName();
          }
-         name = getAbsoluteName(name);
-         
-         try
-         {
-            naming.bind(name, obj, className);
-         }
-         catch (RemoteException re)
+         final Name n = getAbsoluteName(name);
+         final Object value = obj;
+         final String valueClassName = className;
+         invoke(new NamingCall()
          {
-            // Check for JBAS-4574.
-            if (handleStaleNamingStub(re, refEnv))
+            public Object call(Naming server) throws NamingException, IOException
             {
-               // try again with new naming stub                  
-               naming.bind(name, obj, className);
+               server.bind(n, value, valueClassName);
+               return null;
             }
-            else
-            {
-               // Not JBAS-4574. Throw exception and let outer logic handle it.
-               throw re;
-            }            
-         }
+         }, refEnv);
+         invalidateLookup(n, refEnv);
       }
       catch (CannotProceedException cpe)
       {
@@ -640,134 +995,70 @@ public class NamingContext
 
       // Empty?
       if (name.isEmpty())
-         return new NamingContext(refEnv, prefix, naming);
+      {
+         NamingContext ctx = new NamingContext(prefix, naming, shareEnv(refEnv));
+         ctx.hostKey = hostKey;
+         return ctx;
+      }
 
       try
       {
-         int maxTries = 1;
-         try
-         {
-            String n = (String) refEnv.get(JNP_MAX_RETRIES);
-            if( n != null )
-               maxTries = Integer.parseInt(n);
-            if( maxTries <= 0 )
-               maxTries = 1;
-         }
-         catch(Exception e)
+         final Name n = getAbsoluteName(name);
+         LookupCache cache = getLookupCache(refEnv);
+         NegativeLookupCache negativeCache = getNegativeCache(refEnv);
+         LookupCache.Key key = null;
+         LookupCache.Key negativeKey = null;
+         long version = -1;
+         if (cache != null && cache.accepts(n))
          {
-            log.debug("Failed to get JNP_MAX_RETRIES, using 1", e);
-         }
-         Name n = getAbsoluteName(name);
-         Object res = null;
-         boolean trace = log.isTraceEnabled();
-         for (int i = 0; i < maxTries; i++)
-         {
-            try
-            {
-               try
-               {
-                  res = naming.lookup(n);
-               }
-               catch (RemoteException re)
-               {
-                  // Check for JBAS-4574.
-                  if (handleStaleNamingStub(re, refEnv))
-                  {
-                     // try again with new naming stub                  
-                     res = naming.lookup(n);
-                  }
-                  else
-                  {
-                     // Not JBAS-4574. Throw exception and let outer logic handle it.
-                     throw re;
-                  }
-               }
-               // If we got here, we succeeded, so break the loop
-               break;
-            }
-            catch (ConnectException ce)
+            key = new LookupCache.Key(naming, n.toString());
+            LookupCache.Entry entry = cache.get(key);
+            if (entry != null)
             {
-               int retries = maxTries - i - 1;
-               if( trace )
-                  log.trace("Connect failed, retry count: "+retries, ce);
-               // We may overload server so sleep and retry
-               if (retries > 0)
-               {
-                  try
-                  {
-                     Thread.sleep(1);
-                  }
-                  catch (InterruptedException ignored)
-                  {
-                  }
-                  continue;
-               }
-               // Throw the exception to flush the bad server
-               throw ce;
+               // A cached pair is unmarshalled again for every caller
+               if (entry.isExpired() == false || revalidate(cache, key, entry, n))
+                  return resolveLookup(entry.value, name, n, refEnv);
             }
          }
-         if (res instanceof MarshalledValuePair)
+         if (negativeCache != null)
          {
-            MarshalledValuePair mvp = (MarshalledValuePair) res;
-            Object storedObj = mvp.get();
-            return getObjectInstanceWrapFailure(storedObj, name, refEnv);
+            negativeKey = new LookupCache.Key(naming, n.toString());
+            NameNotFoundException nnfe = negativeCache.check(negativeKey);
+            if (nnfe != null)
+               throw nnfe;
          }
-         else if (res instanceof MarshalledObject)
-         {
-            MarshalledObject mo = (MarshalledObject) res;
-            return mo.get();
-         }
-         else if (res instanceof Context)
-         {
-            // Add env
-            Enumeration keys = refEnv.keys();
-            while (keys.hasMoreElements())
-            {
-               String key = (String) keys.nextElement();
-               ((Context) res).addToEnvironment(key, refEnv.get(key));
-            }
-            return res;
-         }
-         else if (res instanceof ResolveResult)
+         Object res;
+         try
          {
-            // Dereference partial result
-            ResolveResult rr = (ResolveResult) res;
-            Object resolveRes = rr.getResolvedObj();
-            Object context;
-            Object instanceID;
-
-            if (resolveRes instanceof LinkRef)
+            if (key != null)
             {
-               context = resolveLink(resolveRes, null);
-               instanceID = ((LinkRef) resolveRes).getLinkName();
+               NamingResult result = lookupVersioned(n, refEnv);
+               res = result.getValue();
+               version = result.getVersion();
             }
             else
             {
-               context = getObjectInstanceWrapFailure(resolveRes, name, refEnv);
-               instanceID = context;
-            }
-
-            if ((context instanceof Context) == false)
-            {
-               throw new NotContextException(instanceID + " is not a Context");
+               res = invoke(new NamingCall()
+               {
+                  public Object call(Naming server) throws NamingException, IOException
+                  {
+                     return server.lookup(n);
+                  }
+               }, refEnv);
             }
-            Context ncontext = (Context) context;
-            return ncontext.lookup(rr.getRemainingName());
          }
-         else if (res instanceof LinkRef)
+         catch (NameNotFoundException nnfe)
          {
-            // Dereference link
-            res = resolveLink(res, refEnv);
+            if (negativeKey != null)
+               negativeCache.put(negativeKey, nnfe);
+            throw nnfe;
          }
-         else if (res instanceof Reference)
+         if (key != null && (res instanceof Context || res instanceof ResolveResult
+            || res instanceof MarshalledObject) == false)
          {
-            // Dereference object
-            res = getObjectInstanceWrapFailure(res, name, refEnv);
-            if (res instanceof LinkRef)
-               res = resolveLink(res, refEnv);
+            cache.put(key, res, version);
          }
-
-         return res;
+         return resolveLookup(res, name, n, refEnv);
       }
       catch (CannotProceedException cpe)
       {
@@ -791,50 +1082,317 @@ public class NamingContext
       }
    }
 
-   public void unbind(String name)
+   /**
+    * Look up a batch of names with a single call to the naming server. Names
+    * that carry the url of another naming server are looked up one at a time,
+    * as are all names if the naming server does not support lookupAll.
+    *
+    * @param names the names to look up
+    * @return the result of each name, in the order of names
+    * @throws NamingException if the naming server could not be reached
+    */
+   public NamingResult[] lookupAll(String[] names)
       throws NamingException
    {
-      unbind(getNameParser(name).parse(name));
+      Name[] parsed = new Name[names.length];
+      for (int i = 0; i < names.length; i ++)
+         parsed[i] = getNameParser(names[i]).parse(names[i]);
+      return lookupAll(parsed);
    }
 
-
-   public void unbind(Name name)
+   public NamingResult[] lookupAll(Name[] names)
       throws NamingException
    {
-      Hashtable refEnv = getEnv(name);
+      Hashtable refEnv = getEnv(parser.parse(""));
       checkRef(refEnv);
-      Name parsedName = (Name) refEnv.get(JNP_PARSED_NAME);
-      if (parsedName != null)
-         name = parsedName;
 
-      try
+      NamingResult[] results = new NamingResult[names.length];
+      // The names sent to the server, and their index in names
+      Name[] remoteNames = new Name[names.length];
+      Name[] lookupNames = new Name[names.length];
+      int[] indexes = new int[names.length];
+      int count = 0;
+      Hashtable nameEnv = new Hashtable();
+      for (int i = 0; i < names.length; i ++)
       {
-         try
+         Name name = names[i];
+         String serverInfo = parseNameForScheme(name, nameEnv);
+         Name parsedName = (Name) nameEnv.remove(JNP_PARSED_NAME);
+         if (parsedName != null)
+            name = parsedName;
+         if (serverInfo != null || name.isEmpty())
+         {
+            results[i] = lookupResult(names[i]);
+         }
+         else
          {
-            naming.unbind(getAbsoluteName(name));
+            remoteNames[count] = getAbsoluteName(name);
+            lookupNames[count] = name;
+            indexes[count] = i;
+            count ++;
          }
-         catch (RemoteException re)
+      }
+      if (count == 0)
+         return results;
+      if (count < names.length)
+      {
+         Name[] tmp = new Name[count];
+         System.arraycopy(remoteNames, 0, tmp, 0, count);
+         remoteNames = tmp;
+      }
+
+      NamingResult[] remoteResults;
+      try
+      {
+         final Name[] remoteLookupNames = remoteNames;
+         remoteResults = (NamingResult[]) invoke(new NamingCall()
          {
-            // Check for JBAS-4574.
-            if (handleStaleNamingStub(re, refEnv))
+            public Object call(Naming server) throws NamingException, IOException
             {
-               // try again with new naming stub                  
-               naming.unbind(getAbsoluteName(name));
+               return server.lookupAll(remoteLookupNames);
             }
-            else
-            {
-               // Not JBAS-4574. Throw exception and let outer logic handle it.
-               throw re;
-            }             
-         }
+         }, refEnv);
       }
-      catch (CannotProceedException cpe)
+      catch (UnmarshalException e)
       {
-         cpe.setEnvironment(refEnv);
-         Context cctx = NamingManager.getContinuationContext(cpe);
-         cctx.unbind(cpe.getRemainingName());
+         // A naming server without lookupAll
+         remoteResults = null;
       }
-      catch (IOException e)
+      catch (ServerException e)
+      {
+         if ((e.getCause() instanceof UnmarshalException) == false)
+         {
+            naming = null;
+            removeServer(refEnv);
+            NamingException ex = new CommunicationException();
+            ex.setRootCause(e);
+            throw ex;
+         }
+         remoteResults = null;
+      }
+      catch (IOException e)
+      {
+         naming = null;
+         removeServer(refEnv);
+         NamingException ex = new CommunicationException();
+         ex.setRootCause(e);
+         throw ex;
+      }
+      if (remoteResults == null)
+      {
+         if( log.isTraceEnabled() )
+            log.trace("Naming server does not support lookupAll, looking up names individually");
+         for (int i = 0; i < count; i ++)
+            results[indexes[i]] = lookupResult(names[indexes[i]]);
+         return results;
+      }
+
+      for (int i = 0; i < count; i ++)
+      {
+         NamingResult result = remoteResults[i];
+         try
+         {
+            Object res = result.getValue();
+            results[indexes[i]] = new NamingResult(resolveLookup(res, lookupNames[i],
+               remoteNames[i], refEnv));
+         }
+         catch (CannotProceedException cpe)
+         {
+            try
+            {
+               cpe.setEnvironment(refEnv);
+               Context cctx = NamingManager.getContinuationContext(cpe);
+               results[indexes[i]] = new NamingResult(cctx.lookup(cpe.getRemainingName()));
+            }
+            catch (NamingException e)
+            {
+               results[indexes[i]] = new NamingResult(e);
+            }
+         }
+         catch (NamingException e)
+         {
+            results[indexes[i]] = new NamingResult(e);
+         }
+         catch (Exception e)
+         {
+            NamingException ex = new CommunicationException();
+            ex.setRootCause(e);
+            results[indexes[i]] = new NamingResult(ex);
+         }
+      }
+      return results;
+   }
+
+   /**
+    * Apply a batch of bind, rebind and unbind operations with a single call
+    * to the naming server. The objects of the operations are stored as
+    * bind and rebind store them, and their class names are determined here.
+    * A batch that is not atomic is applied one operation at a time if the
+    * naming server does not support batch.
+    *
+    * @param operations the operations, applied in order
+    * @param atomic if true, a failed operation undoes the operations before it
+    * @return the result of each operation, in the order of operations
+    * @throws NamingException if the naming server could not be reached, or
+    *    the name of an operation includes a naming server url
+    * @see Naming#batch(NamingOperation[], boolean)
+    */
+   public NamingResult[] batch(NamingOperation[] operations, boolean atomic)
+      throws NamingException
+   {
+      Hashtable refEnv = getEnv(parser.parse(""));
+      checkRef(refEnv);
+
+      NamingResult[] results;
+      try
+      {
+         NamingOperation[] remoteOps = new NamingOperation[operations.length];
+         Hashtable nameEnv = new Hashtable();
+         for (int i = 0; i < operations.length; i ++)
+         {
+            NamingOperation op = operations[i];
+            Name name = op.getName();
+            if (parseNameForScheme(name, nameEnv) != null)
+               throw new InvalidNameException("A batch cannot use a naming server url: " + name);
+            Name parsedName = (Name) nameEnv.remove(JNP_PARSED_NAME);
+            if (parsedName != null)
+               name = parsedName;
+
+            Object obj = null;
+            String className = null;
+            if (op.getOperation() != NamingOperation.UNBIND)
+            {
+               // Allow state factories to change the stored object
+               obj = getStateToBind(op.getObject(), name, refEnv);
+               // Referenceable
+               if (obj instanceof Referenceable)
+                  obj = ((Referenceable) obj).getReference();
+
+               if (!(obj instanceof Reference))
+               {
+                  if( obj != null )
+                     className = obj.getClass().getName();
+                  // Normal object - serialize using a MarshalledValuePair
+                  obj = createPair(obj, refEnv);
+               }
+               else
+               {
+                  className = ((Reference) obj).getClassName();
+               }
+            }
+            remoteOps[i] = new NamingOperation(op.getOperation(), getAbsoluteName(name), obj, className);
+         }
+
+         final NamingOperation[] batchOps = remoteOps;
+         final boolean atomicBatch = atomic;
+         results = (NamingResult[]) invoke(new NamingCall()
+         {
+            public Object call(Naming server) throws NamingException, IOException
+            {
+               return server.batch(batchOps, atomicBatch);
+            }
+         }, refEnv);
+         for (int i = 0; i < remoteOps.length; i ++)
+            invalidateLookup(remoteOps[i].getName(), refEnv);
+      }
+      catch (UnmarshalException e)
+      {
+         // A naming server without batch
+         results = null;
+      }
+      catch (ServerException e)
+      {
+         if ((e.getCause() instanceof UnmarshalException) == false)
+         {
+            naming = null;
+            removeServer(refEnv);
+            NamingException ex = new CommunicationException();
+            ex.setRootCause(e);
+            throw ex;
+         }
+         results = null;
+      }
+      catch (IOException e)
+      {
+         naming = null;
+         removeServer(refEnv);
+         NamingException ex = new CommunicationException();
+         ex.setRootCause(e);
+         throw ex;
+      }
+
+      if (results == null)
+      {
+         if (atomic)
+            throw new OperationNotSupportedException("The naming server does not support batch");
+         if( log.isTraceEnabled() )
+            log.trace("Naming server does not support batch, applying operations individually");
+         results = new NamingResult[operations.length];
+         for (int i = 0; i < operations.length; i ++)
+            results[i] = applyOperation(this, operations[i], operations[i].getName());
+         return results;
+      }
+
+      if (atomic == false)
+      {
+         // Federated names continue in the next naming system
+         for (int i = 0; i < results.length; i ++)
+         {
+            if (results[i].getException() instanceof CannotProceedException)
+            {
+               CannotProceedException cpe = (CannotProceedException) results[i].getException();
+               cpe.setEnvironment(refEnv);
+               try
+               {
+                  Context cctx = NamingManager.getContinuationContext(cpe);
+                  results[i] = applyOperation(cctx, operations[i], cpe.getRemainingName());
+               }
+               catch (NamingException e)
+               {
+                  results[i] = new NamingResult(e);
+               }
+            }
+         }
+      }
+      return results;
+   }
+
+   public void unbind(String name)
+      throws NamingException
+   {
+      unbind(getNameParser(name).parse(name));
+   }
+
+
+   public void unbind(Name name)
+      throws NamingException
+   {
+      Hashtable refEnv = getEnv(name);
+      checkRef(refEnv);
+      Name parsedName = (Name) refEnv.get(JNP_PARSED_NAME);
+      if (parsedName != null)
+         name = parsedName;
+
+      try
+      {
+         final Name n = getAbsoluteName(name);
+         invoke(new NamingCall()
+         {
+            public Object call(Naming server) throws NamingException, IOException
+            {
+               server.unbind(n);
+               return null;
+            }
+         }, refEnv);
+         invalidateLookup(n, refEnv);
+      }
+      catch (CannotProceedException cpe)
+      {
+         cpe.setEnvironment(refEnv);
+         Context cctx = NamingManager.getContinuationContext(cpe);
+         cctx.unbind(cpe.getRemainingName());
+      }
+      catch (IOException e)
       {
          naming = null;
          removeServer(refEnv);
@@ -875,24 +1433,14 @@ public class NamingContext
       try
       {
          Collection c = null;
-         try
-         {
-            c = naming.list(getAbsoluteName(name));
-         }
-         catch (RemoteException re)
+         final Name n = getAbsoluteName(name);
+         c = (Collection) invoke(new NamingCall()
          {
-            // Check for JBAS-4574.
-            if (handleStaleNamingStub(re, refEnv))
+            public Object call(Naming server) throws NamingException, IOException
             {
-               // try again with new naming stub                  
-               c = naming.list(getAbsoluteName(name));
+               return server.list(n);
             }
-            else
-            {
-               // Not JBAS-4574. Throw exception and let outer logic handle it.
-               throw re;
-            }            
-         }
+         }, refEnv);
          return new NamingEnumerationImpl(c);
       }
       catch (CannotProceedException cpe)
@@ -930,25 +1478,14 @@ public class NamingContext
       {
          // Get list
          Collection bindings = null;
-         try
-         {
-            // Get list
-            bindings = naming.listBindings(getAbsoluteName(name));
-         }
-         catch (RemoteException re)
+         final Name n = getAbsoluteName(name);
+         bindings = (Collection) invoke(new NamingCall()
          {
-            // Check for JBAS-4574.
-            if (handleStaleNamingStub(re, refEnv))
+            public Object call(Naming server) throws NamingException, IOException
             {
-               // try again with new naming stub                  
-               bindings = naming.listBindings(getAbsoluteName(name));
+               return server.listBindings(n);
             }
-            else
-            {
-               // Not JBAS-4574. Throw exception and let outer logic handle it.
-               throw re;
-            }            
-         }
+         }, refEnv);
          Collection realBindings = new ArrayList(bindings.size());
          
          // Convert marshalled objects
@@ -983,6 +1520,10 @@ public class NamingContext
                   throw ex;
                }
             }
+            else if (obj instanceof NamingContext)
+            {
+               obj = inheritEnv((NamingContext) obj, refEnv);
+            }
             realBindings.add(new Binding(binding.getName(), binding.getClassName(), obj));
          }
          
@@ -1053,25 +1594,16 @@ public class NamingContext
 
       try
       {
-         name = getAbsoluteName(name);
-         try
-         {
-            return naming.createSubcontext(name);
-         }
-         catch (RemoteException re)
+         final Name n = getAbsoluteName(name);
+         Context subCtx = (Context) invoke(new NamingCall()
          {
-            // Check for JBAS-4574.
-            if (handleStaleNamingStub(re, refEnv))
+            public Object call(Naming server) throws NamingException, IOException
             {
-               // try again with new naming stub                  
-               return naming.createSubcontext(name);
+               return server.createSubcontext(n);
             }
-            else
-            {
-               // Not JBAS-4574. Throw exception and let outer logic handle it.
-               throw re;
-            }            
-         }
+         }, refEnv);
+         invalidateLookup(n, refEnv);
+         return subCtx;
       }
       catch (CannotProceedException cpe)
       {
@@ -1092,26 +1624,35 @@ public class NamingContext
    public Object addToEnvironment(String propName, Object propVal)
       throws NamingException
    {
-      Object old = env.get(propName);
+      Object old = getWritableEnv().get(propName);
       env.put(propName, propVal);
+      lookupCacheChecked = false;
+      retryPolicy = null;
       return old;
    }
 
    public Object removeFromEnvironment(String propName)
       throws NamingException
    {
-      return env.remove(propName);
+      lookupCacheChecked = false;
+      retryPolicy = null;
+      return getWritableEnv().remove(propName);
    }
 
    public Hashtable getEnvironment()
       throws NamingException
    {
+      if (envShared)
+         return (Hashtable) env.clone();
       return env;
    }
 
    public void close()
       throws NamingException
    {
+      // A handle is shared by other callers
+      if (handle)
+         return;
       env = null;
       naming = null;
    }
@@ -1166,28 +1707,18 @@ public class NamingContext
       Object link = null;
       try
       {
-         Name n = getAbsoluteName(name);
-         try
-         {
-            link = naming.lookup(n);
-         }
-         catch (RemoteException re)
+         final Name n = getAbsoluteName(name);
+         link = invoke(new NamingCall()
          {
-            // Check for JBAS-4574.
-            if (handleStaleNamingStub(re, refEnv))
+            public Object call(Naming server) throws NamingException, IOException
             {
-               // try again with new naming stub                  
-               link = naming.lookup(n);
+               return server.lookup(n);
             }
-            else
-            {
-               // Not JBAS-4574. Throw exception and let outer logic handle it.
-               throw re;
-            }            
-         }
+         }, refEnv);
          if (!(link instanceof LinkRef) && link instanceof Reference)
             link = getObjectInstance(link, name, null);
-         ;
+         else if (link instanceof NamingContext)
+            link = inheritEnv((NamingContext) link, refEnv);
       }
       catch (IOException e)
       {
@@ -1299,7 +1830,8 @@ public class NamingContext
    }
 
    /**
-    * Use the NamingManager.getObjectInstance to resolve the raw object obtained
+    * Use the NamingManager.getObjectInstance, or the cached ObjectFactory of a
+    * Reference, to resolve the raw object obtained
     * from the naming server.
     * @param obj - raw value obtained from the naming server
     * @param name - the name passed to the lookup op
@@ -1312,6 +1844,13 @@ public class NamingContext
    {
       if (useAbsoluteName(env))
          name = getAbsoluteName(name);
+      if (obj instanceof Reference && ObjectFactoryCache.isEnabled(env))
+      {
+         Reference ref = (Reference) obj;
+         ObjectFactory factory = ObjectFactoryCache.getFactory(ref);
+         if (factory != null)
+            return ObjectFactoryCache.getObjectInstance(factory, ref, name, this, env);
+      }
       return NamingManager.getObjectInstance(obj, name, this, env);
    }
 
@@ -1374,75 +1913,137 @@ public class NamingContext
       // Any listening server will answer with its IP address:port in another datagram
       // we will then use this to make a standard "lookup"
       //
-      MulticastSocket s = null;
-      InetAddress iaGroup = null;
-      try
-      {
-         String group = DEFAULT_DISCOVERY_GROUP_ADDRESS;
-         int port = DEFAULT_DISCOVERY_GROUP_PORT;
-         int timeout = DEFAULT_DISCOVERY_TIMEOUT;
-         int ttl = 16;
+      String group = DEFAULT_DISCOVERY_GROUP_ADDRESS;
+      int port = DEFAULT_DISCOVERY_GROUP_PORT;
+      int timeout = DEFAULT_DISCOVERY_TIMEOUT;
+      int ttl = 16;
 
-         String discoveryGroup = (String) serverEnv.get(JNP_DISCOVERY_GROUP);
-         if (discoveryGroup != null)
-            group = discoveryGroup;
+      String discoveryGroup = (String) serverEnv.get(JNP_DISCOVERY_GROUP);
+      if (discoveryGroup != null)
+         group = discoveryGroup;
 
-         String discoveryTTL = (String) serverEnv.get(JNP_DISCOVERY_TTL);
-         if(discoveryTTL != null)
-            ttl = Integer.parseInt(discoveryTTL);
+      String discoveryTTL = (String) serverEnv.get(JNP_DISCOVERY_TTL);
+      if(discoveryTTL != null)
+         ttl = Integer.parseInt(discoveryTTL);
 
-         String discoveryTimeout = (String) serverEnv.get(JNP_DISCOVERY_TIMEOUT);
-         if (discoveryTimeout == null)
-         {
-            // Check the old property name
-            discoveryTimeout = (String) serverEnv.get("DISCOVERY_TIMEOUT");
-         }
-         if (discoveryTimeout != null && !discoveryTimeout.equals(""))
-            timeout = Integer.parseInt(discoveryTimeout);
+      String discoveryTimeout = (String) serverEnv.get(JNP_DISCOVERY_TIMEOUT);
+      if (discoveryTimeout == null)
+      {
+         // Check the old property name
+         discoveryTimeout = (String) serverEnv.get("DISCOVERY_TIMEOUT");
+      }
+      if (discoveryTimeout != null && !discoveryTimeout.equals(""))
+         timeout = Integer.parseInt(discoveryTimeout);
 
-         String discoveryGroupPort = (String) serverEnv.get(JNP_DISCOVERY_PORT);
-         if (discoveryGroupPort == null)
+      String discoveryGroupPort = (String) serverEnv.get(JNP_DISCOVERY_PORT);
+      if (discoveryGroupPort == null)
+      {
+         // Check the old property name
+         discoveryGroupPort = (String) serverEnv.get("DISCOVERY_GROUP");
+      }
+      if (discoveryGroupPort != null && !discoveryGroupPort.equals(""))
+      {
+         int colon = discoveryGroupPort.indexOf(':');
+         if (colon < 0)
          {
-            // Check the old property name
-            discoveryGroupPort = (String) serverEnv.get("DISCOVERY_GROUP");
+            // No group given, just the port
+            try
+            {
+               port = Integer.parseInt(discoveryGroupPort);
+            }
+            catch (Exception ex)
+            {
+               log.warn("Failed to parse port: " + discoveryGroupPort, ex);
+            }
          }
-         if (discoveryGroupPort != null && !discoveryGroupPort.equals(""))
+         else
          {
-            int colon = discoveryGroupPort.indexOf(':');
-            if (colon < 0)
+            // The old group:port syntax was given
+            group = discoveryGroupPort.substring(0, colon);
+            String portStr = discoveryGroupPort.substring(colon + 1);
+            try
             {
-               // No group given, just the port
-               try
-               {
-                  port = Integer.parseInt(discoveryGroupPort);
-               }
-               catch (Exception ex)
-               {
-                  log.warn("Failed to parse port: " + discoveryGroupPort, ex);
-               }
+               port = Integer.parseInt(portStr);
             }
-            else
+            catch (Exception ex)
             {
-               // The old group:port syntax was given
-               group = discoveryGroupPort.substring(0, colon);
-               String portStr = discoveryGroupPort.substring(colon + 1);
-               try
-               {
-                  port = Integer.parseInt(portStr);
-               }
-               catch (Exception ex)
-               {
-                  log.warn("Failed to parse port: " + portStr, ex);
-               }
+               log.warn("Failed to parse port: " + portStr, ex);
             }
          }
+      }
+
+      long window = DEFAULT_DISCOVERY_WINDOW;
+      String discoveryWindow = (String) serverEnv.get(JNP_DISCOVERY_WINDOW);
+      if (discoveryWindow != null)
+         window = Long.parseLong(discoveryWindow);
+      long cacheTTL = DEFAULT_DISCOVERY_CACHE_TTL;
+      String discoveryCacheTTL = (String) serverEnv.get(JNP_DISCOVERY_CACHE_TTL);
+      if (discoveryCacheTTL != null)
+         cacheTTL = Long.parseLong(discoveryCacheTTL);
+
+      final String localAddrStr = (String) serverEnv.get(JNP_LOCAL_ADDRESS);
+      String localPortStr = (String) serverEnv.get(JNP_LOCAL_PORT);
+      final int localPort = localPortStr != null ? Integer.parseInt(localPortStr) : 0;
+
+      final String discoveryAddress = group;
+      final int discoveryPort = port;
+      final int discoveryTimeoutMs = timeout;
+      final int multicastTTL = ttl;
+      final long replyWindow = window;
+      final String partition = partitionName;
+      Callable discovery = new Callable()
+      {
+         public Object call() throws Exception
+         {
+            return multicastDiscovery(discoveryAddress, discoveryPort, multicastTTL,
+               discoveryTimeoutMs, replyWindow, partition, localAddrStr, localPort);
+         }
+      };
+      String key = group + ":" + port + "/" + partitionName + "/" + localAddrStr;
+      String[] servers = DiscoveryCache.get(key, discovery, cacheTTL);
+
+      // Use the fastest responder that can be reached
+      NamingException failure = null;
+      for (int i = 0; i < servers.length; i ++)
+      {
+         int colon = servers[i].lastIndexOf(':');
+         try
+         {
+            String serverHost = servers[i].substring(0, colon);
+            int serverPort = Integer.parseInt(servers[i].substring(colon + 1));
+            Naming discovered = getServer(serverHost, serverPort, serverEnv);
+            hostKey = servers[i];
+            return discovered;
+         }
+         catch (NamingException e)
+         {
+            if (trace)
+               log.trace("Failed to connect to discovered server " + servers[i], e);
+            failure = e;
+         }
+      }
+      DiscoveryCache.remove(key);
+      if (failure != null)
+         throw failure;
+      return null;
+   }
 
+   /**
+    * Multicast a discovery request and collect the replies that arrive
+    * within the reply window after the first one.
+    *
+    * @return the host:port of the responders, by order of reply
+    */
+   private static String[] multicastDiscovery(String group, int port, int ttl,
+      int timeout, long window, String partitionName, String localAddrStr, int localPort)
+      throws NamingException
+   {
+      boolean trace = log.isTraceEnabled();
+      MulticastSocket s = null;
+      InetAddress iaGroup = null;
+      try
+      {
          iaGroup = InetAddress.getByName(group);
-         String localAddrStr = (String) serverEnv.get(JNP_LOCAL_ADDRESS);
-         String localPortStr = (String) serverEnv.get(JNP_LOCAL_PORT);
-         int localPort = 0;
-         if (localPortStr != null)
-            localPort = Integer.parseInt(localPortStr);
          if (localAddrStr != null)
          {
             InetSocketAddress localAddr = new InetSocketAddress(localAddrStr, localPort);
@@ -1468,37 +2069,54 @@ public class NamingContext
          packet = new DatagramPacket(buf, buf.length, iaGroup, port);
          if (trace)
             log.trace("Sending discovery packet(" + data + ") to: " + iaGroup + ":" + port);
+         long sent = System.currentTimeMillis();
          s.send(packet);
-         // Look for a reply
+         // Look for the replies
          // IP address + port number = 128.128.128.128:65535 => (12+3) + 1 + (5) = 21
 
          buf = new byte[50];
          packet = new DatagramPacket(buf, buf.length);
-         s.receive(packet);
-         String myServer = new String(packet.getData()).trim();
-         if (trace)
-            log.trace("Received answer packet: " + myServer);
-         while (myServer != null && myServer.startsWith("GET_ADDRESS"))
-         {
-            Arrays.fill(buf, (byte) 0);
-            packet.setLength(buf.length);
-            s.receive(packet);
-            byte[] reply = packet.getData();
-            myServer = new String(reply).trim();
+         ArrayList servers = new ArrayList();
+         long deadline = 0;
+         while (true)
+         {
+            try
+            {
+               Arrays.fill(buf, (byte) 0);
+               packet.setLength(buf.length);
+               s.receive(packet);
+            }
+            catch (SocketTimeoutException e)
+            {
+               // The first reply waits up to the timeout, the others up to the window
+               if (servers.isEmpty())
+                  throw e;
+               break;
+            }
+            String myServer = new String(packet.getData(), 0, packet.getLength()).trim();
             if (trace)
                log.trace("Received answer packet: " + myServer);
+            // Skip our own request and malformed replies
+            if (myServer.startsWith("GET_ADDRESS") == false && myServer.indexOf(':') >= 0
+               && servers.contains(myServer) == false)
+            {
+               if (trace)
+                  log.trace("Discovered " + myServer + " in " + (System.currentTimeMillis() - sent) + "ms");
+               servers.add(myServer);
+               if (deadline == 0)
+                  deadline = System.currentTimeMillis() + window;
+            }
+            if (deadline != 0)
+            {
+               long remaining = deadline - System.currentTimeMillis();
+               if (remaining <= 0)
+                  break;
+               s.setSoTimeout((int) remaining);
+            }
          }
-         String serverHost;
-         int serverPort;
-
-         int colon = myServer.indexOf(':');
-         if (colon >= 0)
-         {
-            serverHost = myServer.substring(0, colon);
-            serverPort = Integer.valueOf(myServer.substring(colon + 1)).intValue();
-            server = getServer(serverHost, serverPort, serverEnv);
-         }
-         return server;
+         String[] result = new String[servers.size()];
+         servers.toArray(result);
+         return result;
       }
       catch (IOException e)
       {
@@ -1529,25 +2147,212 @@ public class NamingContext
       }
    }
 
-   private void checkRef(Hashtable refEnv)
-      throws NamingException
+   /**
+    * Connect to the provider url servers concurrently. The connect to a
+    * server starts once the connect to the previous server failed or after
+    * the JNP_CONNECT_STAGGER delay. The first stub returned is used and the
+    * other connects are cancelled.
+    *
+    * @param urls the provider urls, all consumed
+    * @param refEnv the environment
+    * @return the stub of the first server that answered
+    * @throws Exception the failure of the last server if none answered
+    */
+   private Naming connectParallel(StringTokenizer urls, final Hashtable refEnv)
+      throws Exception
    {
-      if (naming == null)
+      String host = "localhost";
+      int port = 1099;
+      ArrayList hostKeys = new ArrayList();
+      while (urls.hasMoreElements())
       {
-         String host = "localhost";
-         int port = 1099;
-         Exception serverEx = null;
-         
-         // Locate first available naming service
-         String urls = (String) refEnv.get(Context.PROVIDER_URL);
-         if (urls != null && urls.length() > 0)
+         String url = urls.nextToken();
+         // Parse the url into a host:port form, stripping any protocol
+         Name urlAsName = getNameParser("").parse(url);
+         String server = parseNameForScheme(urlAsName, null);
+         if (server != null)
+            url = server;
+         int colon = url.indexOf(':');
+         if (colon < 0)
          {
-            StringTokenizer tokenizer = new StringTokenizer(urls, ",");
-
-            while (naming == null && tokenizer.hasMoreElements())
+            host = url;
+         }
+         else
+         {
+            host = url.substring(0, colon).trim();
+            try
             {
-               String url = tokenizer.nextToken();
-               // Parse the url into a host:port form, stripping any protocol
+               port = Integer.parseInt(url.substring(colon + 1).trim());
+            }
+            catch (Exception ex)
+            {
+               // Use default;
+            }
+         }
+         String hostKey = host + ":" + port;
+         // A registered server needs no connect
+         Naming registered = ServerRegistry.get(hostKey);
+         if (registered != null)
+         {
+            this.hostKey = hostKey;
+            return registered;
+         }
+         hostKeys.add(hostKey);
+      }
+
+      long stagger = DEFAULT_CONNECT_STAGGER;
+      String value = (String) refEnv.get(JNP_CONNECT_STAGGER);
+      if (value != null)
+         stagger = Long.parseLong(value);
+
+      CompletionService connects = new ExecutorCompletionService(getConnectExecutor());
+      ArrayList futures = new ArrayList();
+      int next = 0;
+      int pending = 0;
+      Exception failure = null;
+      try
+      {
+         while (next < hostKeys.size() || pending > 0)
+         {
+            Future done = null;
+            if (pending > 0)
+            {
+               if (next < hostKeys.size())
+                  done = connects.poll(stagger, TimeUnit.MILLISECONDS);
+               else
+                  done = connects.take();
+            }
+            if (done == null)
+            {
+               final String hostKey = (String) hostKeys.get(next ++);
+               final int colon = hostKey.lastIndexOf(':');
+               futures.add(connects.submit(new Callable()
+               {
+                  public Object call() throws Exception
+                  {
+                     Naming server = getServer(hostKey.substring(0, colon),
+                        Integer.parseInt(hostKey.substring(colon + 1)), refEnv);
+                     return new Object[] {hostKey, server};
+                  }
+               }));
+               pending ++;
+               continue;
+            }
+
+            pending --;
+            try
+            {
+               Object[] winner = (Object[]) done.get();
+               hostKey = (String) winner[0];
+               return (Naming) winner[1];
+            }
+            catch (ExecutionException e)
+            {
+               Throwable cause = e.getCause();
+               failure = cause instanceof Exception ? (Exception) cause : e;
+               log.debug("Parallel connect failed", cause);
+            }
+         }
+      }
+      finally
+      {
+         for (int i = 0; i < futures.size(); i ++)
+            ((Future) futures.get(i)).cancel(true);
+      }
+      throw failure;
+   }
+
+   /**
+    * Check if the Context.PROVIDER_URL servers are on this host.
+    *
+    * @return true if the provider url is not set or all its hosts are
+    *    addresses of this host
+    */
+   private boolean isLocalProvider(Hashtable refEnv)
+      throws NamingException
+   {
+      String urls = (String) refEnv.get(Context.PROVIDER_URL);
+      if (urls == null)
+         return true;
+      StringTokenizer tokenizer = new StringTokenizer(urls, ",");
+      while (tokenizer.hasMoreTokens())
+      {
+         String url = tokenizer.nextToken();
+         Name urlAsName = getNameParser("").parse(url);
+         String server = parseNameForScheme(urlAsName, null);
+         if (server != null)
+            url = server;
+         int colon = url.indexOf(':');
+         String host = colon < 0 ? url.trim() : url.substring(0, colon).trim();
+         try
+         {
+            InetAddress addr = InetAddress.getByName(host);
+            if (addr.isLoopbackAddress() == false && addr.isAnyLocalAddress() == false
+               && NetworkInterface.getByInetAddress(addr) == null)
+               return false;
+         }
+         catch (IOException e)
+         {
+            log.debug("Failed to resolve " + host, e);
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static synchronized ExecutorService getConnectExecutor()
+   {
+      if (connectExecutor == null)
+         connectExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("NamingContext connect"));
+      return connectExecutor;
+   }
+
+   private void checkRef(Hashtable refEnv)
+      throws NamingException
+   {
+      if (naming == null)
+      {
+         String host = "localhost";
+         int port = 1099;
+         Exception serverEx = null;
+         
+         // Prefer the unix domain socket of a server on this host, unless the
+         // provider url names another host
+         String unixSocket = (String) refEnv.get(JNP_UNIX_SOCKET);
+         if (unixSocket != null && isLocalProvider(refEnv))
+         {
+            naming = getUnixServer(unixSocket, refEnv);
+            if (naming != null)
+            {
+               hostKey = "unix:" + unixSocket;
+               return;
+            }
+         }
+
+         // Locate first available naming service
+         String urls = (String) refEnv.get(Context.PROVIDER_URL);
+         if (urls != null && urls.length() > 0)
+         {
+            StringTokenizer tokenizer = new StringTokenizer(urls, ",");
+
+            if (Boolean.valueOf((String) refEnv.get(JNP_PARALLEL_CONNECT)).booleanValue()
+               && tokenizer.countTokens() > 1)
+            {
+               try
+               {
+                  naming = connectParallel(tokenizer, refEnv);
+               }
+               catch (Exception e)
+               {
+                  serverEx = e;
+                  log.debug("Failed to connect to any of " + urls, e);
+               }
+            }
+
+            while (naming == null && tokenizer.hasMoreElements())
+            {
+               String url = tokenizer.nextToken();
+               // Parse the url into a host:port form, stripping any protocol
                Name urlAsName = getNameParser("").parse(url);
                String server = parseNameForScheme(urlAsName, null);
                if (server != null)
@@ -1573,6 +2378,7 @@ public class NamingContext
                {
                   // Get server from cache
                   naming = getServer(host, port, refEnv);
+                  hostKey = host + ":" + port;
                }
                catch (Exception e)
                {
@@ -1643,6 +2449,283 @@ public class NamingContext
       }
    }
 
+   /**
+    * Wrap a value to bind in a MarshalledValuePair, with the ValueCodec and
+    * immutable flag of the environment.
+    */
+   private static MarshalledValuePair createPair(Object obj, Hashtable refEnv)
+      throws IOException
+   {
+      MarshalledValuePair mvp = new MarshalledValuePair(obj, ValueCodecs.getCodec(obj, refEnv));
+      mvp.immutable = Boolean.valueOf((String) refEnv.get(JNP_IMMUTABLE_VALUES)).booleanValue();
+      return mvp;
+   }
+
+   /**
+    * Get the value of a looked up pair, through the value cache if the
+    * context has one.
+    *
+    * @param n the absolute name of the lookup
+    */
+   private Object getStoredObject(MarshalledValuePair mvp, Name n, Hashtable refEnv)
+      throws IOException, ClassNotFoundException
+   {
+      ValueCache cache = getValueCache(refEnv);
+      if (cache == null)
+         return mvp.get();
+      return cache.get(n, mvp);
+   }
+
+   /**
+    * Convert the raw value a naming server returned for a lookup into the
+    * object returned to the caller.
+    */
+   private Object resolveLookup(Object res, Name name, Name absoluteName, Hashtable refEnv)
+      throws NamingException, IOException, ClassNotFoundException
+   {
+      if (res instanceof MarshalledValuePair)
+      {
+         MarshalledValuePair mvp = (MarshalledValuePair) res;
+         Object storedObj = getStoredObject(mvp, absoluteName, refEnv);
+         return getObjectInstanceWrapFailure(storedObj, name, refEnv);
+      }
+      else if (res instanceof MarshalledObject)
+      {
+         MarshalledObject mo = (MarshalledObject) res;
+         return mo.get();
+      }
+      else if (res instanceof NamingContext)
+      {
+         return inheritEnv((NamingContext) res, refEnv);
+      }
+      else if (res instanceof Context)
+      {
+         // Add env
+         Enumeration keys = refEnv.keys();
+         while (keys.hasMoreElements())
+         {
+            String key = (String) keys.nextElement();
+            ((Context) res).addToEnvironment(key, refEnv.get(key));
+         }
+         return res;
+      }
+      else if (res instanceof ResolveResult)
+      {
+         // Dereference partial result
+         ResolveResult rr = (ResolveResult) res;
+         Object resolveRes = rr.getResolvedObj();
+         Object context;
+         Object instanceID;
+
+         if (resolveRes instanceof LinkRef)
+         {
+            context = resolveLink(resolveRes, null);
+            instanceID = ((LinkRef) resolveRes).getLinkName();
+         }
+         else
+         {
+            context = getObjectInstanceWrapFailure(resolveRes, name, refEnv);
+            instanceID = context;
+         }
+
+         if ((context instanceof Context) == false)
+         {
+            throw new NotContextException(instanceID + " is not a Context");
+         }
+         Context ncontext = (Context) context;
+         return ncontext.lookup(rr.getRemainingName());
+      }
+      else if (res instanceof LinkRef)
+      {
+         // Dereference link
+         res = resolveLink(res, refEnv);
+      }
+      else if (res instanceof Reference)
+      {
+         // Dereference object
+         res = getObjectInstanceWrapFailure(res, name, refEnv);
+         if (res instanceof LinkRef)
+            res = resolveLink(res, refEnv);
+      }
+
+      return res;
+   }
+
+   /**
+    * Look up a single name of a batch lookup.
+    */
+   private NamingResult lookupResult(Name name)
+   {
+      try
+      {
+         return new NamingResult(lookup(name));
+      }
+      catch (NamingException e)
+      {
+         return new NamingResult(e);
+      }
+   }
+
+   /**
+    * Apply a single operation of a batch to ctx.
+    */
+   private static NamingResult applyOperation(Context ctx, NamingOperation op, Name name)
+   {
+      try
+      {
+         switch (op.getOperation())
+         {
+            case NamingOperation.BIND:
+               ctx.bind(name, op.getObject());
+               break;
+            case NamingOperation.REBIND:
+               ctx.rebind(name, op.getObject());
+               break;
+            default:
+               ctx.unbind(name);
+         }
+         return new NamingResult((Object) null);
+      }
+      catch (NamingException e)
+      {
+         return new NamingResult(e);
+      }
+   }
+
+   /**
+    * Get the lookup cache for the env of an operation.
+    *
+    * @return the cache, null if lookups are not cached
+    */
+   private LookupCache getLookupCache(Hashtable refEnv)
+   {
+      // Names with a naming server url are not cached
+      if (refEnv != env)
+         return null;
+      checkLookupCaches();
+      return lookupCache;
+   }
+
+   private ValueCache getValueCache(Hashtable refEnv)
+   {
+      if (refEnv != env)
+         return null;
+      checkLookupCaches();
+      return valueCache;
+   }
+
+   private NegativeLookupCache getNegativeCache(Hashtable refEnv)
+   {
+      if (refEnv != env)
+         return null;
+      checkLookupCaches();
+      return negativeCache;
+   }
+
+   private void checkLookupCaches()
+   {
+      if (lookupCacheChecked == false)
+      {
+         lookupCache = LookupCache.getCache(env);
+         negativeCache = NegativeLookupCache.getCache(env);
+         valueCache = ValueCache.getCache(env);
+         lookupCacheChecked = true;
+      }
+   }
+
+   /**
+    * Drop the cached lookup result and the cached lookup failure of a name
+    * this context updated.
+    *
+    * @param n the absolute name
+    */
+   private void invalidateLookup(Name n, Hashtable refEnv)
+   {
+      LookupCache cache = getLookupCache(refEnv);
+      if (cache != null && cache.accepts(n))
+         cache.remove(new LookupCache.Key(naming, n.toString()));
+      NegativeLookupCache negativeCache = getNegativeCache(refEnv);
+      if (negativeCache != null)
+         negativeCache.remove(new LookupCache.Key(naming, n.toString()));
+   }
+
+   /**
+    * Check if a cached lookup result whose time to live expired is still
+    * current, renewing it if so and dropping it if not.
+    */
+   private boolean revalidate(LookupCache cache, LookupCache.Key key,
+      LookupCache.Entry entry, Name n)
+   {
+      long version = getVersion(n);
+      if (version != -1 && version == entry.version)
+      {
+         cache.renew(entry);
+         return true;
+      }
+      cache.remove(key);
+      return false;
+   }
+
+   /**
+    * Look up a name with its version in a single call, or with a getVersion
+    * call before the lookup if the naming server has no lookupVersioned.
+    *
+    * @return the value and version of the name
+    */
+   private NamingResult lookupVersioned(final Name n, Hashtable refEnv)
+      throws NamingException, IOException
+   {
+      try
+      {
+         return (NamingResult) invoke(new NamingCall()
+         {
+            public Object call(Naming server) throws NamingException, IOException
+            {
+               return server.lookupVersioned(n);
+            }
+         }, refEnv);
+      }
+      catch (UnmarshalException e)
+      {
+         // A naming server without lookupVersioned
+      }
+      catch (ServerException e)
+      {
+         if ((e.getCause() instanceof UnmarshalException) == false)
+            throw e;
+      }
+      // The version must be read before the value
+      long version = getVersion(n);
+      Object value = invoke(new NamingCall()
+      {
+         public Object call(Naming server) throws NamingException, IOException
+         {
+            return server.lookup(n);
+         }
+      }, refEnv);
+      return new NamingResult(value, version);
+   }
+
+   /**
+    * Get the naming server version of a name.
+    *
+    * @return the version, -1 if it is not available
+    */
+   private long getVersion(Name n)
+   {
+      try
+      {
+         return naming.getVersion(n);
+      }
+      catch (Exception e)
+      {
+         // Includes a naming server without getVersion
+         if( log.isTraceEnabled() )
+            log.trace("Failed to get the version of " + n, e);
+         return -1;
+      }
+   }
+
    private Name getAbsoluteName(Name n)
       throws NamingException
    {
@@ -1658,17 +2741,208 @@ public class NamingContext
       throws InvalidNameException
    {
       Hashtable nameEnv = env;
-      env.remove(JNP_PARSED_NAME);
+      if (envShared)
+      {
+         // The parsed name of a scheme url must not go into a shared env
+         if (n.size() > 0 && n.get(0).indexOf(':') >= 0)
+            nameEnv = (Hashtable) env.clone();
+      }
+      else
+      {
+         env.remove(JNP_PARSED_NAME);
+      }
       String serverInfo = parseNameForScheme(n, nameEnv);
       if (serverInfo != null)
       {
          // Set hostname:port value for the naming server
-         nameEnv = (Hashtable) env.clone();
+         if (nameEnv == env)
+            nameEnv = (Hashtable) env.clone();
          nameEnv.put(Context.PROVIDER_URL, serverInfo);
+         // The unix socket of the context is not the server of the name
+         nameEnv.remove(JNP_UNIX_SOCKET);
       }
       return nameEnv;
    }
+
+   /**
+    * Get the env for a modification, copying it first if it is shared.
+    */
+   private Hashtable getWritableEnv()
+      throws NamingException
+   {
+      if (handle)
+         throw new OperationNotSupportedException("The environment of a shared context handle is immutable");
+      if (envShared)
+      {
+         env = (Hashtable) env.clone();
+         envShared = false;
+      }
+      return env;
+   }
+
+   /**
+    * Share the env of an operation with a context the operation returns.
+    * If refEnv is the env of this context both contexts copy it before
+    * they modify it.
+    */
+   private Hashtable shareEnv(Hashtable refEnv)
+   {
+      if (refEnv != env || envShared == false)
+      {
+         // The parsed name only applies to the current operation
+         refEnv.remove(JNP_PARSED_NAME);
+         if (refEnv == env)
+            envShared = true;
+      }
+      return refEnv;
+   }
+
+   /**
+    * Give a context returned by the naming server the env of the operation
+    * that obtained it. A handle is replaced by a new context of the same name
+    * that shares the env.
+    */
+   private Context inheritEnv(NamingContext ctx, Hashtable refEnv)
+      throws NamingException
+   {
+      if (ctx.handle)
+      {
+         NamingContext copy = new NamingContext(ctx.prefix, ctx.naming, shareEnv(refEnv));
+         copy.hostKey = hostKey;
+         return copy;
+      }
+      ctx.hostKey = hostKey;
+      if (ctx.env.isEmpty())
+      {
+         ctx.env = shareEnv(refEnv);
+         ctx.envShared = true;
+         return ctx;
+      }
+      Enumeration keys = refEnv.keys();
+      while (keys.hasMoreElements())
+      {
+         String key = (String) keys.nextElement();
+         if (key.equals(JNP_PARSED_NAME) == false)
+            ctx.addToEnvironment(key, refEnv.get(key));
+      }
+      return ctx;
+   }
    
+   /**
+    * Make a call to the naming server. A call that fails because the naming
+    * stub is stale is repeated with a new stub, one that fails with a
+    * ConnectException is retried as the RetryPolicy of the context decides.
+    *
+    * @param call the call
+    * @param refEnv the naming environment of the call
+    * @return the result of the call
+    */
+   private Object invoke(NamingCall call, Hashtable refEnv)
+      throws NamingException, IOException
+   {
+      RetryPolicy policy = getRetryPolicy(refEnv);
+      policy.startCall();
+      long start = System.currentTimeMillis();
+      long delay = 0;
+      for (int i = 0; ; i++)
+      {
+         try
+         {
+            try
+            {
+               return call.call(naming);
+            }
+            catch (RemoteException re)
+            {
+               // Check for JBAS-4574.
+               if (handleStaleNamingStub(re, refEnv))
+               {
+                  // try again with new naming stub
+                  return call.call(naming);
+               }
+               // Not JBAS-4574. Throw exception and let outer logic handle it.
+               throw re;
+            }
+         }
+         catch (ConnectException ce)
+         {
+            delay = policy.getRetryDelay(i, delay, System.currentTimeMillis() - start);
+            if (delay < 0)
+            {
+               if (log.isTraceEnabled())
+                  log.trace("Connect failed after " + i + " retries", ce);
+               retriesDenied.incrementAndGet();
+               // Throw the exception to flush the bad server
+               throw ce;
+            }
+            if (log.isTraceEnabled())
+               log.trace("Connect failed, retry " + (i + 1) + " in " + delay + "ms", ce);
+            retries.incrementAndGet();
+            try
+            {
+               Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw ce;
+            }
+         }
+      }
+   }
+
+   private RetryPolicy getRetryPolicy(Hashtable refEnv)
+   {
+      RetryPolicy policy = refEnv == env ? retryPolicy : null;
+      if (policy == null)
+      {
+         policy = loadRetryPolicy(refEnv);
+         if (refEnv == env)
+            retryPolicy = policy;
+      }
+      return policy;
+   }
+
+   /**
+    * Create the RetryPolicy named by the JNP_RETRY_POLICY property, looking
+    * for a ctor that accepts a Hashtable and if not found using the default
+    * ctor. The shared BackoffRetryPolicy for the env is the default.
+    */
+   static RetryPolicy loadRetryPolicy(Hashtable env)
+   {
+      String policyName = (String) env.get(JNP_RETRY_POLICY);
+      if (policyName != null && policyName.equals(BackoffRetryPolicy.class.getName()) == false)
+      {
+         try
+         {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            Class policyClass = loader.loadClass(policyName);
+            try
+            {
+               Constructor ctor = policyClass.getConstructor(new Class[] {Hashtable.class});
+               return (RetryPolicy) ctor.newInstance(new Object[] {env});
+            }
+            catch (NoSuchMethodException e)
+            {
+               return (RetryPolicy) policyClass.newInstance();
+            }
+         }
+         catch (Exception e)
+         {
+            log.warn("Failed to create the retry policy " + policyName + ", using the default", e);
+         }
+      }
+      return BackoffRetryPolicy.getPolicy(env);
+   }
+
+   /**
+    * A call to the naming server made by invoke.
+    */
+   private interface NamingCall
+   {
+      Object call(Naming server) throws NamingException, IOException;
+   }
+
    /**
     * JBAS-4574. Check if the given exception is because the server has 
     * been restarted while the cached naming stub hasn't been dgc-ed yet. 
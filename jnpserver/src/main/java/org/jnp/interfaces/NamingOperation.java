@@ -0,0 +1,113 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.Serializable;
+
+import javax.naming.Name;
+
+/** A bind, rebind or unbind of a batch of updates applied with
+ Naming.batch.
+
+ @version $Revision$
+ */
+public class NamingOperation implements Serializable
+{
+   private static final long serialVersionUID = 1L;
+
+   public static final int BIND = 0;
+   public static final int REBIND = 1;
+   public static final int UNBIND = 2;
+
+   private int operation;
+   private Name name;
+   private Object obj;
+   private String className;
+
+   /** Create an operation for NamingContext.batch, which determines the
+    * class name of obj.
+    * @param operation - one of BIND, REBIND or UNBIND
+    * @param name - the name to update
+    * @param obj - the object to bind, ignored by UNBIND
+    */
+   public NamingOperation(int operation, Name name, Object obj)
+   {
+      this(operation, name, obj, null);
+   }
+
+   /** Create an operation for Naming.batch.
+    * @param operation - one of BIND, REBIND or UNBIND
+    * @param name - the name to update
+    * @param obj - the object to bind, ignored by UNBIND
+    * @param className - the class name of the object to bind
+    */
+   public NamingOperation(int operation, Name name, Object obj, String className)
+   {
+      if( operation < BIND || operation > UNBIND )
+         throw new IllegalArgumentException("Unknown operation: " + operation);
+      this.operation = operation;
+      this.name = name;
+      this.obj = obj;
+      this.className = className;
+   }
+
+   public int getOperation()
+   {
+      return operation;
+   }
+
+   public Name getName()
+   {
+      return name;
+   }
+
+   public Object getObject()
+   {
+      return obj;
+   }
+
+   public String getClassName()
+   {
+      return className;
+   }
+
+   public String toString()
+   {
+      StringBuffer tmp = new StringBuffer("NamingOperation[");
+      switch( operation )
+      {
+         case BIND:
+            tmp.append("bind ");
+            break;
+         case REBIND:
+            tmp.append("rebind ");
+            break;
+         default:
+            tmp.append("unbind ");
+      }
+      tmp.append(name);
+      if( operation != UNBIND )
+         tmp.append(", className=").append(className);
+      tmp.append(']');
+      return tmp.toString();
+   }
+}
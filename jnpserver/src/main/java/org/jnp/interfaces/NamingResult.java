@@ -0,0 +1,111 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.Serializable;
+
+import javax.naming.NamingException;
+
+/** The outcome of one name of a batch naming operation, either the value
+ the name resolved to or the NamingException the operation failed with. The
+ result of a versioned lookup also carries the version of the name.
+
+ @version $Revision$
+ */
+public class NamingResult implements Serializable
+{
+   private static final long serialVersionUID = 1L;
+
+   private Object value;
+   private NamingException exception;
+   private long version = -1;
+
+   /** Create a successful result.
+    * @param value - the value of the name, may be null
+    */
+   public NamingResult(Object value)
+   {
+      this.value = value;
+   }
+
+   /** Create the result of a versioned lookup.
+    * @param value - the value of the name, may be null
+    * @param version - the version of the name read before the value, -1 if
+    *    the name cannot be versioned
+    */
+   public NamingResult(Object value, long version)
+   {
+      this.value = value;
+      this.version = version;
+   }
+
+   /** Create a failed result.
+    * @param exception - the failure of the name
+    */
+   public NamingResult(NamingException exception)
+   {
+      this.exception = exception;
+   }
+
+   /** Get the value of the name.
+    * @return the value
+    * @throws NamingException - the failure of the name if the operation failed
+    */
+   public Object getValue() throws NamingException
+   {
+      if( exception != null )
+         throw exception;
+      return value;
+   }
+
+   /**
+    * @return the failure of the name, null if the operation succeeded
+    */
+   public NamingException getException()
+   {
+      return exception;
+   }
+
+   /**
+    * @return the version of the name of a versioned lookup, -1 otherwise
+    */
+   public long getVersion()
+   {
+      return version;
+   }
+
+   public boolean isFailure()
+   {
+      return exception != null;
+   }
+
+   public String toString()
+   {
+      StringBuffer tmp = new StringBuffer("NamingResult[");
+      if( exception != null )
+         tmp.append("exception=").append(exception);
+      else
+         tmp.append("value=").append(value);
+      tmp.append(']');
+      return tmp.toString();
+   }
+}
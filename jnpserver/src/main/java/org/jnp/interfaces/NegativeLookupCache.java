@@ -0,0 +1,162 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NameNotFoundException;
+
+import org.jboss.logging.Logger;
+
+/** The client side cache of the lookups that failed with a
+ NameNotFoundException, enabled by the jnp.negativeCacheTTL property. A
+ cached failure is rethrown without asking the naming server until its time
+ to live expires. Contexts with the same cache settings share one cache.
+
+ @version $Revision$
+ */
+class NegativeLookupCache
+{
+   private static Logger log = Logger.getLogger(NegativeLookupCache.class);
+
+   /** The default maximum number of entries */
+   static final int DEFAULT_MAX_SIZE = 1000;
+
+   /** The caches by their settings */
+   private static final HashMap caches = new HashMap();
+
+   /** The lookups answered from a negative cache */
+   static final AtomicLong hits = new AtomicLong();
+   /** The lookups checked against a negative cache that went to the server */
+   static final AtomicLong misses = new AtomicLong();
+
+   private final long ttl;
+   private final Map entries;
+
+   /**
+    * Get the negative cache for the settings of a naming environment.
+    *
+    * @param env the environment
+    * @return the cache, null if the environment does not enable it
+    */
+   static NegativeLookupCache getCache(Hashtable env)
+   {
+      String value = (String) env.get(NamingContext.JNP_NEGATIVE_CACHE_TTL);
+      if (value == null)
+         return null;
+      long ttl = 0;
+      int maxSize = DEFAULT_MAX_SIZE;
+      try
+      {
+         ttl = Long.parseLong(value);
+         value = (String) env.get(NamingContext.JNP_NEGATIVE_CACHE_MAX_SIZE);
+         if (value != null)
+            maxSize = Integer.parseInt(value);
+      }
+      catch (Exception e)
+      {
+         log.debug("Invalid negative lookup cache settings", e);
+      }
+      if (ttl <= 0 || maxSize <= 0)
+         return null;
+
+      String key = ttl + ";" + maxSize;
+      synchronized (caches)
+      {
+         NegativeLookupCache cache = (NegativeLookupCache) caches.get(key);
+         if (cache == null)
+         {
+            cache = new NegativeLookupCache(ttl, maxSize);
+            caches.put(key, cache);
+         }
+         return cache;
+      }
+   }
+
+   private NegativeLookupCache(long ttl, final int maxSize)
+   {
+      this.ttl = ttl;
+      this.entries = new LinkedHashMap(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(Map.Entry eldest)
+         {
+            return size() > maxSize;
+         }
+      };
+   }
+
+   /**
+    * Check for a cached failure of a lookup, counting the hit or miss.
+    *
+    * @param key the server and name of the lookup
+    * @return a new NameNotFoundException if the lookup is known to fail,
+    *    null otherwise
+    */
+   NameNotFoundException check(LookupCache.Key key)
+   {
+      Entry entry;
+      synchronized (this)
+      {
+         entry = (Entry) entries.get(key);
+         if (entry != null && System.currentTimeMillis() > entry.expires)
+         {
+            entries.remove(key);
+            entry = null;
+         }
+      }
+      if (entry == null)
+      {
+         misses.incrementAndGet();
+         return null;
+      }
+      hits.incrementAndGet();
+      return new NameNotFoundException(entry.explanation);
+   }
+
+   synchronized void put(LookupCache.Key key, NameNotFoundException e)
+   {
+      entries.put(key, new Entry(e.getExplanation(), System.currentTimeMillis() + ttl));
+   }
+
+   synchronized void remove(LookupCache.Key key)
+   {
+      entries.remove(key);
+   }
+
+   private static class Entry
+   {
+      final String explanation;
+      final long expires;
+
+      Entry(String explanation, long expires)
+      {
+         this.explanation = explanation;
+         this.expires = expires;
+      }
+   }
+}
@@ -0,0 +1,191 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.spi.ObjectFactory;
+
+import org.jboss.logging.Logger;
+
+/** The cache of the ObjectFactory instances that resolve the References
+ returned by lookups, enabled by the jnp.objectFactoryCache property. A
+ factory is loaded and instantiated once per factory class name and thread
+ context ClassLoader, instead of on every lookup as NamingManager does. The
+ objects resolved from References that carry a jnp.shareable RefAddr are
+ cached as well, per Reference and ClassLoader.
+
+ The caches hold their ClassLoaders weakly. The factories and objects are
+ held softly, since their classes reference the loader that defined them.
+
+ @version $Revision$
+ */
+class ObjectFactoryCache
+{
+   private static Logger log = Logger.getLogger(ObjectFactoryCache.class);
+
+   /** The maximum number of shared objects per ClassLoader */
+   static final int MAX_OBJECTS = 1000;
+
+   /** The factories found in the cache */
+   static final AtomicLong factoryHits = new AtomicLong();
+   /** The factories loaded and instantiated */
+   static final AtomicLong factoryMisses = new AtomicLong();
+   /** The shareable References whose object was found in the cache */
+   static final AtomicLong objectHits = new AtomicLong();
+   /** The shareable References resolved by their factory */
+   static final AtomicLong objectMisses = new AtomicLong();
+
+   /** The Map of factory class name to SoftReference of the factory by ClassLoader */
+   private static final WeakHashMap factories = new WeakHashMap();
+   /** The LRU Map of Reference to SoftReference of the object by ClassLoader */
+   private static final WeakHashMap objects = new WeakHashMap();
+
+   /**
+    * @param env the naming environment, may be null
+    * @return true if the environment enables the cache
+    */
+   static boolean isEnabled(Hashtable env)
+   {
+      return env != null
+         && Boolean.valueOf((String) env.get(NamingContext.JNP_OBJECT_FACTORY_CACHE)).booleanValue();
+   }
+
+   /**
+    * Get the factory of a Reference from the thread context ClassLoader.
+    *
+    * @param ref the reference
+    * @return the factory, null if the reference names none or it cannot be
+    *    loaded from the thread context ClassLoader
+    */
+   static ObjectFactory getFactory(Reference ref)
+   {
+      String className = ref.getFactoryClassName();
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      if (className == null || loader == null)
+         return null;
+      synchronized (factories)
+      {
+         Map byName = (Map) factories.get(loader);
+         SoftReference cached = byName != null ? (SoftReference) byName.get(className) : null;
+         ObjectFactory factory = cached != null ? (ObjectFactory) cached.get() : null;
+         if (factory != null)
+         {
+            factoryHits.incrementAndGet();
+            return factory;
+         }
+      }
+
+      factoryMisses.incrementAndGet();
+      ObjectFactory factory;
+      try
+      {
+         Class clazz = Class.forName(className, true, loader);
+         factory = (ObjectFactory) clazz.newInstance();
+      }
+      catch (Exception e)
+      {
+         // NamingManager also tries the factory location of the reference
+         if (log.isTraceEnabled())
+            log.trace("Failed to create the ObjectFactory " + className, e);
+         return null;
+      }
+      synchronized (factories)
+      {
+         Map byName = (Map) factories.get(loader);
+         if (byName == null)
+         {
+            byName = new HashMap();
+            factories.put(loader, byName);
+         }
+         byName.put(className, new SoftReference(factory));
+      }
+      return factory;
+   }
+
+   /**
+    * Resolve a Reference with its factory, sharing the object of a
+    * reference marked shareable.
+    */
+   static Object getObjectInstance(ObjectFactory factory, Reference ref, Name name,
+      Context ctx, Hashtable env) throws Exception
+   {
+      if (isShareable(ref) == false)
+         return factory.getObjectInstance(ref, name, ctx, env);
+
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      synchronized (objects)
+      {
+         Map byRef = (Map) objects.get(loader);
+         SoftReference cached = byRef != null ? (SoftReference) byRef.get(ref) : null;
+         Object object = cached != null ? cached.get() : null;
+         if (object != null)
+         {
+            objectHits.incrementAndGet();
+            return object;
+         }
+      }
+
+      objectMisses.incrementAndGet();
+      Object object = factory.getObjectInstance(ref, name, ctx, env);
+      if (object != null)
+      {
+         synchronized (objects)
+         {
+            Map byRef = (Map) objects.get(loader);
+            if (byRef == null)
+            {
+               byRef = new LinkedHashMap(16, 0.75f, true)
+               {
+                  private static final long serialVersionUID = 1L;
+
+                  protected boolean removeEldestEntry(Map.Entry eldest)
+                  {
+                     return size() > MAX_OBJECTS;
+                  }
+               };
+               objects.put(loader, byRef);
+            }
+            byRef.put(ref, new SoftReference(object));
+         }
+      }
+      return object;
+   }
+
+   // Private -------------------------------------------------------
+
+   private static boolean isShareable(Reference ref)
+   {
+      RefAddr addr = ref.get(NamingContext.JNP_SHAREABLE);
+      return addr != null && "true".equals(addr.getContent());
+   }
+}
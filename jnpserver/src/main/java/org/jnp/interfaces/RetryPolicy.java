@@ -0,0 +1,51 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+/** Decides if and when NamingContext retries a call to the naming server
+ that failed with a java.rmi.ConnectException. Such a call never reached the
+ server, so every operation can be retried. The policy of a context is
+ configured by the jnp.retryPolicy property, naming an implementation with a
+ public constructor that accepts the Hashtable environment or a default
+ constructor. BackoffRetryPolicy is used by default.
+
+ @version $Revision$
+ */
+public interface RetryPolicy
+{
+   /**
+    * Called once for every call to the naming server, before its first
+    * attempt.
+    */
+   void startCall();
+
+   /**
+    * Decide if a call is retried after a ConnectException.
+    *
+    * @param retries the number of retries already made for the call
+    * @param previousDelay the delay in ms before the previous retry, 0 for
+    *    the first retry
+    * @param elapsed the time in ms since the first attempt of the call
+    * @return the delay in ms before the retry, -1 to fail the call
+    */
+   long getRetryDelay(int retries, long previousDelay, long elapsed);
+}
@@ -0,0 +1,408 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+import org.jboss.logging.Logger;
+
+/** The registry of the naming server stubs obtained from the bootstrap
+ ports, keyed by host:port. A stub is held until it goes unused for its idle
+ timeout or a call through it fails. Concurrent requests for a server that is
+ not registered share a single bootstrap connection, and the health of every
+ server that was contacted is tracked.
+
+ When jnp.breakerThreshold is set, the circuit breaker of a server opens
+ after that many failures within jnp.breakerWindow ms. Requests for the stub
+ of an open server fail at once with a ServiceUnavailableException, so
+ NamingContext moves on to the next provider url. After jnp.breakerOpenTime
+ ms a background probe bootstraps the server again: it closes the circuit if
+ it succeeds and keeps it open for another period if not.
+
+ @version $Revision$
+ */
+class ServerRegistry
+{
+   private static Logger log = Logger.getLogger(ServerRegistry.class);
+
+   /** The default time in ms a stub is kept without being used */
+   static final long DEFAULT_IDLE_TIMEOUT = 600000;
+   /** The default time in ms in which failures open a circuit */
+   static final long DEFAULT_BREAKER_WINDOW = 10000;
+   /** The default time in ms a circuit stays open before it is probed */
+   static final long DEFAULT_BREAKER_OPEN_TIME = 5000;
+
+   /** The health states of a server */
+   static final int UNKNOWN = 0;
+   static final int HEALTHY = 1;
+   static final int FAILED = 2;
+   static final int OPEN = 3;
+   static final int HALF_OPEN = 4;
+
+   /** The Entry of every contacted server by host:port */
+   private static final ConcurrentHashMap entries = new ConcurrentHashMap();
+   /** The bootstraps in progress by host:port */
+   private static final SingleFlight bootstraps = new SingleFlight();
+   /** The thread of the probes of the open circuits */
+   private static ScheduledExecutorService probes;
+
+   /**
+    * Get the registered stub of a server.
+    *
+    * @param hostKey the host:port of the server
+    * @return the stub, null if none is registered or it was idle too long
+    */
+   static Naming get(String hostKey)
+   {
+      Entry entry = (Entry) entries.get(hostKey);
+      if (entry == null)
+         return null;
+      return entry.use(System.currentTimeMillis());
+   }
+
+   /**
+    * Get the registered stub of a server, bootstrapping it if there is none.
+    * Only one thread runs the bootstrap of a server, the others wait for its
+    * result.
+    *
+    * @param hostKey the host:port of the server
+    * @param bootstrap obtains the stub from the server
+    * @param env the naming environment with the idle timeout and circuit
+    *    breaker settings
+    * @return the stub
+    * @throws NamingException if the bootstrap failed or the circuit of the
+    *    server is open
+    */
+   static Naming get(final String hostKey, final Callable bootstrap, Hashtable env)
+      throws NamingException
+   {
+      Entry entry = (Entry) entries.get(hostKey);
+      if (entry != null)
+      {
+         Naming server = entry.use(System.currentTimeMillis());
+         if (server != null)
+            return server;
+         if (entry.isOpen())
+            throw new ServiceUnavailableException("The circuit breaker of server " + hostKey + " is open");
+      }
+      final long idleTimeout = getLong(env, NamingContext.JNP_SERVER_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+      getEntry(hostKey).configure(bootstrap,
+         (int) getLong(env, NamingContext.JNP_BREAKER_THRESHOLD, 0),
+         getLong(env, NamingContext.JNP_BREAKER_WINDOW, DEFAULT_BREAKER_WINDOW),
+         getLong(env, NamingContext.JNP_BREAKER_OPEN_TIME, DEFAULT_BREAKER_OPEN_TIME));
+
+      try
+      {
+         return (Naming) bootstraps.run(hostKey, new Callable()
+         {
+            public Object call() throws Exception
+            {
+               Naming server = null;
+               try
+               {
+                  server = (Naming) bootstrap.call();
+                  return server;
+               }
+               finally
+               {
+                  register(hostKey, server, idleTimeout);
+               }
+            }
+         });
+      }
+      catch (ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+         if (cause instanceof NamingException)
+            throw (NamingException) cause;
+         NamingException ex = new CommunicationException("Failed to connect to server " + hostKey);
+         ex.setRootCause(cause);
+         throw ex;
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         NamingException ex = new CommunicationException("Interrupted while connecting to server " + hostKey);
+         ex.setRootCause(e);
+         throw ex;
+      }
+   }
+
+   /**
+    * Drop the stub of a server.
+    */
+   static void remove(String hostKey)
+   {
+      Entry entry = (Entry) entries.get(hostKey);
+      if (entry != null)
+         entry.server = null;
+   }
+
+   /**
+    * Drop the stub of a server after a call through it failed, counting the
+    * failure against its circuit breaker.
+    */
+   static void failed(String hostKey)
+   {
+      Entry entry = (Entry) entries.get(hostKey);
+      if (entry != null)
+         entry.failed();
+   }
+
+   /**
+    * @param hostKey the host:port of a server
+    * @return the health state of the server, UNKNOWN if it was not contacted
+    */
+   static int getHealth(String hostKey)
+   {
+      Entry entry = (Entry) entries.get(hostKey);
+      return entry == null ? UNKNOWN : entry.state;
+   }
+
+   static Entry getEntry(String hostKey)
+   {
+      Entry entry = (Entry) entries.get(hostKey);
+      if (entry == null)
+      {
+         entry = new Entry(hostKey);
+         Entry existing = (Entry) entries.putIfAbsent(hostKey, entry);
+         if (existing != null)
+            entry = existing;
+      }
+      return entry;
+   }
+
+   static long getLong(Hashtable env, String name, long defaultValue)
+   {
+      String value = (String) env.get(name);
+      if (value != null)
+      {
+         try
+         {
+            return Long.parseLong(value);
+         }
+         catch (NumberFormatException e)
+         {
+            log.debug("Invalid " + name + ": " + value, e);
+         }
+      }
+      return defaultValue;
+   }
+
+   private static synchronized ScheduledExecutorService getProbes()
+   {
+      if (probes == null)
+         probes = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ServerRegistry probe"));
+      return probes;
+   }
+
+   /**
+    * Record the result of a bootstrap.
+    *
+    * @param server the stub, null if the bootstrap failed
+    */
+   private static void register(String hostKey, Naming server, long idleTimeout)
+   {
+      Entry entry = getEntry(hostKey);
+      if (server != null)
+         entry.setServer(server, idleTimeout);
+      else
+         entry.failed();
+      purgeIdle();
+   }
+
+   /**
+    * Forget the servers whose stubs went unused beyond their idle timeout.
+    */
+   private static void purgeIdle()
+   {
+      long now = System.currentTimeMillis();
+      Iterator iter = entries.values().iterator();
+      while (iter.hasNext())
+      {
+         Entry entry = (Entry) iter.next();
+         if (entry.isIdle(now))
+            entries.remove(entry.hostKey, entry);
+      }
+   }
+
+   /**
+    * The stub, health state and circuit breaker of a server.
+    */
+   static class Entry
+   {
+      final String hostKey;
+      volatile Naming server;
+      volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+      volatile long lastUsed;
+      volatile int state = UNKNOWN;
+      volatile int failures;
+      volatile long lastFailure;
+      /** The bootstrap used by the probe of an open circuit */
+      private Callable bootstrap;
+      private int threshold;
+      private long window;
+      private long openTime;
+      private long windowStart;
+
+      Entry(String hostKey)
+      {
+         this.hostKey = hostKey;
+         this.lastUsed = System.currentTimeMillis();
+      }
+
+      synchronized void configure(Callable bootstrap, int threshold, long window, long openTime)
+      {
+         this.bootstrap = bootstrap;
+         this.threshold = threshold;
+         this.window = window;
+         this.openTime = openTime;
+      }
+
+      synchronized void setServer(Naming server, long idleTimeout)
+      {
+         this.server = server;
+         this.idleTimeout = idleTimeout;
+         lastUsed = System.currentTimeMillis();
+         state = HEALTHY;
+         failures = 0;
+      }
+
+      synchronized void failed()
+      {
+         long now = System.currentTimeMillis();
+         server = null;
+         lastFailure = now;
+         if (now - windowStart > window)
+         {
+            windowStart = now;
+            failures = 0;
+         }
+         failures ++;
+         if (state == OPEN || state == HALF_OPEN)
+            return;
+         if (threshold > 0 && failures >= threshold)
+         {
+            log.warn("Opening the circuit breaker of server " + hostKey + " after "
+               + failures + " failures");
+            state = OPEN;
+            scheduleProbe();
+         }
+         else
+         {
+            state = FAILED;
+         }
+      }
+
+      boolean isOpen()
+      {
+         int s = state;
+         return s == OPEN || s == HALF_OPEN;
+      }
+
+      private void scheduleProbe()
+      {
+         getProbes().schedule(new Runnable()
+         {
+            public void run()
+            {
+               probe();
+            }
+         }, openTime, TimeUnit.MILLISECONDS);
+      }
+
+      /**
+       * Bootstrap the server of an open circuit, closing the circuit if it
+       * succeeds.
+       */
+      void probe()
+      {
+         Callable probeBootstrap;
+         synchronized (this)
+         {
+            // A forgotten server is not probed
+            if (entries.get(hostKey) != this || state != OPEN)
+               return;
+            state = HALF_OPEN;
+            probeBootstrap = bootstrap;
+         }
+         try
+         {
+            Naming probed = (Naming) probeBootstrap.call();
+            setServer(probed, idleTimeout);
+            log.info("Closed the circuit breaker of server " + hostKey);
+         }
+         catch (Exception e)
+         {
+            if (log.isTraceEnabled())
+               log.trace("Probe of server " + hostKey + " failed", e);
+            synchronized (this)
+            {
+               lastFailure = System.currentTimeMillis();
+               state = OPEN;
+            }
+            scheduleProbe();
+         }
+      }
+
+      Naming use(long now)
+      {
+         Naming s = server;
+         if (s != null)
+         {
+            if (now - lastUsed > idleTimeout)
+            {
+               synchronized (this)
+               {
+                  if (server == s)
+                     server = null;
+               }
+               return null;
+            }
+            lastUsed = now;
+         }
+         return s;
+      }
+
+      boolean isIdle(long now)
+      {
+         return now - lastUsed > idleTimeout;
+      }
+
+      public String toString()
+      {
+         return "ServerRegistry.Entry[" + hostKey + ", state=" + state
+            + ", failures=" + failures + ']';
+      }
+   }
+}
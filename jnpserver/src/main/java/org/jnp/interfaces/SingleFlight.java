@@ -0,0 +1,79 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.jboss.logging.Logger;
+
+/** Runs one call at a time per key: the threads that ask for a key while its
+ call is in progress wait for the result of that call instead of running
+ their own. A call that records its result, such as in a cache, does so
+ before the key is released, so later threads find the recorded result.
+
+ @version $Revision$
+ */
+class SingleFlight
+{
+   private static Logger log = Logger.getLogger(SingleFlight.class);
+
+   /** The FutureTask of the call in progress by key */
+   private final ConcurrentHashMap calls = new ConcurrentHashMap();
+
+   /**
+    * Run a call, or wait for the result of the call in progress with the
+    * same key.
+    *
+    * @param key the key of the call
+    * @param call the call to run if none is in progress
+    * @return the result of the call
+    * @throws ExecutionException with the exception the call threw
+    * @throws InterruptedException if interrupted while waiting for the call
+    *    of another thread
+    */
+   Object run(Object key, Callable call)
+      throws ExecutionException, InterruptedException
+   {
+      FutureTask task = new FutureTask(call);
+      FutureTask pending = (FutureTask) calls.putIfAbsent(key, task);
+      if (pending == null)
+      {
+         pending = task;
+         try
+         {
+            task.run();
+         }
+         finally
+         {
+            calls.remove(key, task);
+         }
+      }
+      else if (log.isTraceEnabled())
+      {
+         log.trace("Waiting for the call in progress for " + key);
+      }
+      return pending.get();
+   }
+}
@@ -24,7 +24,9 @@ package org.jnp.interfaces;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.Hashtable;
 import javax.net.SocketFactory;
@@ -89,87 +91,40 @@ public class TimedSocketFactory extends SocketFactory
       return socket;
    }
 
+   /** Connect a socket, waiting up to connectTimeout milliseconds for the
+    connection to be established before throwing a ConnectException.
+    */
    protected Socket createSocket(InetAddress hostAddr, int port,
       InetAddress localAddr, int localPort, int connectTimeout)
       throws IOException
    {
-      ConnectThread t = new ConnectThread();
-      Socket socket = t.createSocket(hostAddr, port, localAddr, localPort, connectTimeout);
+      Socket socket = new Socket();
+      try
+      {
+         socket.bind(new InetSocketAddress(localAddr, localPort));
+         socket.connect(new InetSocketAddress(hostAddr, port), connectTimeout);
+      }
+      catch(SocketTimeoutException e)
+      {
+         close(socket);
+         throw new ConnectException("Connect attempt timed out");
+      }
+      catch(IOException e)
+      {
+         close(socket);
+         throw e;
+      }
       return socket;
    }
 
-   /** A subclass of Thread used to time the blocking connect operation
-    and notify the thread attempting the socket connect of a timeout.
-    */
-   class ConnectThread extends Thread
+   private static void close(Socket socket)
    {
-      IOException ex;
-      InetAddress hostAddr;
-      InetAddress localAddr;
-      int port;
-      int localPort;
-      int connectTimeout;
-      Socket socket;
-
-      ConnectThread()
-      {
-         super("JNP ConnectThread");
-         super.setDaemon(true);
-      }
-
-      /** Perform the connection in a background thread and wait upto
-       connectTimeout milliseconds for it to complete before throwing
-       a ConnectionException
-       */
-      Socket createSocket(InetAddress hostAddr, int port,
-         InetAddress localAddr, int localPort, int connectTimeout)
-         throws IOException
+      try
       {
-         this.hostAddr = hostAddr;
-         this.port = port;
-         this.localAddr = localAddr;
-         this.localPort = localPort;
-         this.connectTimeout = connectTimeout;
-
-         try
-         {
-            synchronized( this )
-            {
-               // Perform the socket connection in a background thread
-               this.start();
-               // Wait for upto connectTimeout milliseconds for the connection
-               this.wait(connectTimeout);
-            }
-         }
-         catch(InterruptedException e)
-         {
-            throw new ConnectException("Connect attempt timed out");
-         }
-
-         // See if the connect thread exited due to an exception
-         if( ex != null )
-            throw ex;
-         // If socket is null we timed out while waiting
-         if( socket == null )
-            throw new ConnectException("Connect attempt timed out");
-
-         return socket;
+         socket.close();
       }
-
-      public void run()
+      catch(IOException ignored)
       {
-         try
-         {
-            socket = new Socket(hostAddr, port, localAddr, localPort);
-            synchronized( this )
-            {
-               this.notify();
-            }
-         }
-         catch(IOException e)
-         {
-            this.ex = e;
-         }
       }
    }
 }
@@ -0,0 +1,240 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/** Unix domain socket channels, for the clients of a naming server on the
+ same host. They are only available from JDK 16, so they are reached by
+ reflection and isSupported is false on older JDKs.
+
+ @version $Revision$
+ */
+public class UnixSockets
+{
+   private static Method addressOf;
+   private static Object unixFamily;
+   private static Method openServer;
+   private static Method openClient;
+   private static Method bind;
+
+   static
+   {
+      try
+      {
+         Class addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+         addressOf = addressClass.getMethod("of", new Class[] {String.class});
+         Class familyClass = Class.forName("java.net.ProtocolFamily");
+         unixFamily = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+         openServer = ServerSocketChannel.class.getMethod("open", new Class[] {familyClass});
+         openClient = SocketChannel.class.getMethod("open", new Class[] {familyClass});
+         bind = ServerSocketChannel.class.getMethod("bind", new Class[] {SocketAddress.class, int.class});
+      }
+      catch (Exception e)
+      {
+         addressOf = null;
+      }
+   }
+
+   private UnixSockets()
+   {
+   }
+
+   /**
+    * @return true if the JDK supports unix domain sockets
+    */
+   public static boolean isSupported()
+   {
+      return addressOf != null;
+   }
+
+   /**
+    * Listen on a unix domain socket, replacing a stale socket left at its
+    * path by a server that did not remove it. Any other file at the path is
+    * left alone and the bind fails.
+    *
+    * @param path the path of the socket
+    * @param backlog the listen queue depth
+    * @return the bound channel
+    * @throws IOException if the socket cannot be bound or the JDK does not
+    *    support unix domain sockets
+    */
+   public static ServerSocketChannel bind(String path, int backlog) throws IOException
+   {
+      SocketAddress address = getAddress(path);
+      File file = new File(path);
+      if (file.exists())
+      {
+         if (file.isFile() || file.isDirectory())
+            throw new BindException(path + " exists and is not a socket");
+         try
+         {
+            connect(path).close();
+            throw new BindException(path + " is in use");
+         }
+         catch (ConnectException e)
+         {
+            // Nobody is listening on the socket
+            file.delete();
+         }
+      }
+      ServerSocketChannel channel = (ServerSocketChannel) invoke(openServer, null, unixFamily);
+      try
+      {
+         invoke(bind, channel, new Object[] {address, Integer.valueOf(backlog)});
+      }
+      catch (IOException e)
+      {
+         channel.close();
+         throw e;
+      }
+      return channel;
+   }
+
+   /**
+    * Connect to a unix domain socket.
+    *
+    * @param path the path of the socket
+    * @return the connected channel, in blocking mode
+    * @throws IOException if the socket cannot be connected to or the JDK
+    *    does not support unix domain sockets
+    */
+   public static SocketChannel connect(String path) throws IOException
+   {
+      SocketAddress address = getAddress(path);
+      SocketChannel channel = (SocketChannel) invoke(openClient, null, unixFamily);
+      try
+      {
+         channel.connect(address);
+      }
+      catch (IOException e)
+      {
+         channel.close();
+         throw e;
+      }
+      return channel;
+   }
+
+   /**
+    * Get a stream that reads a blocking channel. Unlike the streams of
+    * java.nio.channels.Channels, it does not hold the blocking lock of the
+    * channel while it waits, so another thread can write at the same time.
+    */
+   public static InputStream getInputStream(final SocketChannel channel)
+   {
+      return new InputStream()
+      {
+         public int read() throws IOException
+         {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+         }
+
+         public int read(byte[] b, int off, int len) throws IOException
+         {
+            if (len == 0)
+               return 0;
+            return channel.read(ByteBuffer.wrap(b, off, len));
+         }
+
+         public void close() throws IOException
+         {
+            channel.close();
+         }
+      };
+   }
+
+   /**
+    * Get a stream that writes a blocking channel, without holding its
+    * blocking lock.
+    */
+   public static OutputStream getOutputStream(final SocketChannel channel)
+   {
+      return new OutputStream()
+      {
+         public void write(int b) throws IOException
+         {
+            write(new byte[] {(byte) b}, 0, 1);
+         }
+
+         public void write(byte[] b, int off, int len) throws IOException
+         {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining())
+               channel.write(buffer);
+         }
+
+         public void close() throws IOException
+         {
+            channel.close();
+         }
+      };
+   }
+
+   // Private -------------------------------------------------------
+
+   private static SocketAddress getAddress(String path) throws IOException
+   {
+      if (isSupported() == false)
+         throw new IOException("Unix domain sockets need JDK 16 or later");
+      return (SocketAddress) invoke(addressOf, null, path);
+   }
+
+   private static Object invoke(Method method, Object target, Object arg) throws IOException
+   {
+      return invoke(method, target, new Object[] {arg});
+   }
+
+   private static Object invoke(Method method, Object target, Object[] args) throws IOException
+   {
+      try
+      {
+         return method.invoke(target, args);
+      }
+      catch (InvocationTargetException e)
+      {
+         Throwable cause = e.getTargetException();
+         if (cause instanceof IOException)
+            throw (IOException) cause;
+         IOException ex = new IOException(cause.toString());
+         ex.initCause(cause);
+         throw ex;
+      }
+      catch (IllegalAccessException e)
+      {
+         IOException ex = new IOException(e.toString());
+         ex.initCause(e);
+         throw ex;
+      }
+   }
+}
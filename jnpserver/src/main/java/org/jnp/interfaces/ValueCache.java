@@ -0,0 +1,259 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Name;
+import javax.naming.NamingException;
+
+import org.jboss.logging.Logger;
+
+/** The client side cache of the values unmarshalled from the
+ MarshalledValuePairs returned by lookups, enabled by the jnp.valueCache
+ property. Unlike the LookupCache, every lookup still asks the naming
+ server, but a pair with the name and version of a cached value is not
+ unmarshalled again. The values are cached per thread context ClassLoader,
+ held weakly so a cache does not keep an undeployed loader alive, and only
+ for bindings marked immutable by their binder, under the
+ jnp.valueCachePrefixes, or of the jnp.valueCacheTypes classes or of String
+ and the primitive wrappers. Other values are unmarshalled for every lookup,
+ as each caller may modify its copy. Contexts with the same cache settings
+ share one cache.
+
+ @version $Revision$
+ */
+class ValueCache
+{
+   private static Logger log = Logger.getLogger(ValueCache.class);
+
+   /** The default maximum number of values per ClassLoader */
+   static final int DEFAULT_MAX_SIZE = 1000;
+
+   /** The classes whose instances are always shared */
+   private static final HashSet IMMUTABLE_TYPES = new HashSet();
+   static
+   {
+      Class[] types = {String.class, Boolean.class, Byte.class, Character.class,
+         Short.class, Integer.class, Long.class, Float.class, Double.class};
+      for (int i = 0; i < types.length; i ++)
+         IMMUTABLE_TYPES.add(types[i].getName());
+   }
+
+   /** The caches by their settings */
+   private static final HashMap caches = new HashMap();
+
+   /** The lookups whose value was found in a value cache */
+   static final AtomicLong hits = new AtomicLong();
+   /** The lookups checked against a value cache that unmarshalled the value */
+   static final AtomicLong misses = new AtomicLong();
+
+   /** The name prefixes whose values are shared */
+   private final Name[] prefixes;
+   /** The class names whose instances are shared */
+   private final HashSet types;
+   private final int maxSize;
+   /** The LRU map of Key to the SoftReference of the value by ClassLoader */
+   private final WeakHashMap loaders = new WeakHashMap();
+
+   /**
+    * Get the value cache for the settings of a naming environment.
+    *
+    * @param env the environment
+    * @return the cache, null if the environment does not enable it
+    */
+   static ValueCache getCache(Hashtable env)
+   {
+      if (Boolean.valueOf((String) env.get(NamingContext.JNP_VALUE_CACHE)).booleanValue() == false)
+         return null;
+      String prefixes = (String) env.get(NamingContext.JNP_VALUE_CACHE_PREFIXES);
+      String types = (String) env.get(NamingContext.JNP_VALUE_CACHE_TYPES);
+      int maxSize = DEFAULT_MAX_SIZE;
+      try
+      {
+         String value = (String) env.get(NamingContext.JNP_VALUE_CACHE_MAX_SIZE);
+         if (value != null)
+            maxSize = Integer.parseInt(value);
+      }
+      catch (NumberFormatException e)
+      {
+         log.debug("Invalid value cache size, using the default", e);
+      }
+      if (maxSize <= 0)
+         return null;
+
+      String key = prefixes + ';' + types + ';' + maxSize;
+      synchronized (caches)
+      {
+         ValueCache cache = (ValueCache) caches.get(key);
+         if (cache == null)
+         {
+            try
+            {
+               cache = new ValueCache(prefixes, types, maxSize);
+            }
+            catch (NamingException e)
+            {
+               log.debug("Invalid jnp.valueCachePrefixes: " + prefixes, e);
+               return null;
+            }
+            caches.put(key, cache);
+         }
+         return cache;
+      }
+   }
+
+   private ValueCache(String prefixList, String typeList, int maxSize)
+      throws NamingException
+   {
+      NamingParser parser = new NamingParser();
+      StringTokenizer tokenizer = new StringTokenizer(prefixList == null ? "" : prefixList, ",");
+      prefixes = new Name[tokenizer.countTokens()];
+      for (int i = 0; i < prefixes.length; i ++)
+         prefixes[i] = parser.parse(tokenizer.nextToken().trim());
+      types = new HashSet(IMMUTABLE_TYPES);
+      tokenizer = new StringTokenizer(typeList == null ? "" : typeList, ", ");
+      while (tokenizer.hasMoreTokens())
+         types.add(tokenizer.nextToken());
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * Get the value of a pair, from the cache of the thread context
+    * ClassLoader if it was unmarshalled before.
+    *
+    * @param name the absolute name the pair was looked up with
+    * @param pair the pair returned by the naming server
+    * @return the value
+    */
+   Object get(Name name, MarshalledValuePair pair)
+      throws IOException, ClassNotFoundException
+   {
+      // A value by reference or of an older pair is not cached
+      if ((pair.value != null && MarshalledValuePair.getEnableCallByReference())
+         || pair.version == 0)
+         return pair.get();
+
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      Key key = new Key(name.toString(), pair.version);
+      synchronized (this)
+      {
+         Map values = (Map) loaders.get(loader);
+         if (values != null)
+         {
+            SoftReference ref = (SoftReference) values.get(key);
+            Object value = ref != null ? ref.get() : null;
+            if (value != null)
+            {
+               hits.incrementAndGet();
+               return value;
+            }
+         }
+      }
+      misses.incrementAndGet();
+      Object value = pair.get();
+      if (value != null && isShared(name, pair, value))
+      {
+         synchronized (this)
+         {
+            Map values = (Map) loaders.get(loader);
+            if (values == null)
+            {
+               values = createValues();
+               loaders.put(loader, values);
+            }
+            // The value may reference the loader, so it is held softly
+            values.put(key, new SoftReference(value));
+         }
+      }
+      return value;
+   }
+
+   // Private -------------------------------------------------------
+
+   private boolean isShared(Name name, MarshalledValuePair pair, Object value)
+   {
+      if (pair.immutable)
+         return true;
+      for (int i = 0; i < prefixes.length; i ++)
+      {
+         if (name.startsWith(prefixes[i]))
+            return true;
+      }
+      for (Class c = value.getClass(); c != null; c = c.getSuperclass())
+      {
+         if (types.contains(c.getName()))
+            return true;
+      }
+      return false;
+   }
+
+   private Map createValues()
+   {
+      return new LinkedHashMap(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(Map.Entry eldest)
+         {
+            return size() > maxSize;
+         }
+      };
+   }
+
+   /**
+    * The absolute name and the pair version of a cached value.
+    */
+   private static class Key
+   {
+      private final String name;
+      private final long version;
+
+      Key(String name, long version)
+      {
+         this.name = name;
+         this.version = version;
+      }
+
+      public int hashCode()
+      {
+         return name.hashCode() * 31 + (int) (version ^ (version >>> 32));
+      }
+
+      public boolean equals(Object obj)
+      {
+         if ((obj instanceof Key) == false)
+            return false;
+         Key key = (Key) obj;
+         return version == key.version && name.equals(key.name);
+      }
+   }
+}
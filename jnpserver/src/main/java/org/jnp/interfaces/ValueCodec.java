@@ -0,0 +1,57 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.IOException;
+
+/** An encoding of bound values faster than Java serialization for the
+ values it supports. The codecs of a NamingContext are named by the
+ jnp.valueCodecs property, and a value bound through it is encoded by the
+ first of them that can encode it instead of being serialized. A codec needs
+ a public no-arg constructor, as it is instantiated by class name wherever
+ its values are decoded.
+
+ @version $Revision$
+ */
+public interface ValueCodec
+{
+   /**
+    * @param value a value to bind
+    * @return true if this codec can encode the value
+    */
+   public boolean canEncode(Object value);
+
+   /**
+    * @param value a value this codec can encode
+    * @return the encoded value
+    * @throws IOException if the value cannot be encoded
+    */
+   public byte[] encode(Object value) throws IOException;
+
+   /**
+    * @param bytes the bytes returned by encode
+    * @return a copy of the encoded value
+    * @throws IOException if the bytes cannot be decoded
+    * @throws ClassNotFoundException if a class of the value cannot be loaded
+    */
+   public Object decode(byte[] bytes) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,135 @@
+/*
+  * JBoss, Home of Professional Open Source
+  * Copyright 2005, JBoss Inc., and individual contributors as indicated
+  * by the @authors tag. See the copyright.txt in the distribution for a
+  * full listing of individual contributors.
+  *
+  * This is free software; you can redistribute it and/or modify it
+  * under the terms of the GNU Lesser General Public License as
+  * published by the Free Software Foundation; either version 2.1 of
+  * the License, or (at your option) any later version.
+  *
+  * This software is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  * Lesser General Public License for more details.
+  *
+  * You should have received a copy of the GNU Lesser General Public
+  * License along with this software; if not, write to the Free
+  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+  */
+package org.jnp.interfaces;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.logging.Logger;
+
+/** The ValueCodec instances by class name, and the codecs of the
+ jnp.valueCodecs property of an environment.
+
+ @version $Revision$
+ */
+class ValueCodecs
+{
+   private static Logger log = Logger.getLogger(ValueCodecs.class);
+
+   private static final ValueCodec[] NONE = {};
+
+   /** The ValueCodec by class name */
+   private static final ConcurrentHashMap codecs = new ConcurrentHashMap();
+   /** The ValueCodec[] by jnp.valueCodecs value */
+   private static final ConcurrentHashMap codecLists = new ConcurrentHashMap();
+
+   /**
+    * @param value a value to bind
+    * @param env the naming environment
+    * @return the first codec of the environment that can encode the value,
+    *    null for none
+    */
+   static ValueCodec getCodec(Object value, Hashtable env)
+   {
+      String names = (String) env.get(NamingContext.JNP_VALUE_CODECS);
+      if (names == null || value == null)
+         return null;
+      ValueCodec[] list = (ValueCodec[]) codecLists.get(names);
+      if (list == null)
+      {
+         list = loadCodecs(names);
+         codecLists.put(names, list);
+      }
+      for (int i = 0; i < list.length; i ++)
+      {
+         if (list[i].canEncode(value))
+            return list[i];
+      }
+      return null;
+   }
+
+   /**
+    * @param className the class name of a codec
+    * @return the shared instance of the codec
+    * @throws IOException if the codec cannot be created
+    */
+   static ValueCodec getCodec(String className) throws IOException
+   {
+      ValueCodec codec = (ValueCodec) codecs.get(className);
+      if (codec == null)
+      {
+         try
+         {
+            Class clazz;
+            try
+            {
+               ClassLoader loader = Thread.currentThread().getContextClassLoader();
+               clazz = loader.loadClass(className);
+            }
+            catch (Exception e)
+            {
+               clazz = Class.forName(className, false, ValueCodecs.class.getClassLoader());
+            }
+            // The name comes from the pair, so only instantiate ValueCodecs
+            if (ValueCodec.class.isAssignableFrom(clazz) == false)
+               throw new IOException(className + " is not a ValueCodec");
+            codec = (ValueCodec) clazz.newInstance();
+         }
+         catch (IOException e)
+         {
+            throw e;
+         }
+         catch (Exception e)
+         {
+            IOException ex = new IOException("Failed to create the ValueCodec " + className);
+            ex.initCause(e);
+            throw ex;
+         }
+         ValueCodec existing = (ValueCodec) codecs.putIfAbsent(className, codec);
+         if (existing != null)
+            codec = existing;
+      }
+      return codec;
+   }
+
+   private static ValueCodec[] loadCodecs(String names)
+   {
+      ArrayList list = new ArrayList();
+      StringTokenizer tokenizer = new StringTokenizer(names, ", ");
+      while (tokenizer.hasMoreTokens())
+      {
+         String name = tokenizer.nextToken();
+         try
+         {
+            list.add(getCodec(name));
+         }
+         catch (IOException e)
+         {
+            log.warn("Ignoring the ValueCodec " + name, e);
+         }
+      }
+      return list.isEmpty() ? NONE : (ValueCodec[]) list.toArray(new ValueCodec[list.size()]);
+   }
+}
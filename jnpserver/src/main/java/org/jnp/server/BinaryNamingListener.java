@@ -0,0 +1,449 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.MarshalException;
+import java.rmi.UnmarshalException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.naming.Name;
+
+import org.jboss.logging.Logger;
+import org.jnp.interfaces.BinaryProtocol;
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingOperation;
+
+/** The listener of the binary naming protocol, on a TCP port and or a unix
+ domain socket. A single selector thread reads the request frames of all
+ the connections, applies them to the
+ naming server and queues the response frames, which are written with
+ gathering writes. The naming server operations are in memory, so they run
+ on the selector thread rather than being handed to a pool.
+
+ The requests of a client are not read while MAX_QUEUED bytes of its
+ responses wait to be written, so a client that sends requests without
+ reading the responses is held back by TCP flow control instead of growing
+ the heap of the server.
+
+ @see BinaryProtocol
+ @version $Revision$
+ */
+class BinaryNamingListener implements Runnable
+{
+   /** The bytes of queued responses beyond which the requests of a client
+    are left unanswered until the responses are written */
+   static final int MAX_QUEUED = 1024 * 1024;
+
+   private final Logger log;
+   private final Naming naming;
+   private final Selector selector;
+   /** The TCP channel, null if there is none */
+   private ServerSocketChannel tcpChannel;
+   private volatile boolean running = true;
+
+   /**
+    * @param log the logger of the server
+    * @param naming the naming server to call
+    * @throws IOException if the selector cannot be opened
+    */
+   BinaryNamingListener(Logger log, Naming naming) throws IOException
+   {
+      this.log = log;
+      this.naming = naming;
+      selector = Selector.open();
+   }
+
+   /**
+    * Bind a TCP port.
+    *
+    * @param bindAddress the interface to bind to, null for all
+    * @param port the port to bind to, 0 for any
+    * @param backlog the listen queue depth
+    * @return the bound channel, accepted from by accept
+    * @throws IOException if the port cannot be bound
+    */
+   ServerSocketChannel bind(InetAddress bindAddress, int port, int backlog) throws IOException
+   {
+      ServerSocketChannel channel = ServerSocketChannel.open();
+      try
+      {
+         channel.socket().bind(new InetSocketAddress(bindAddress, port), backlog);
+      }
+      catch (IOException e)
+      {
+         channel.close();
+         throw e;
+      }
+      tcpChannel = channel;
+      return channel;
+   }
+
+   /**
+    * @return the bound TCP port, -1 if there is none
+    */
+   int getLocalPort()
+   {
+      return tcpChannel != null ? tcpChannel.socket().getLocalPort() : -1;
+   }
+
+   /**
+    * Accept the connections of a bound channel once started.
+    *
+    * @param channel the channel
+    * @param replacement the Naming sent to these connections in place of the
+    *    naming server
+    */
+   void accept(ServerSocketChannel channel, Naming replacement) throws IOException
+   {
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_ACCEPT, replacement);
+   }
+
+   /**
+    * Start the selector thread.
+    */
+   void start()
+   {
+      Thread t = new Thread(this, "JNP Binary Listener");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   void stop()
+   {
+      running = false;
+      selector.wakeup();
+   }
+
+   public void run()
+   {
+      try
+      {
+         while (running)
+         {
+            try
+            {
+               selector.select();
+               Iterator keys = selector.selectedKeys().iterator();
+               while (keys.hasNext())
+               {
+                  SelectionKey key = (SelectionKey) keys.next();
+                  keys.remove();
+                  if (key.isValid() == false)
+                     continue;
+                  if (key.isAcceptable())
+                     accept(key);
+                  else
+                     handle(key);
+               }
+            }
+            catch (Throwable e)
+            {
+               if (running)
+                  log.error("Unexpected exception in the binary listener", e);
+            }
+         }
+      }
+      finally
+      {
+         close();
+      }
+   }
+
+   // Private -------------------------------------------------------
+
+   private void accept(SelectionKey key) throws IOException
+   {
+      ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+      boolean tcp = serverChannel == tcpChannel;
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null)
+      {
+         if (log.isTraceEnabled())
+            log.trace("Accepted binary client: " + channel);
+         channel.configureBlocking(false);
+         // A unix domain socket has no Socket
+         if (tcp)
+            channel.socket().setTcpNoDelay(true);
+         channel.register(selector, SelectionKey.OP_READ,
+            new Client(channel, (Naming) key.attachment()));
+      }
+   }
+
+   private void handle(SelectionKey key)
+   {
+      Client client = (Client) key.attachment();
+      try
+      {
+         if (key.isReadable())
+         {
+            if (client.channel.read(client.in) < 0)
+            {
+               client.channel.close();
+               return;
+            }
+         }
+         // Answer the buffered requests as long as the responses drain
+         boolean more;
+         do
+         {
+            more = readFrames(client);
+            flush(key, client);
+         }
+         while (more && client.out.isEmpty());
+      }
+      catch (IOException e)
+      {
+         log.debug("Closing binary client " + client.channel, e);
+         try
+         {
+            client.channel.close();
+         }
+         catch (IOException ignored)
+         {
+         }
+      }
+   }
+
+   /**
+    * Answer the complete request frames read so far, until MAX_QUEUED bytes
+    * of responses are queued.
+    *
+    * @return true if complete request frames are left unanswered
+    */
+   private boolean readFrames(Client client) throws IOException
+   {
+      ByteBuffer in = client.in;
+      in.flip();
+      int needed = 0;
+      boolean more = false;
+      while (in.remaining() >= 4)
+      {
+         if (client.queued >= MAX_QUEUED)
+         {
+            more = in.remaining() >= 4 + in.getInt(in.position());
+            break;
+         }
+         int length = in.getInt(in.position());
+         if (length < 5 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+            throw new IOException("Invalid frame length: " + length);
+         if (in.remaining() < 4 + length)
+         {
+            needed = 4 + length;
+            break;
+         }
+         in.getInt();
+         byte[] frame = new byte[length];
+         in.get(frame);
+         byte[] response = answer(frame, client.replacement);
+         client.out.addLast(ByteBuffer.wrap(response));
+         client.queued += response.length;
+      }
+      if (needed > in.capacity())
+      {
+         ByteBuffer bigger = ByteBuffer.allocate(needed);
+         bigger.put(in);
+         client.in = bigger;
+      }
+      else
+      {
+         in.compact();
+      }
+      return more;
+   }
+
+   /**
+    * Write the queued responses, waiting for the client when its socket
+    * buffer is full. The requests of the client are only read once all its
+    * responses are written.
+    */
+   private void flush(SelectionKey key, Client client) throws IOException
+   {
+      LinkedList out = client.out;
+      if (out.isEmpty() == false)
+      {
+         ByteBuffer[] buffers = new ByteBuffer[out.size()];
+         out.toArray(buffers);
+         client.queued -= client.channel.write(buffers);
+         while (out.isEmpty() == false && ((ByteBuffer) out.getFirst()).hasRemaining() == false)
+            out.removeFirst();
+      }
+      int ops = out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE;
+      if (key.interestOps() != ops)
+         key.interestOps(ops);
+   }
+
+   /**
+    * Apply a request to the naming server.
+    *
+    * @param frame the request frame after its length
+    * @param replacement the Naming sent in place of the naming server
+    * @return the response frame
+    */
+   private byte[] answer(byte[] frame, Naming replacement) throws IOException
+   {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+      int requestId = 0;
+      byte status = BinaryProtocol.STATUS_OK;
+      Object result;
+      try
+      {
+         requestId = in.readInt();
+         result = invoke(in.readByte(), in);
+      }
+      catch (Exception e)
+      {
+         status = BinaryProtocol.STATUS_EXCEPTION;
+         result = e;
+      }
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(baos);
+      try
+      {
+         writeHeader(out, requestId, status);
+         BinaryProtocol.writeValue(out, result, replacement);
+      }
+      catch (IOException e)
+      {
+         log.debug("Failed to marshal the result of request " + requestId, e);
+         baos.reset();
+         writeHeader(out, requestId, BinaryProtocol.STATUS_EXCEPTION);
+         BinaryProtocol.writeValue(out, new MarshalException("Failed to marshal the result: " + e), null);
+      }
+      byte[] response = baos.toByteArray();
+      int length = response.length - 4;
+      response[0] = (byte) (length >>> 24);
+      response[1] = (byte) (length >>> 16);
+      response[2] = (byte) (length >>> 8);
+      response[3] = (byte) length;
+      return response;
+   }
+
+   private static void writeHeader(DataOutputStream out, int requestId, byte status)
+      throws IOException
+   {
+      // The length is filled in once the frame is complete
+      out.writeInt(0);
+      out.writeInt(requestId);
+      out.writeByte(status);
+   }
+
+   private Object invoke(byte operation, DataInputStream in) throws Exception
+   {
+      switch (operation)
+      {
+         case BinaryProtocol.LOOKUP:
+            return naming.lookup(BinaryProtocol.readName(in));
+         case BinaryProtocol.BIND:
+         case BinaryProtocol.REBIND:
+         {
+            Name name = BinaryProtocol.readName(in);
+            String className = in.readBoolean() ? in.readUTF() : null;
+            Object obj = BinaryProtocol.readValue(in);
+            if (operation == BinaryProtocol.BIND)
+               naming.bind(name, obj, className);
+            else
+               naming.rebind(name, obj, className);
+            return null;
+         }
+         case BinaryProtocol.UNBIND:
+            naming.unbind(BinaryProtocol.readName(in));
+            return null;
+         case BinaryProtocol.LIST:
+            return naming.list(BinaryProtocol.readName(in));
+         case BinaryProtocol.LIST_BINDINGS:
+            return naming.listBindings(BinaryProtocol.readName(in));
+         case BinaryProtocol.CREATE_SUBCONTEXT:
+            return naming.createSubcontext(BinaryProtocol.readName(in));
+         case BinaryProtocol.LOOKUP_ALL:
+         {
+            // Each name takes at least its count of components
+            Name[] names = new Name[BinaryProtocol.readLength(in, 2)];
+            for (int i = 0; i < names.length; i ++)
+               names[i] = BinaryProtocol.readName(in);
+            return naming.lookupAll(names);
+         }
+         case BinaryProtocol.BATCH:
+         {
+            boolean atomic = in.readBoolean();
+            return naming.batch((NamingOperation[]) BinaryProtocol.readValue(in), atomic);
+         }
+         case BinaryProtocol.GET_VERSION:
+            return Long.valueOf(naming.getVersion(BinaryProtocol.readName(in)));
+         case BinaryProtocol.LOOKUP_VERSIONED:
+            return naming.lookupVersioned(BinaryProtocol.readName(in));
+         default:
+            throw new UnmarshalException("Unknown operation: " + operation);
+      }
+   }
+
+   private void close()
+   {
+      try
+      {
+         Iterator keys = selector.keys().iterator();
+         while (keys.hasNext())
+         {
+            SelectionKey key = (SelectionKey) keys.next();
+            key.channel().close();
+         }
+         selector.close();
+      }
+      catch (IOException e)
+      {
+         log.debug("Failed to close the binary listener", e);
+      }
+   }
+
+   /**
+    * The buffers of a connection.
+    */
+   private static class Client
+   {
+      final SocketChannel channel;
+      final Naming replacement;
+      ByteBuffer in = ByteBuffer.allocate(8192);
+      final LinkedList out = new LinkedList();
+      /** The bytes of out left to write */
+      long queued;
+
+      Client(SocketChannel channel, Naming replacement)
+      {
+         this.channel = channel;
+         this.replacement = replacement;
+      }
+   }
+}
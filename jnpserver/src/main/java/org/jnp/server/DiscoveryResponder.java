@@ -0,0 +1,159 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2006, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+
+import org.jboss.logging.Logger;
+
+/** The responder to the multicast discovery requests of NamingContext. A
+ request is the text GET_ADDRESS, optionally followed by :partitionName, and
+ is answered with the host:port of the bootstrap listener sent back to the
+ requesting socket. A request for another partition is ignored.
+
+ A single thread receives the requests into one packet and answers with one
+ preformatted reply packet, comparing the request bytes in place, so no
+ objects are created per request.
+
+ @version $Revision$
+ */
+class DiscoveryResponder implements Runnable
+{
+   private static final byte[] GET_ADDRESS = "GET_ADDRESS".getBytes();
+
+   private final Logger log;
+   private final MulticastSocket socket;
+   private final InetAddress group;
+   /** The partition name bytes, null to answer any partition */
+   private final byte[] partition;
+   private final DatagramPacket request;
+   private final DatagramPacket reply;
+   private volatile boolean running = true;
+
+   /**
+    * @param log the logger of the server
+    * @param group the multicast group address
+    * @param port the multicast group port
+    * @param partitionName the partition whose requests are answered, null
+    *    for all
+    * @param replyHost the host of the reply
+    * @param replyPort the port of the reply
+    * @throws IOException if the group cannot be joined
+    */
+   DiscoveryResponder(Logger log, InetAddress group, int port, String partitionName,
+      String replyHost, int replyPort) throws IOException
+   {
+      this.log = log;
+      this.group = group;
+      this.partition = partitionName == null ? null : partitionName.getBytes();
+      int size = GET_ADDRESS.length + 1 + (partition == null ? 0 : partition.length);
+      // Leave room to recognise a longer partition name
+      request = new DatagramPacket(new byte[size + 1], size + 1);
+      byte[] data = (replyHost + ':' + replyPort).getBytes();
+      reply = new DatagramPacket(data, data.length);
+      socket = new MulticastSocket(port);
+      socket.joinGroup(group);
+   }
+
+   public void run()
+   {
+      boolean trace = log.isTraceEnabled();
+      byte[] buf = request.getData();
+      while (running)
+      {
+         try
+         {
+            request.setLength(buf.length);
+            socket.receive(request);
+            if (matches(buf, request.getLength()) == false)
+            {
+               if (trace)
+                  log.trace("Ignored discovery request from " + request.getAddress());
+               continue;
+            }
+            reply.setAddress(request.getAddress());
+            reply.setPort(request.getPort());
+            socket.send(reply);
+         }
+         catch (IOException e)
+         {
+            // Stopped by normal means
+            if (running == false)
+               return;
+            log.debug("Failed to answer a discovery request", e);
+         }
+      }
+   }
+
+   void stop()
+   {
+      running = false;
+      try
+      {
+         socket.leaveGroup(group);
+      }
+      catch (IOException ignored)
+      {
+      }
+      socket.close();
+   }
+
+   int getLocalPort()
+   {
+      return socket.getLocalPort();
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * @return true if the request is GET_ADDRESS without a partition or with
+    *    the partition of this responder
+    */
+   private boolean matches(byte[] buf, int length)
+   {
+      int prefix = GET_ADDRESS.length;
+      if (length < prefix)
+         return false;
+      for (int i = 0; i < prefix; i ++)
+      {
+         if (buf[i] != GET_ADDRESS[i])
+            return false;
+      }
+      if (length == prefix)
+         return true;
+      if (buf[prefix] != ':')
+         return false;
+      if (partition == null)
+         return true;
+      if (length - prefix - 1 != partition.length)
+         return false;
+      for (int i = 0; i < partition.length; i ++)
+      {
+         if (buf[prefix + 1 + i] != partition[i])
+            return false;
+      }
+      return true;
+   }
+}
@@ -0,0 +1,341 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable hash array mapped trie from String keys to values. Updates
+ * never modify an existing trie, they return a new trie that shares all
+ * unchanged nodes with the original, so a trie can be read by any number of
+ * threads without locking.
+ *
+ * @version $Revision$
+ */
+final class HashTrie implements Serializable
+{
+   private static final long serialVersionUID = 1L;
+
+   /** The number of hash bits consumed per level */
+   private static final int BITS = 5;
+   private static final int MASK = (1 << BITS) - 1;
+
+   /** The empty trie */
+   static final HashTrie EMPTY = new HashTrie(null, 0);
+
+   private final Node root;
+   private final int size;
+
+   private HashTrie(Node root, int size)
+   {
+      this.root = root;
+      this.size = size;
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   public Object get(String key)
+   {
+      if (root == null)
+         return null;
+      return root.get(0, key.hashCode(), key);
+   }
+
+   /**
+    * @return a trie with key mapped to value, this trie if that was
+    *    already the case
+    */
+   public HashTrie put(String key, Object value)
+   {
+      boolean[] added = {false};
+      Node start = root != null ? root : BitmapNode.EMPTY;
+      Node newRoot = start.put(0, key.hashCode(), key, value, added);
+      if (newRoot == root)
+         return this;
+      return new HashTrie(newRoot, added[0] ? size + 1 : size);
+   }
+
+   /**
+    * @return a trie without key, this trie if key was not mapped
+    */
+   public HashTrie remove(String key)
+   {
+      if (root == null)
+         return this;
+      Node newRoot = root.remove(0, key.hashCode(), key);
+      if (newRoot == root)
+         return this;
+      if (newRoot == null)
+         return EMPTY;
+      return new HashTrie(newRoot, size - 1);
+   }
+
+   /**
+    * @return a new list of the values of this trie
+    */
+   public List values()
+   {
+      List values = new ArrayList(size);
+      if (root != null)
+         root.values(values);
+      return values;
+   }
+
+   private static Node createNode(int shift, String key1, Object value1,
+      int hash2, String key2, Object value2)
+   {
+      int hash1 = key1.hashCode();
+      if (hash1 == hash2)
+         return new CollisionNode(hash1, new String[] {key1, key2}, new Object[] {value1, value2});
+      boolean[] added = {false};
+      return BitmapNode.EMPTY
+         .put(shift, hash1, key1, value1, added)
+         .put(shift, hash2, key2, value2, added);
+   }
+
+   private static abstract class Node implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      abstract Object get(int shift, int hash, String key);
+      abstract Node put(int shift, int hash, String key, Object value, boolean[] added);
+      abstract Node remove(int shift, int hash, String key);
+      abstract void values(List values);
+   }
+
+   /**
+    * A node holding up to 32 slots selected by the hash bits of its level.
+    * The array holds a (key, value) pair per slot, or (null, child node)
+    * for a slot that is shared by more than one key.
+    */
+   private static final class BitmapNode extends Node
+   {
+      private static final long serialVersionUID = 1L;
+
+      static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+      private final int bitmap;
+      private final Object[] array;
+
+      BitmapNode(int bitmap, Object[] array)
+      {
+         this.bitmap = bitmap;
+         this.array = array;
+      }
+
+      private int index(int bit)
+      {
+         return Integer.bitCount(bitmap & (bit - 1));
+      }
+
+      Object get(int shift, int hash, String key)
+      {
+         int bit = 1 << ((hash >>> shift) & MASK);
+         if ((bitmap & bit) == 0)
+            return null;
+         int idx = index(bit);
+         Object k = array[2 * idx];
+         Object v = array[2 * idx + 1];
+         if (k == null)
+            return ((Node) v).get(shift + BITS, hash, key);
+         if (key.equals(k))
+            return v;
+         return null;
+      }
+
+      Node put(int shift, int hash, String key, Object value, boolean[] added)
+      {
+         int bit = 1 << ((hash >>> shift) & MASK);
+         int idx = index(bit);
+         if ((bitmap & bit) != 0)
+         {
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null)
+            {
+               Node child = ((Node) v).put(shift + BITS, hash, key, value, added);
+               if (child == v)
+                  return this;
+               return new BitmapNode(bitmap, copyWith(2 * idx + 1, child));
+            }
+            if (key.equals(k))
+            {
+               if (v == value)
+                  return this;
+               return new BitmapNode(bitmap, copyWith(2 * idx + 1, value));
+            }
+            // Two keys share this slot, push them down a level
+            added[0] = true;
+            Node child = createNode(shift + BITS, (String) k, v, hash, key, value);
+            Object[] newArray = copyWith(2 * idx, null);
+            newArray[2 * idx + 1] = child;
+            return new BitmapNode(bitmap, newArray);
+         }
+         added[0] = true;
+         Object[] newArray = new Object[array.length + 2];
+         System.arraycopy(array, 0, newArray, 0, 2 * idx);
+         newArray[2 * idx] = key;
+         newArray[2 * idx + 1] = value;
+         System.arraycopy(array, 2 * idx, newArray, 2 * idx + 2, array.length - 2 * idx);
+         return new BitmapNode(bitmap | bit, newArray);
+      }
+
+      Node remove(int shift, int hash, String key)
+      {
+         int bit = 1 << ((hash >>> shift) & MASK);
+         if ((bitmap & bit) == 0)
+            return this;
+         int idx = index(bit);
+         Object k = array[2 * idx];
+         Object v = array[2 * idx + 1];
+         if (k == null)
+         {
+            Node child = ((Node) v).remove(shift + BITS, hash, key);
+            if (child == v)
+               return this;
+            if (child != null)
+               return new BitmapNode(bitmap, copyWith(2 * idx + 1, child));
+         }
+         else if (key.equals(k) == false)
+         {
+            return this;
+         }
+         // Drop the slot
+         if (bitmap == bit)
+            return null;
+         Object[] newArray = new Object[array.length - 2];
+         System.arraycopy(array, 0, newArray, 0, 2 * idx);
+         System.arraycopy(array, 2 * idx + 2, newArray, 2 * idx, newArray.length - 2 * idx);
+         return new BitmapNode(bitmap ^ bit, newArray);
+      }
+
+      void values(List values)
+      {
+         for (int i = 0; i < array.length; i += 2)
+         {
+            if (array[i] == null)
+               ((Node) array[i + 1]).values(values);
+            else
+               values.add(array[i + 1]);
+         }
+      }
+
+      private Object[] copyWith(int i, Object value)
+      {
+         Object[] newArray = new Object[array.length];
+         System.arraycopy(array, 0, newArray, 0, array.length);
+         newArray[i] = value;
+         return newArray;
+      }
+   }
+
+   /**
+    * A node holding the keys whose hash codes are identical.
+    */
+   private static final class CollisionNode extends Node
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final int hash;
+      private final String[] keys;
+      private final Object[] values;
+
+      CollisionNode(int hash, String[] keys, Object[] values)
+      {
+         this.hash = hash;
+         this.keys = keys;
+         this.values = values;
+      }
+
+      private int find(String key)
+      {
+         for (int i = 0; i < keys.length; i ++)
+         {
+            if (keys[i].equals(key))
+               return i;
+         }
+         return -1;
+      }
+
+      Object get(int shift, int hash, String key)
+      {
+         int i = find(key);
+         return i < 0 ? null : values[i];
+      }
+
+      Node put(int shift, int hash, String key, Object value, boolean[] added)
+      {
+         if (hash != this.hash)
+         {
+            // Nest this node below a bitmap node that separates the hashes
+            int bit = 1 << ((this.hash >>> shift) & MASK);
+            Node parent = new BitmapNode(bit, new Object[] {null, this});
+            return parent.put(shift, hash, key, value, added);
+         }
+         int i = find(key);
+         if (i >= 0)
+         {
+            if (values[i] == value)
+               return this;
+            Object[] newValues = new Object[values.length];
+            System.arraycopy(values, 0, newValues, 0, values.length);
+            newValues[i] = value;
+            return new CollisionNode(hash, keys, newValues);
+         }
+         added[0] = true;
+         String[] newKeys = new String[keys.length + 1];
+         Object[] newValues = new Object[values.length + 1];
+         System.arraycopy(keys, 0, newKeys, 0, keys.length);
+         System.arraycopy(values, 0, newValues, 0, values.length);
+         newKeys[keys.length] = key;
+         newValues[values.length] = value;
+         return new CollisionNode(hash, newKeys, newValues);
+      }
+
+      Node remove(int shift, int hash, String key)
+      {
+         int i = find(key);
+         if (i < 0)
+            return this;
+         if (keys.length == 1)
+            return null;
+         String[] newKeys = new String[keys.length - 1];
+         Object[] newValues = new Object[values.length - 1];
+         System.arraycopy(keys, 0, newKeys, 0, i);
+         System.arraycopy(keys, i + 1, newKeys, i, newKeys.length - i);
+         System.arraycopy(values, 0, newValues, 0, i);
+         System.arraycopy(values, i + 1, newValues, i, newValues.length - i);
+         return new CollisionNode(hash, newKeys, newValues);
+      }
+
+      void values(List values)
+      {
+         for (int i = 0; i < this.values.length; i ++)
+            values.add(this.values[i]);
+      }
+   }
+}
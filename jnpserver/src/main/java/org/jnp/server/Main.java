@@ -21,20 +21,32 @@
  */
 package org.jnp.server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.rmi.MarshalledObject;
 import java.rmi.Remote;
 import java.rmi.server.RMIClientSocketFactory;
 import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Iterator;
+import java.util.LinkedList;
 
 import javax.net.ServerSocketFactory;
 
@@ -42,7 +54,12 @@ import org.jboss.logging.Logger;
 import org.jboss.net.sockets.DefaultSocketFactory;
 import org.jboss.util.threadpool.BasicThreadPool;
 import org.jboss.util.threadpool.ThreadPool;
+import org.jnp.interfaces.BinaryNaming;
+import org.jnp.interfaces.HealthProbe;
 import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.interfaces.UnixSockets;
 
 /** 
  * A main() entry point for running the jnp naming service implementation as
@@ -60,6 +77,8 @@ public class Main implements MainMBean
    /** The Naming interface server implementation */
    protected NamingBean theServer;
    protected MarshalledObject serverStub;
+   /** The serialized serverStub written to the bootstrap clients */
+   protected volatile byte[] serverStubBytes;
    protected boolean isStubExported;
    /** The jnp server socket through which the NamingServer stub is vended */
    protected ServerSocket serverSocket;
@@ -96,6 +115,38 @@ public class Main implements MainMBean
    protected Logger log;
    /** The thread pool used to handle jnp stub lookup requests */
    protected ThreadPool lookupPool;
+   /** The selector of the bootstrap listener without a custom jnp server
+    * socket factory */
+   protected Selector bootstrapSelector;
+   /** The time in ms the bootstrap listener waits for a health probe request
+    * before sending the stub, which delays every bootstrap client by that
+    * time. The default is 0 which means no probes. */
+   protected long healthProbeWait = 0;
+   /** The time the service was started */
+   protected long startTime;
+   /** The binding count reported to the health probes and when it was taken */
+   private int bindingCount;
+   private long bindingCountTime;
+   /** A flag indicating if the multicast discovery requests are answered */
+   protected boolean discoveryEnabled = false;
+   /** The multicast group of the discovery requests */
+   protected String discoveryGroup = NamingContext.DEFAULT_DISCOVERY_GROUP_ADDRESS;
+   /** The port of the discovery requests */
+   protected int discoveryPort = NamingContext.DEFAULT_DISCOVERY_GROUP_PORT;
+   /** The partition whose discovery requests are answered, null for all */
+   protected String discoveryPartitionName;
+   /** The responder to the discovery requests */
+   protected DiscoveryResponder discoveryResponder;
+   /** The port of the binary naming protocol. The default is -1 which means
+    the naming server is only exported over RMI. */
+   protected int binaryPort = -1;
+   /** The path of the unix domain socket of the binary naming protocol, for
+    the clients on the same host. The default is null which means none. */
+   protected String unixSocketPath;
+   /** The unix domain socket file bound by this service, removed on stop */
+   protected File unixSocketFile;
+   /** The listener of the binary naming protocol */
+   protected BinaryNamingListener binaryListener;
 
    // Static --------------------------------------------------------
    public static void main(String[] args)
@@ -152,6 +203,9 @@ public class Main implements MainMBean
       throws IOException
    {
       serverStub = new MarshalledObject(proxy);
+      // Replace the stub of a running bootstrap listener
+      if( serverStubBytes != null )
+         serverStubBytes = serializeStub(serverStub);
    }
 
    public void setRmiPort(int p)
@@ -296,6 +350,73 @@ public class Main implements MainMBean
       this.jnpServerSocketFactory = factory;
    }
 
+   public boolean getDiscoveryEnabled()
+   {
+      return discoveryEnabled;
+   }
+   public void setDiscoveryEnabled(boolean flag)
+   {
+      this.discoveryEnabled = flag;
+   }
+
+   public String getDiscoveryGroup()
+   {
+      return discoveryGroup;
+   }
+   public void setDiscoveryGroup(String group)
+   {
+      this.discoveryGroup = group;
+   }
+
+   public int getDiscoveryPort()
+   {
+      return discoveryResponder != null ? discoveryResponder.getLocalPort() : discoveryPort;
+   }
+   public void setDiscoveryPort(int port)
+   {
+      this.discoveryPort = port;
+   }
+
+   public String getDiscoveryPartitionName()
+   {
+      return discoveryPartitionName;
+   }
+   public void setDiscoveryPartitionName(String partitionName)
+   {
+      if( partitionName != null && partitionName.length() == 0 )
+         partitionName = null;
+      this.discoveryPartitionName = partitionName;
+   }
+
+   public int getBinaryPort()
+   {
+      return binaryListener != null ? binaryListener.getLocalPort() : binaryPort;
+   }
+   public void setBinaryPort(int port)
+   {
+      this.binaryPort = port;
+   }
+
+   public String getUnixSocketPath()
+   {
+      return unixSocketPath;
+   }
+   public void setUnixSocketPath(String path)
+   {
+      if( path != null && path.length() == 0 )
+         path = null;
+      this.unixSocketPath = path;
+   }
+
+   public long getHealthProbeWait()
+   {
+      return healthProbeWait;
+   }
+   public void setHealthProbeWait(long wait)
+   {
+      this.healthProbeWait = wait;
+   }
+
    public Naming getNamingInstance()
    {
       return theServer.getNamingInstance();
@@ -304,6 +425,7 @@ public class Main implements MainMBean
    public void start()
       throws Exception
    {
+      startTime = System.currentTimeMillis();
 
       // Initialize the custom socket factories with any bind address
       initCustomSocketFactories();
@@ -320,19 +442,45 @@ public class Main implements MainMBean
       {
          initBootstrapListener();
       }
+      // Only answer discovery requests if there is a bootstrap port to return
+      if( discoveryEnabled && serverSocket != null )
+      {
+         initDiscoveryResponder();
+      }
    }
 
    public void stop()
    {
       try
       {
-         // Stop listener and unexport the RMI object
+         // Stop listeners and unexport the RMI object
+         if( discoveryResponder != null )
+         {
+            discoveryResponder.stop();
+            discoveryResponder = null;
+         }
+         if( binaryListener != null )
+         {
+            binaryListener.stop();
+            binaryListener = null;
+         }
+         if( unixSocketFile != null )
+         {
+            unixSocketFile.delete();
+            unixSocketFile = null;
+         }
          if( serverSocket != null )
          {
             ServerSocket s = serverSocket;
             serverSocket = null;
             s.close();
          }
+         if( bootstrapSelector != null )
+         {
+            // The selector thread closes the selector once woken up
+            bootstrapSelector.wakeup();
+            bootstrapSelector = null;
+         }
          if( isStubExported == true )
             UnicastRemoteObject.unexportObject(theServer.getNamingInstance(), false);
       }
@@ -355,7 +503,49 @@ public class Main implements MainMBean
       Remote stub = UnicastRemoteObject.exportObject(instance,
             rmiPort, clientSocketFactory, serverSocketFactory);
       log.debug("NamingServer stub: "+stub);
-      serverStub = new MarshalledObject(stub);      
+      if( binaryPort >= 0 || unixSocketPath != null )
+         serverStub = new MarshalledObject(initBinaryListener((Naming) stub));
+      else
+         serverStub = new MarshalledObject(stub);      
+   }
+
+   /** Bring up the listener of the binary naming protocol on the binary port
+    * and or the unix domain socket
+    * @param stub the RMI stub used by the clients that cannot connect to it
+    * @return the Naming vended by the bootstrap port, the proxy of the binary
+    * port if there is one
+    */
+   protected Naming initBinaryListener(Naming stub) throws IOException
+   {
+      binaryListener = new BinaryNamingListener(log, getNamingInstance());
+      Naming proxy = stub;
+      if( binaryPort >= 0 )
+      {
+         ServerSocketChannel channel = binaryListener.bind(bindAddress, binaryPort, backlog);
+         proxy = new BinaryNaming(getAdvertisedAddress().getHostAddress(),
+            channel.socket().getLocalPort(), stub);
+         binaryListener.accept(channel, proxy);
+         log.debug("JNDI binary naming=" + bindAddress + ":" + channel.socket().getLocalPort());
+      }
+      if( unixSocketPath != null )
+      {
+         ServerSocketChannel channel = UnixSockets.bind(unixSocketPath, backlog);
+         unixSocketFile = new File(unixSocketPath);
+         binaryListener.accept(channel, new BinaryNaming(unixSocketPath, proxy));
+         log.debug("JNDI unix socket=" + unixSocketPath);
+      }
+      binaryListener.start();
+      return proxy;
+   }
+
+   /** Get the address clients reach the listeners of this service on
+    */
+   protected InetAddress getAdvertisedAddress() throws UnknownHostException
+   {
+      InetAddress address = bindAddress;
+      if( address == null || address.isAnyLocalAddress() )
+         address = InetAddress.getLocalHost();
+      return address;
    }
 
    /** Bring up the bootstrap lookup port for obtaining the naming service
@@ -364,12 +554,35 @@ public class Main implements MainMBean
    protected void initBootstrapListener()
    {
       // Start listener
+      Runnable handler = null;
       try
       {
-         // Get the default ServerSocketFactory is one was not specified
+         // The stub is serialized once for all the clients
+         serverStubBytes = serializeStub(serverStub);
          if( jnpServerSocketFactory == null )
-            jnpServerSocketFactory = ServerSocketFactory.getDefault();
-         serverSocket = jnpServerSocketFactory.createServerSocket(port, backlog, bindAddress);
+         {
+            // Serve all the clients from a single selector thread
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try
+            {
+               channel.socket().bind(new InetSocketAddress(bindAddress, port), backlog);
+               channel.configureBlocking(false);
+               bootstrapSelector = Selector.open();
+               channel.register(bootstrapSelector, SelectionKey.OP_ACCEPT);
+            }
+            catch (IOException e)
+            {
+               channel.close();
+               throw e;
+            }
+            serverSocket = channel.socket();
+            handler = new SelectorHandler(bootstrapSelector);
+         }
+         else
+         {
+            serverSocket = jnpServerSocketFactory.createServerSocket(port, backlog, bindAddress);
+            handler = new AcceptHandler();
+         }
          // If an anonymous port was specified get the actual port used
          if( port == 0 )
             port = serverSocket.getLocalPort();
@@ -394,12 +607,63 @@ public class Main implements MainMBean
          log.error("Could not start on port " + port, e);
       }
 
+      if( handler == null )
+         return;
       if( lookupPool == null  )
          lookupPool = new BasicThreadPool("NamingBootstrap Pool");
-      AcceptHandler handler = new AcceptHandler();
       lookupPool.run(handler);
    }
 
+   /** Get the health reported to the probes of the bootstrap port. The
+    * binding count is taken at most once a second.
+    */
+   protected synchronized HealthProbe getHealth()
+   {
+      long now = System.currentTimeMillis();
+      if( now - bindingCountTime > 1000 )
+      {
+         bindingCountTime = now;
+         try
+         {
+            Naming naming = theServer != null ? theServer.getNamingInstance() : null;
+            bindingCount = naming != null ? naming.list(new NamingParser().parse("")).size() : -1;
+         }
+         catch (Exception e)
+         {
+            log.debug("Failed to count the bindings", e);
+            bindingCount = -1;
+         }
+      }
+      byte status = bindingCount >= 0 ? HealthProbe.STATUS_READY : HealthProbe.STATUS_NOT_READY;
+      return new HealthProbe(status, bindingCount, now - startTime);
+   }
+
+   /** Serialize the naming server stub the way the bootstrap clients read it
+    */
+   protected byte[] serializeStub(MarshalledObject stub) throws IOException
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(baos);
+      out.writeObject(stub);
+      out.close();
+      return baos.toByteArray();
+   }
+
+   /** Bring up the responder to the multicast discovery requests for the
+    * bootstrap address
+    */
+   protected void initDiscoveryResponder() throws IOException
+   {
+      discoveryResponder = new DiscoveryResponder(log,
+         InetAddress.getByName(discoveryGroup), discoveryPort, discoveryPartitionName,
+         getAdvertisedAddress().getHostAddress(), port);
+      Thread t = new Thread(discoveryResponder, "JNP Discovery Responder");
+      t.setDaemon(true);
+      t.start();
+      log.debug("JNDI discovery group=" + discoveryGroup + ":" + getDiscoveryPort()
+         + ", partition=" + discoveryPartitionName);
+   }
+
    /** 
     * Init the clientSocketFactory, serverSocketFactory using the bind address.
     */
@@ -500,6 +764,227 @@ public class Main implements MainMBean
       }
    }
 
+   /** Accepts the bootstrap clients and writes the stub to them from the
+    * thread of the selector, without a thread per client. When health probes
+    * are enabled a client is sent the stub once it has not written a probe
+    * request within the healthProbeWait.
+    */
+   private class SelectorHandler implements Runnable
+   {
+      private Selector selector;
+      /** The clients waited on for a probe request in order of deadline */
+      private LinkedList pending = new LinkedList();
+      SelectorHandler(Selector selector)
+      {
+         this.selector = selector;
+      }
+      public void run()
+      {
+         try
+         {
+            while( serverSocket != null )
+            {
+               try
+               {
+                  if( pending.isEmpty() )
+                     selector.select();
+                  else
+                  {
+                     long wait = ((Pending) pending.getFirst()).deadline - System.currentTimeMillis();
+                     selector.select(Math.max(wait, 1));
+                  }
+                  Iterator keys = selector.selectedKeys().iterator();
+                  while( keys.hasNext() )
+                  {
+                     SelectionKey key = (SelectionKey) keys.next();
+                     keys.remove();
+                     if( key.isValid() == false )
+                        continue;
+                     if( key.isAcceptable() )
+                        accept((ServerSocketChannel) key.channel());
+                     else if( key.isReadable() )
+                        read((SocketChannel) key.channel(), (Pending) key.attachment());
+                     else if( key.isWritable() )
+                        write((SocketChannel) key.channel(), (ByteBuffer) key.attachment());
+                  }
+                  expire();
+               }
+               catch (ClosedSelectorException e)
+               {
+                  return;
+               }
+               catch (IOException e)
+               {
+                  // Stopped by normal means
+                  if (serverSocket == null)
+                     return;
+                  log.error("Naming accept handler stopping", e);
+               }
+               catch(Throwable e)
+               {
+                  log.error("Unexpected exception during accept", e);
+               }
+            }
+         }
+         finally
+         {
+            close();
+         }
+      }
+
+      private void accept(ServerSocketChannel channel) throws IOException
+      {
+         boolean trace = log.isTraceEnabled();
+         SocketChannel client;
+         while( (client = channel.accept()) != null )
+         {
+            if( trace )
+               log.trace("Accepted bootstrap client: "+client.socket());
+            client.configureBlocking(false);
+            if( healthProbeWait > 0 )
+            {
+               Pending p = new Pending(client, System.currentTimeMillis() + healthProbeWait);
+               pending.addLast(p);
+               // The request may already be there
+               read(client, p);
+            }
+            else
+            {
+               write(client, ByteBuffer.wrap(serverStubBytes));
+            }
+         }
+      }
+
+      /** Read the probe request of a client, answering it once complete.
+       */
+      private void read(SocketChannel client, Pending p)
+      {
+         try
+         {
+            int n = client.read(p.request);
+            if( n < 0 )
+            {
+               // The client went away
+               p.done = true;
+               client.close();
+               return;
+            }
+            byte[] request = p.request.array();
+            for(int i = 0; i < p.request.position(); i ++)
+            {
+               if( request[i] != HealthProbe.REQUEST[i] )
+               {
+                  log.debug("Invalid health probe request from " + client.socket().getInetAddress());
+                  p.done = true;
+                  client.close();
+                  return;
+               }
+            }
+            if( p.request.hasRemaining() )
+            {
+               client.register(selector, SelectionKey.OP_READ, p);
+               return;
+            }
+            p.done = true;
+            write(client, ByteBuffer.wrap(getHealth().toByteArray()));
+         }
+         catch (IOException ex)
+         {
+            p.done = true;
+            log.debug("Error reading request from " + client.socket().getInetAddress(), ex);
+            try
+            {
+               client.close();
+            }
+            catch (IOException e)
+            {
+            }
+         }
+      }
+
+      /** Send the stub to the clients that sent no probe request in time.
+       */
+      private void expire()
+      {
+         long now = System.currentTimeMillis();
+         while( pending.isEmpty() == false )
+         {
+            Pending p = (Pending) pending.getFirst();
+            if( p.done == false )
+            {
+               if( p.deadline > now )
+                  return;
+               p.done = true;
+               write(p.client, ByteBuffer.wrap(serverStubBytes));
+            }
+            pending.removeFirst();
+         }
+      }
+
+      /** Write the response, waiting for the client to accept the rest when
+       * its socket buffer is full, and close the connection once it is written.
+       */
+      private void write(SocketChannel client, ByteBuffer response)
+      {
+         try
+         {
+            client.write(response);
+            if( response.hasRemaining() )
+            {
+               client.register(selector, SelectionKey.OP_WRITE, response);
+               return;
+            }
+         }
+         catch (IOException ex)
+         {
+            log.debug("Error writing response to " + client.socket().getInetAddress(), ex);
+         }
+         try
+         {
+            client.close();
+         }
+         catch (IOException e)
+         {
+         }
+      }
+
+      private void close()
+      {
+         try
+         {
+            Iterator keys = selector.keys().iterator();
+            while( keys.hasNext() )
+            {
+               SelectionKey key = (SelectionKey) keys.next();
+               key.channel().close();
+            }
+            selector.close();
+         }
+         catch (Exception e)
+         {
+            log.debug("Failed to close the bootstrap selector", e);
+         }
+      }
+   }
+
+   /** A client the bootstrap listener waits on for a health probe request */
+   private static class Pending
+   {
+      final SocketChannel client;
+      final long deadline;
+      final ByteBuffer request = ByteBuffer.allocate(HealthProbe.REQUEST.length);
+      boolean done;
+      Pending(SocketChannel client, long deadline)
+      {
+         this.client = client;
+         this.deadline = deadline;
+      }
+   }
+
+   /** Writes the stub to a client of a custom jnpServerSocketFactory, or its
+    * health to a client that writes a probe request within the
+    * healthProbeWait.
+    */
    private class BootstrapRequestHandler implements Runnable
    {
       private Socket socket;
@@ -512,10 +997,17 @@ public class Main implements MainMBean
          // Return the naming server stub
          try
          {
+            byte[] response = serverStubBytes;
+            if( healthProbeWait > 0 )
+            {
+               if( readProbe() )
+                  response = getHealth().toByteArray();
+               else if( socket.isClosed() )
+                  return;
+            }
             OutputStream os = socket.getOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream(os);
-            out.writeObject(serverStub);
-            out.close();
+            os.write(response);
+            os.close();
          }
          catch (IOException ex)
          {
@@ -531,5 +1023,58 @@ public class Main implements MainMBean
             }
          }
       }
+
+      /** Wait up to the healthProbeWait for a probe request.
+       * @return true for a probe, false for a bootstrap client that wrote
+       *    nothing. The socket is closed if the client wrote something else.
+       */
+      private boolean readProbe() throws IOException
+      {
+         byte[] request = new byte[HealthProbe.REQUEST.length];
+         int count = 0;
+         long deadline = System.currentTimeMillis() + healthProbeWait;
+         InputStream is = socket.getInputStream();
+         try
+         {
+            while( count < request.length )
+            {
+               long wait = deadline - System.currentTimeMillis();
+               if( wait <= 0 )
+                  break;
+               socket.setSoTimeout((int) wait);
+               int n = is.read(request, count, request.length - count);
+               if( n < 0 )
+               {
+                  // The client went away
+                  socket.close();
+                  return false;
+               }
+               for(int i = count; i < count + n; i ++)
+               {
+                  if( request[i] != HealthProbe.REQUEST[i] )
+                  {
+                     log.debug("Invalid health probe request from " + socket.getInetAddress());
+                     socket.close();
+                     return false;
+                  }
+               }
+               count += n;
+            }
+         }
+         catch (SocketTimeoutException e)
+         {
+            // No complete request within the wait
+         }
+         if( count == request.length )
+            return true;
+         if( count > 0 )
+         {
+            // A partial probe request
+            socket.close();
+            return false;
+         }
+         socket.setSoTimeout(0);
+         return false;
+      }
    }
 }
@@ -96,6 +96,49 @@ public interface MainMBean extends NamingBean
    void setJNPServerSocketFactory(String factoryClassName) 
       throws ClassNotFoundException, InstantiationException, IllegalAccessException;
 
+   /** Whether the multicast discovery requests of clients are answered with
+    * the bootstrap address
+    */
+   void setDiscoveryEnabled(boolean flag);
+   boolean getDiscoveryEnabled();
+
+   /** The multicast group address of the discovery requests */
+   void setDiscoveryGroup(String group);
+   String getDiscoveryGroup();
+
+   /** The port of the discovery requests, 0 for any available port */
+   void setDiscoveryPort(int port);
+   int getDiscoveryPort();
+
+   /** The partition whose discovery requests are answered, null to answer
+    * the requests of all partitions
+    */
+   void setDiscoveryPartitionName(String partitionName);
+   String getDiscoveryPartitionName();
+
+   /** The port of the binary naming protocol, whose proxy is then vended in
+    * place of the RMI stub. 0 for any available port, -1 to disable it.
+    */
+   void setBinaryPort(int port);
+   int getBinaryPort();
+
+   /** The path of the unix domain socket of the binary naming protocol, for
+    * the clients on the same host that set jnp.unixSocket. Null for none.
+    * Unix domain sockets need JDK 16 or later.
+    */
+   void setUnixSocketPath(String path);
+   String getUnixSocketPath();
+
+   /** The time in ms the bootstrap port waits for a health probe request
+    * before sending the naming stub, 0 to disable the health probes.
+    * Bootstrap clients write no request, so every InitialContext that
+    * downloads the stub is delayed by the full wait. Keep it to the few ms
+    * a probe needs to write its request after connecting. The probes are
+    * also answered with a custom jnpServerSocketFactory.
+    */
+   void setHealthProbeWait(long wait);
+   long getHealthProbeWait();
+
    // Operations ----------------------------------------------------
    
    public void start() throws Exception;
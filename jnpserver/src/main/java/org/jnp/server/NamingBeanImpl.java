@@ -46,6 +46,13 @@ public class NamingBeanImpl
    implements NamingBean
 {
    private static Logger log = Logger.getLogger(NamingBeanImpl.class);
+
+   // Constants -----------------------------------------------------
+   /** The storage engine that keeps a hash table per context */
+   public static final String MAP_STORAGE_ENGINE = "map";
+   /** The storage engine that keeps the namespace in a copy-on-write trie */
+   public static final String TRIE_STORAGE_ENGINE = "trie";
+
    // Attributes ----------------------------------------------------
    /** The Naming interface server implementation */
    protected Naming theServer;
@@ -53,6 +60,10 @@ public class NamingBeanImpl
    protected boolean InstallGlobalService = true;
    /** A flag indicating if theServer will try to use the NamingContext.setLocal value */
    protected boolean UseGlobalService = true;
+   /** The storage engine of the naming server created by this bean */
+   protected String storageEngine = MAP_STORAGE_ENGINE;
+   /** A flag indicating if the map storage engine maintains a full path index */
+   protected boolean pathIndex;
 
    // Static --------------------------------------------------------
    public static void main(String[] args)
@@ -89,6 +100,44 @@ public class NamingBeanImpl
       this.UseGlobalService = flag;
    }
 
+   /**
+    * Get the storage engine of the naming server created by start().
+    *
+    * @return one of MAP_STORAGE_ENGINE or TRIE_STORAGE_ENGINE
+    */
+   public String getStorageEngine()
+   {
+      return storageEngine;
+   }
+   /**
+    * Set the storage engine of the naming server created by start(). This
+    * has no effect if the global naming service is reused.
+    *
+    * @param storageEngine one of MAP_STORAGE_ENGINE, the default, or
+    *    TRIE_STORAGE_ENGINE
+    */
+   public void setStorageEngine(String storageEngine)
+   {
+      this.storageEngine = storageEngine;
+   }
+
+   public boolean getPathIndex()
+   {
+      return pathIndex;
+   }
+   /**
+    * Set whether the naming server created by the map storage engine keeps
+    * an index from the absolute path of each binding to the binding, which
+    * resolves lookups of deep names with a single probe at the cost of
+    * slightly more expensive updates.
+    *
+    * @param flag true to maintain the index
+    */
+   public void setPathIndex(boolean flag)
+   {
+      this.pathIndex = flag;
+   }
+
    /**
     * Util method for possible override.
     *
@@ -97,7 +146,11 @@ public class NamingBeanImpl
     */
    protected Naming createServer() throws Exception
    {
-      return new NamingServer();
+      if (storageEngine == null || storageEngine.equalsIgnoreCase(MAP_STORAGE_ENGINE))
+         return new NamingServer(pathIndex);
+      if (storageEngine.equalsIgnoreCase(TRIE_STORAGE_ENGINE))
+         return new TrieNamingServer();
+      throw new IllegalStateException("Unknown storageEngine: " + storageEngine);
    }
    
    public void start()
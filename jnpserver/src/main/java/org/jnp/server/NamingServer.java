@@ -26,8 +26,14 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.naming.Binding;
 import javax.naming.CannotProceedException;
+import javax.naming.CompoundName;
 import javax.naming.Context;
 import javax.naming.InvalidNameException;
 import javax.naming.Name;
@@ -42,7 +48,9 @@ import javax.naming.spi.ResolveResult;
 import org.jboss.logging.Logger;
 import org.jnp.interfaces.Naming;
 import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingOperation;
 import org.jnp.interfaces.NamingParser;
+import org.jnp.interfaces.NamingResult;
 
 /**
  * The JNDI naming server implementation class.
@@ -61,15 +69,54 @@ public class NamingServer
    private static final long serialVersionUID = 4183855539507934373L;
    // Constants -----------------------------------------------------
 
+   /** The number of lock stripes, must be a power of 2 */
+   private static final int LOCK_STRIPES = 64;
+
    // Attributes ----------------------------------------------------
    
    protected Map table = createTable();
    protected Name prefix;
    protected NamingParser parser = new NamingParser();
    protected NamingServer parent;
+   /**
+    * The optional index of the root context from the absolute path of every
+    * binding that is not a subcontext to its Binding, null if disabled.
+    */
+   private final transient Map index;
+   /**
+    * Held shared by updates of the index, and exclusively when a removed
+    * subcontext is detached from the index.
+    */
+   private final transient ReadWriteLock indexLock;
+   /** Set once this context has been unbound or replaced in its parent */
+   private transient volatile boolean detached;
+   /** The shared handle returned by in-VM lookups of this context */
+   private transient volatile NamingContext handle;
+   /** The source of the context versions of the root context */
+   private final transient AtomicLong versions;
+   /**
+    * Set in the root context by the first getVersion, so the updates of a
+    * server that no lookup cache revalidates against do not contend on the
+    * shared versions source.
+    */
+   private transient volatile boolean versioned;
+   /** The version of the last update of this context */
+   private transient volatile long version;
 
    // Static --------------------------------------------------------
 
+   /**
+    * The locks used to serialize updates of a single binding. The stripes are
+    * shared by all contexts so that writers only contend when they update the
+    * same binding, or collide on the same stripe.
+    */
+   private static final Object[] locks = new Object[LOCK_STRIPES];
+   static
+   {
+      for (int i = 0; i < locks.length; i ++)
+         locks[i] = new Object();
+   }
+
    // Constructors --------------------------------------------------
 
    public NamingServer()
@@ -80,11 +127,44 @@ public class NamingServer
    
    public NamingServer(Name prefix, NamingServer parent)
       throws NamingException
+   {
+      this(prefix, parent, false);
+   }
+
+   /**
+    * Create a root naming server.
+    *
+    * @param pathIndex if true the root maintains an index from the absolute
+    *    path of each binding to the binding, so that lookups of multi
+    *    component names that end in a plain binding take a single probe
+    *    instead of a walk down the subcontexts.
+    * @throws NamingException for any error
+    */
+   public NamingServer(boolean pathIndex)
+      throws NamingException
+   {
+      this(null, null, pathIndex);
+   }
+
+   private NamingServer(Name prefix, NamingServer parent, boolean pathIndex)
+      throws NamingException
    {
       if (prefix == null)
          prefix = parser.parse("");
       this.prefix = prefix;      
       this.parent = parent;
+      versions = parent == null ? new AtomicLong() : null;
+      touch();
+      if (pathIndex && parent == null)
+      {
+         index = new ConcurrentHashMap();
+         indexLock = new ReentrantReadWriteLock();
+      }
+      else
+      {
+         index = null;
+         indexLock = null;
+      }
    }
 
    // Protected -----------------------------------------------------
@@ -110,7 +190,7 @@ public class NamingServer
    // Public --------------------------------------------------------
 
    // Naming implementation -----------------------------------------
-   public synchronized void bind(Name name, Object obj, String className)
+   public void bind(Name name, Object obj, String className)
       throws NamingException
    {
       if (name.isEmpty())
@@ -158,20 +238,37 @@ public class NamingServer
          } else
          {
 //            System.out.println("bind "+name+"="+obj);
+            Binding existing;
+            Lock indexUpdate = lockIndexUpdate();
             try
             {
-               getBinding(name);
+               if (indexUpdate == null && table instanceof ConcurrentMap)
+               {
+                  existing = addBinding(name,obj,className);
+               }
+               else
+               {
+                  synchronized (getLock(name))
+                  {
+                     existing = addBinding(name,obj,className);
+                  }
+               }
+            }
+            finally
+            {
+               if (indexUpdate != null)
+                  indexUpdate.unlock();
+            }
+            if (existing != null)
+            {
                // Already bound
                throw new NameAlreadyBoundException();
-            } catch (NameNotFoundException e)
-            {
-               setBinding(name,obj,className);
             }
          }
       }
    }
 
-   public synchronized void rebind(Name name, Object obj, String className)
+   public void rebind(Name name, Object obj, String className)
       throws NamingException
    {
       if (name.isEmpty())
@@ -213,12 +310,34 @@ public class NamingServer
          } else
          {
 //            System.out.println("rebind "+name+"="+obj+"("+this+")");
-            setBinding(name,obj,className);
+            Binding old;
+            Lock indexUpdate = lockIndexUpdate();
+            try
+            {
+               if (indexUpdate == null && table instanceof ConcurrentMap)
+               {
+                  old = setBinding(name,obj,className);
+               }
+               else
+               {
+                  synchronized (getLock(name))
+                  {
+                     old = setBinding(name,obj,className);
+                  }
+               }
+            }
+            finally
+            {
+               if (indexUpdate != null)
+                  indexUpdate.unlock();
+            }
+            if (old != null && old.getObject() instanceof NamingServer)
+               detach((NamingServer) old.getObject());
          }
       }
    }
    
-   public synchronized void unbind(Name name)
+   public void unbind(Name name)
       throws NamingException
    {
       if (name.isEmpty())
@@ -260,13 +379,31 @@ public class NamingServer
          } else
          {
 //            System.out.println("unbind "+name+"="+getBinding(name));
-            if (getBinding(name) != null)
+            Binding old;
+            Lock indexUpdate = lockIndexUpdate();
+            try
             {
-               removeBinding(name);
-            } else
+               if (indexUpdate == null && table instanceof ConcurrentMap)
+               {
+                  old = removeBinding(name);
+               }
+               else
+               {
+                  synchronized (getLock(name))
+                  {
+                     old = removeBinding(name);
+                  }
+               }
+            }
+            finally
             {
-               throw new NameNotFoundException();
+               if (indexUpdate != null)
+                  indexUpdate.unlock();
             }
+            if (old == null)
+               throw new NameNotFoundException(name.get(0) + " not bound");
+            if (old.getObject() instanceof NamingServer)
+               detach((NamingServer) old.getObject());
          }
       }
    }
@@ -276,10 +413,17 @@ public class NamingServer
       throws NamingException
    {
 		Object result;
+      if (index != null && name.size() > 1 && name instanceof CompoundName)
+      {
+         // Deep bindings that are not contexts resolve with one probe
+         Binding b = (Binding) index.get(name.toString());
+         if (b != null)
+            return b.getObject();
+      }
       if (name.isEmpty())
       {
          // Return this
-         result = new NamingContext(null, (Name)(prefix.clone()), getRoot());
+         result = getContextHandle();
       } else if (name.size() > 1)
       {
          // Recurse to find correct context
@@ -310,7 +454,7 @@ public class NamingServer
          // Get object to return
          if (name.get(0).equals(""))
          {
-            result = new NamingContext(null, prefix, getRoot());
+            result = getContextHandle();
          } else
          {
 //            System.out.println("lookup "+name);
@@ -318,9 +462,7 @@ public class NamingServer
             
             if (res instanceof NamingServer)
             {
-               Name fullName = (Name)(prefix.clone());
-               fullName.addAll(name);
-               result = new NamingContext(null, fullName, getRoot());
+               result = ((NamingServer)res).getContextHandle();
             }
             else
                result = res;
@@ -390,11 +532,10 @@ public class NamingServer
             Binding b = (Binding)iter.next();
             if (b.getObject() instanceof NamingServer)
             {
-               Name n = (Name)prefix.clone();
-               n.add(b.getName());
+               NamingServer ctx = (NamingServer)b.getObject();
                newBindings.add(new Binding(b.getName(), 
                                            b.getClassName(),
-                                           new NamingContext(null, n, getRoot())));
+                                           ctx.getContextHandle()));
             } else
             {
                newBindings.add(b);
@@ -481,26 +622,125 @@ public class NamingServer
       }
       else
       {
-         Object binding = table.get(name.get(0));
-         if( binding != null )
+         Name fullName = (Name) prefix.clone();
+         fullName.addAll(name);
+         NamingServer subContext = createNamingServer(fullName, this);
+         Binding existing;
+         Lock indexUpdate = lockIndexUpdate();
+         try
+         {
+            if (indexUpdate == null && table instanceof ConcurrentMap)
+            {
+               existing = addBinding(name, subContext, NamingContext.class.getName());
+            }
+            else
+            {
+               synchronized (getLock(name))
+               {
+                  existing = addBinding(name, subContext, NamingContext.class.getName());
+               }
+            }
+         }
+         finally
+         {
+            if (indexUpdate != null)
+               indexUpdate.unlock();
+         }
+         if( existing != null )
          {
             ex = new NameAlreadyBoundException();
             ex.setResolvedName(prefix);
             ex.setRemainingName(name);
             throw ex;
          }
-         else
-         {
-            Name fullName = (Name) prefix.clone();
-            fullName.addAll(name);
-            NamingServer subContext = createNamingServer(fullName, this);
-            setBinding(name, subContext, NamingContext.class.getName());
-            subCtx = new NamingContext(null, fullName, getRoot());
-         }
+         subCtx = new NamingContext(null, fullName, getRoot());
       }
       return subCtx;
    }
       
+   public NamingResult[] lookupAll(Name[] names)
+      throws NamingException
+   {
+      NamingResult[] results = new NamingResult[names.length];
+      for (int i = 0; i < names.length; i ++)
+      {
+         try
+         {
+            results[i] = new NamingResult(lookup(names[i]));
+         }
+         catch (NamingException e)
+         {
+            results[i] = new NamingResult(e);
+         }
+      }
+      return results;
+   }
+
+   public NamingResult[] batch(NamingOperation[] operations, boolean atomic)
+      throws NamingException
+   {
+      NamingResult[] results = new NamingResult[operations.length];
+      // The bindings replaced by the operations of an atomic batch
+      Binding[] previous = atomic ? new Binding[operations.length] : null;
+      for (int i = 0; i < operations.length; i ++)
+      {
+         NamingOperation op = operations[i];
+         try
+         {
+            if (atomic)
+               previous[i] = resolveBinding(op.getName());
+            switch (op.getOperation())
+            {
+               case NamingOperation.BIND:
+                  bind(op.getName(), op.getObject(), op.getClassName());
+                  break;
+               case NamingOperation.REBIND:
+                  rebind(op.getName(), op.getObject(), op.getClassName());
+                  break;
+               default:
+                  unbind(op.getName());
+            }
+            results[i] = new NamingResult((Object) null);
+         }
+         catch (NamingException e)
+         {
+            results[i] = new NamingResult(e);
+            if (atomic)
+            {
+               undo(operations, previous, results, i);
+               return results;
+            }
+         }
+      }
+      return results;
+   }
+
+   public long getVersion(Name name)
+      throws NamingException
+   {
+      NamingServer root = getRootServer();
+      if (root.versioned == false)
+         root.versioned = true;
+      NamingServer ctx = this;
+      long max = version;
+      for (int i = 0; i < name.size() - 1; i ++)
+      {
+         Binding b = (Binding) ctx.table.get(name.get(i));
+         if (b == null || (b.getObject() instanceof NamingServer) == false)
+            return -1;
+         ctx = (NamingServer) b.getObject();
+         max = Math.max(max, ctx.version);
+      }
+      return max;
+   }
+
+   public NamingResult lookupVersioned(Name name)
+      throws NamingException
+   {
+      long v = getVersion(name);
+      return new NamingResult(lookup(name), v);
+   }
+
    public Naming getRoot()
    {
       if (parent == null)
@@ -514,12 +754,284 @@ public class NamingServer
    // Package protected ---------------------------------------------
     
    // Protected -----------------------------------------------------
+
+   /**
+    * Get the handle of this context that lookups return. The handle is
+    * created once and is immutable, so that repeated lookups of a context
+    * do not allocate a new NamingContext and prefix.
+    *
+    * @return the shared NamingContext handle for this context
+    * @throws NamingException for any error
+    */
+   protected NamingContext getContextHandle()
+      throws NamingException
+   {
+      NamingContext ctx = handle;
+      if (ctx == null)
+      {
+         // A race creates equivalent handles, the last one is kept
+         ctx = NamingContext.createHandle(prefix, getRoot());
+         handle = ctx;
+      }
+      return ctx;
+   }
     
+   /**
+    * Get the binding of a name as stored, without resolving it.
+    *
+    * @param name the name of the binding
+    * @return the binding, null if the name or one of its contexts is not
+    *    bound
+    * @throws NamingException for any error
+    */
+   protected Binding resolveBinding(Name name)
+      throws NamingException
+   {
+      if (name.isEmpty())
+         throw new InvalidNameException();
+      NamingServer ctx = this;
+      int last = name.size() - 1;
+      for (int i = 0; i < last; i ++)
+      {
+         Binding b = (Binding) ctx.table.get(name.get(i));
+         if (b == null || (b.getObject() instanceof NamingServer) == false)
+            return null;
+         ctx = (NamingServer) b.getObject();
+      }
+      return (Binding) ctx.table.get(name.get(last));
+   }
+
    // Private -------------------------------------------------------
-   private void setBinding(Name name, Object obj, String className)
+
+   /**
+    * Undo the operations of an atomic batch that were applied before the
+    * operation that failed, last one first.
+    *
+    * @param operations the batch
+    * @param previous the bindings replaced by each operation
+    * @param results the results of the batch
+    * @param failed the index of the failed operation
+    */
+   private void undo(NamingOperation[] operations, Binding[] previous,
+      NamingResult[] results, int failed)
+   {
+      NamingException cause = results[failed].getException();
+      for (int i = failed - 1; i >= 0; i --)
+      {
+         NamingOperation op = operations[i];
+         Binding old = previous[i];
+         try
+         {
+            if (old == null)
+               unbind(op.getName());
+            else if (op.getOperation() == NamingOperation.UNBIND)
+               bind(op.getName(), old.getObject(), old.getClassName());
+            else
+               rebind(op.getName(), old.getObject(), old.getClassName());
+            // A restored subcontext is bound again
+            if (old != null && old.getObject() instanceof NamingServer)
+               ((NamingServer) old.getObject()).detached = false;
+         }
+         catch (NamingException e)
+         {
+            log.warn("Failed to undo " + op + " of an atomic batch", e);
+         }
+         NamingException ex = new NamingException("Undone, operation " + failed + " of the atomic batch failed");
+         ex.setRootCause(cause);
+         results[i] = new NamingResult(ex);
+      }
+      for (int i = failed + 1; i < operations.length; i ++)
+      {
+         NamingException ex = new NamingException("Not applied, operation " + failed + " of the atomic batch failed");
+         ex.setRootCause(cause);
+         results[i] = new NamingResult(ex);
+      }
+   }
+
+   /**
+    * Get the lock that serializes updates of the binding for the given atomic
+    * name in this context. The lock is only needed when the table update has
+    * to be atomic with an update of the root index, since single updates of
+    * a ConcurrentMap table are atomic on their own. Lookups never take this
+    * lock. If a subclass has replaced the table with a map that is not safe
+    * for concurrent updates, all updates of this context are serialized on
+    * the context itself.
+    *
+    * @param name the single component name of the binding
+    * @return the lock to synchronize on
+    */
+   private Object getLock(Name name)
+   {
+      if ((table instanceof ConcurrentMap) == false)
+         return this;
+      int h = System.identityHashCode(this) * 31 + name.get(0).hashCode();
+      h ^= (h >>> 16);
+      return locks[h & (LOCK_STRIPES - 1)];
+   }
+
+   /**
+    * Acquire the shared lock of the root index for an update of this
+    * context.
+    *
+    * @return the acquired lock, null if the root has no index
+    */
+   private Lock lockIndexUpdate()
+   {
+      NamingServer root = getRootServer();
+      if (root.index == null)
+         return null;
+      Lock lock = root.indexLock.readLock();
+      lock.lock();
+      return lock;
+   }
+
+   /**
+    * Update the root index entry for a binding of this context. This is
+    * called with the binding lock and the shared index lock held.
+    *
+    * @param n the atomic name of the binding
+    * @param b the new binding, null if it was removed
+    */
+   private void updateIndex(String n, Binding b)
+   {
+      NamingServer root = getRootServer();
+      if (root.index == null)
+         return;
+      // Updates of an unbound context must not reach the index
+      for (NamingServer ctx = this; ctx != null; ctx = ctx.parent)
+      {
+         if (ctx.detached)
+            return;
+      }
+      Name path = (Name) prefix.clone();
+      try
+      {
+         path.add(n);
+      }
+      catch (InvalidNameException e)
+      {
+         return;
+      }
+      String key = root.getIndexKey(path);
+      if (b == null || b.getObject() instanceof NamingServer)
+         root.index.remove(key);
+      else
+         root.index.put(key, b);
+   }
+
+   /**
+    * Mark a subcontext that was unbound or replaced as detached, and drop the
+    * index entries of every binding below it.
+    *
+    * @param ctx the context that is no longer bound
+    */
+   private void detach(NamingServer ctx)
+   {
+      NamingServer root = getRootServer();
+      if (root.index == null)
+      {
+         ctx.detached = true;
+         return;
+      }
+      Lock lock = root.indexLock.writeLock();
+      lock.lock();
+      try
+      {
+         ctx.detached = true;
+         String path = root.getIndexKey(ctx.prefix) + "/";
+         Iterator keys = root.index.keySet().iterator();
+         while (keys.hasNext())
+         {
+            String key = (String) keys.next();
+            if (key.startsWith(path))
+               keys.remove();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the index key of the absolute path of a binding, the path
+    *    relative to this root context
+    */
+   private String getIndexKey(Name path)
+   {
+      if (prefix.isEmpty() == false)
+         path = path.getSuffix(prefix.size());
+      return path.toString();
+   }
+
+   /**
+    * Assign this context a new version once versions are in use. Updates
+    * touch the context after they modify the table: a client reads the
+    * version before the value, so a value read before the update completes
+    * is paired with a version that no longer matches.
+    */
+   private void touch()
+   {
+      NamingServer root = getRootServer();
+      if (root.versioned)
+         version = root.versions.incrementAndGet();
+   }
+
+   private NamingServer getRootServer()
+   {
+      NamingServer root = this;
+      while (root.parent != null)
+         root = root.parent;
+      return root;
+   }
+
+   /**
+    * Add a binding unless the name is already bound. This is a single
+    * putIfAbsent on a ConcurrentMap table.
+    *
+    * @return the existing binding if the name was already bound, null if the
+    *    binding was added
+    */
+   private Binding addBinding(Name name, Object obj, String className)
+   {
+      String n = name.toString();
+      Binding b = new Binding(n, className, obj, true);
+      Binding existing;
+      if (table instanceof ConcurrentMap)
+      {
+         existing = (Binding) ((ConcurrentMap) table).putIfAbsent(n, b);
+      }
+      else
+      {
+         existing = (Binding) table.get(n);
+         if (existing == null)
+            table.put(n, b);
+      }
+      if (existing != null)
+         return existing;
+      touch();
+      updateIndex(n, b);
+      if( log.isTraceEnabled() )
+      {
+         StringBuffer tmp = new StringBuffer(super.toString());
+         tmp.append(", addBinding: name=");
+         tmp.append(name);
+         tmp.append(", obj=");
+         tmp.append(obj);
+         tmp.append(", className=");
+         tmp.append(className);
+         log.trace(tmp.toString());
+      }
+      return null;
+   }
+
+   private Binding setBinding(Name name, Object obj, String className)
    {
       String n = name.toString();
-      table.put(n, new Binding(n, className, obj, true));
+      Binding b = new Binding(n, className, obj, true);
+      Binding old = (Binding) table.put(n, b);
+      touch();
+      updateIndex(n, b);
       if( log.isTraceEnabled() )
       {
          StringBuffer tmp = new StringBuffer(super.toString());
@@ -531,6 +1043,7 @@ public class NamingServer
          tmp.append(className);
          log.trace(tmp.toString());
       }
+      return old;
    }
 
    private Binding getBinding(String key)
@@ -578,9 +1091,13 @@ public class NamingServer
       return getBinding(key).getObject();
    }
 
-   private void removeBinding(Name name)
+   private Binding removeBinding(Name name)
    {
-      table.remove(name.get(0));
+      String n = name.get(0);
+      Binding old = (Binding) table.remove(n);
+      touch();
+      updateIndex(n, null);
+      return old;
    }
    
 }
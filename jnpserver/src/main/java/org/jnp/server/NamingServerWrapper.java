@@ -29,6 +29,8 @@ import javax.naming.Name;
 import javax.naming.NamingException;
 
 import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingOperation;
+import org.jnp.interfaces.NamingResult;
 
 /**
  * A delegating wrapper that can be used to create a unique rmi server endpoint
@@ -81,4 +83,24 @@ public class NamingServerWrapper
    {
       delegate.unbind(name);
    }
+   public NamingResult[] lookupAll(Name[] names)
+      throws NamingException, RemoteException
+   {
+      return delegate.lookupAll(names);
+   }
+   public NamingResult[] batch(NamingOperation[] operations, boolean atomic)
+      throws NamingException, RemoteException
+   {
+      return delegate.batch(operations, atomic);
+   }
+   public long getVersion(Name name)
+      throws NamingException, RemoteException
+   {
+      return delegate.getVersion(name);
+   }
+   public NamingResult lookupVersioned(Name name)
+      throws NamingException, RemoteException
+   {
+      return delegate.lookupVersioned(name);
+   }
 }
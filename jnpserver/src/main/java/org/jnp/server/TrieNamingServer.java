@@ -0,0 +1,405 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.server;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.Binding;
+import javax.naming.CannotProceedException;
+import javax.naming.Context;
+import javax.naming.InvalidNameException;
+import javax.naming.Name;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameClassPair;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.NotContextException;
+import javax.naming.Reference;
+import javax.naming.spi.ResolveResult;
+
+import org.jnp.interfaces.NamingContext;
+
+/**
+ * A NamingServer that stores the whole namespace in a single immutable
+ * hash trie. Each subcontext is a nested trie, and the root trie is published
+ * through an atomic reference. A lookup walks one consistent snapshot of the
+ * namespace without locking and without creating intermediate names, while
+ * an update builds a copy of the path to the modified binding and swaps in
+ * the new root.
+ *
+ * This is a root only implementation, subcontexts are not represented by
+ * NamingServer instances.
+ *
+ * @version $Revision$
+ */
+public class TrieNamingServer extends NamingServer
+{
+   private static final long serialVersionUID = 1L;
+
+   /** The update operations */
+   private static final int BIND = 0;
+   private static final int REBIND = 1;
+   private static final int UNBIND = 2;
+   private static final int CREATE_SUBCONTEXT = 3;
+
+   /** The current root trie of the namespace */
+   private final AtomicReference root = new AtomicReference(HashTrie.EMPTY);
+   /** The version of the namespace, incremented before and after each update */
+   private final AtomicLong version = new AtomicLong();
+
+   public TrieNamingServer()
+      throws NamingException
+   {
+      super();
+   }
+
+   /**
+    * The table is a read only view of the bindings of the current root
+    * snapshot.
+    */
+   protected Map createTable()
+   {
+      return new RootTable();
+   }
+
+   // Naming implementation -----------------------------------------
+
+   public void bind(Name name, Object obj, String className)
+      throws NamingException
+   {
+      update(name, BIND, obj, className);
+   }
+
+   public void rebind(Name name, Object obj, String className)
+      throws NamingException
+   {
+      update(name, REBIND, obj, className);
+   }
+
+   public void unbind(Name name)
+      throws NamingException
+   {
+      update(name, UNBIND, null, null);
+   }
+
+   public Context createSubcontext(Name name)
+      throws NamingException
+   {
+      if( name.size() == 0 )
+         throw new InvalidNameException("Cannot pass an empty name to createSubcontext");
+      update(name, CREATE_SUBCONTEXT, null, NamingContext.class.getName());
+      return new NamingContext(null, (Name) name.clone(), this);
+   }
+
+   public Object lookup(Name name)
+      throws NamingException
+   {
+      HashTrie trie = snapshot();
+      int last = name.size() - 1;
+      if (last < 0)
+         return getContextHandle();
+      for (int i = 0; i < last; i ++)
+      {
+         Object ctx = getObject(trie, name.get(i));
+         if (ctx instanceof HashTrie)
+         {
+            trie = (HashTrie) ctx;
+         }
+         else if (ctx instanceof Reference)
+         {
+            // Federation
+            Reference ref = (Reference) ctx;
+            if (ref.get("nns") != null)
+               throw cannotProceed(ref, name, i);
+            return new ResolveResult(ref, name.getSuffix(i + 1));
+         }
+         else
+         {
+            throw new NotContextException();
+         }
+      }
+
+      String atom = name.get(last);
+      if (atom.equals(""))
+         return new NamingContext(null, name.getPrefix(last), this);
+      Object res = getObject(trie, atom);
+      if (res instanceof HashTrie)
+         return new NamingContext(null, (Name) name.clone(), this);
+      return res;
+   }
+
+   public Collection list(Name name)
+      throws NamingException
+   {
+      List bindings = getContext(name).values();
+      Vector list = new Vector(bindings.size());
+      for (int i = 0; i < bindings.size(); i ++)
+      {
+         Binding b = (Binding) bindings.get(i);
+         list.addElement(new NameClassPair(b.getName(), b.getClassName(), true));
+      }
+      return list;
+   }
+
+   public Collection listBindings(Name name)
+      throws NamingException
+   {
+      List bindings = getContext(name).values();
+      Vector newBindings = new Vector(bindings.size());
+      for (int i = 0; i < bindings.size(); i ++)
+      {
+         Binding b = (Binding) bindings.get(i);
+         if (b.getObject() instanceof HashTrie)
+         {
+            Name n = (Name) name.clone();
+            n.add(b.getName());
+            newBindings.add(new Binding(b.getName(), b.getClassName(),
+               new NamingContext(null, n, this)));
+         }
+         else
+         {
+            newBindings.add(b);
+         }
+      }
+      return newBindings;
+   }
+
+   /**
+    * The version of the whole namespace, since the trie keeps no version per
+    * subcontext.
+    */
+   public long getVersion(Name name)
+      throws NamingException
+   {
+      return version.get();
+   }
+
+   // Protected -----------------------------------------------------
+
+   protected Binding resolveBinding(Name name)
+      throws NamingException
+   {
+      if (name.isEmpty())
+         throw new InvalidNameException();
+      HashTrie trie = snapshot();
+      int last = name.size() - 1;
+      for (int i = 0; i < last; i ++)
+      {
+         Binding b = (Binding) trie.get(name.get(i));
+         if (b == null || (b.getObject() instanceof HashTrie) == false)
+            return null;
+         trie = (HashTrie) b.getObject();
+      }
+      return (Binding) trie.get(name.get(last));
+   }
+
+   // Private -------------------------------------------------------
+
+   private HashTrie snapshot()
+   {
+      return (HashTrie) root.get();
+   }
+
+   /**
+    * Apply an update operation by copying the path to the target binding and
+    * swapping in the new root, retrying if another update won the race.
+    */
+   private void update(Name name, int op, Object obj, String className)
+      throws NamingException
+   {
+      if (name.isEmpty())
+      {
+         // Empty names are not allowed
+         throw new InvalidNameException();
+      }
+      version.incrementAndGet();
+      try
+      {
+         while (true)
+         {
+            HashTrie current = snapshot();
+            HashTrie updated = update(current, name, 0, op, obj, className);
+            if (updated == current || root.compareAndSet(current, updated))
+               return;
+         }
+      }
+      finally
+      {
+         version.incrementAndGet();
+      }
+   }
+
+   private HashTrie update(HashTrie trie, Name name, int pos, int op,
+      Object obj, String className)
+      throws NamingException
+   {
+      String atom = name.get(pos);
+      if (pos < name.size() - 1)
+      {
+         // Recurse to find correct context
+         Binding b = getBinding(trie, atom);
+         Object ctx = b.getObject();
+         if (ctx instanceof HashTrie)
+         {
+            HashTrie child = update((HashTrie) ctx, name, pos + 1, op, obj, className);
+            if (child == ctx)
+               return trie;
+            return trie.put(atom, new Binding(atom, b.getClassName(), child, true));
+         }
+         else if (ctx instanceof Reference)
+         {
+            // Federation
+            Reference ref = (Reference) ctx;
+            if (ref.get("nns") != null)
+               throw cannotProceed(ref, name, pos);
+         }
+         throw new NotContextException();
+      }
+
+      if (atom.equals(""))
+         throw new InvalidNameException();
+      switch (op)
+      {
+         case BIND:
+            if (trie.get(atom) != null)
+               throw new NameAlreadyBoundException();
+            return trie.put(atom, new Binding(atom, className, obj, true));
+         case REBIND:
+            return trie.put(atom, new Binding(atom, className, obj, true));
+         case UNBIND:
+            if (trie.get(atom) == null)
+               throw new NameNotFoundException(atom + " not bound");
+            return trie.remove(atom);
+         default:
+            if (trie.get(atom) != null)
+            {
+               NamingException ex = new NameAlreadyBoundException();
+               ex.setResolvedName(name.getPrefix(pos));
+               ex.setRemainingName(name.getSuffix(pos));
+               throw ex;
+            }
+            return trie.put(atom, new Binding(atom, className, HashTrie.EMPTY, true));
+      }
+   }
+
+   /**
+    * Walk the snapshot down to the context named by name.
+    */
+   private HashTrie getContext(Name name)
+      throws NamingException
+   {
+      HashTrie trie = snapshot();
+      for (int i = 0; i < name.size(); i ++)
+      {
+         Object ctx = getObject(trie, name.get(i));
+         if (ctx instanceof HashTrie)
+         {
+            trie = (HashTrie) ctx;
+         }
+         else
+         {
+            if (ctx instanceof Reference)
+            {
+               // Federation
+               Reference ref = (Reference) ctx;
+               if (ref.get("nns") != null)
+                  throw cannotProceed(ref, name, i);
+            }
+            throw new NotContextException();
+         }
+      }
+      return trie;
+   }
+
+   private static Binding getBinding(HashTrie trie, String atom)
+      throws NameNotFoundException
+   {
+      Binding b = (Binding) trie.get(atom);
+      if (b == null)
+         throw new NameNotFoundException(atom + " not bound");
+      return b;
+   }
+
+   private static Object getObject(HashTrie trie, String atom)
+      throws NameNotFoundException
+   {
+      return getBinding(trie, atom).getObject();
+   }
+
+   private static CannotProceedException cannotProceed(Reference ref, Name name, int pos)
+   {
+      CannotProceedException cpe = new CannotProceedException();
+      cpe.setResolvedObj(ref);
+      cpe.setRemainingName(name.getSuffix(pos + 1));
+      return cpe;
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * A read only Map view of the root level bindings.
+    */
+   private class RootTable extends AbstractMap implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      public Object get(Object key)
+      {
+         if ((key instanceof String) == false)
+            return null;
+         return snapshot().get((String) key);
+      }
+
+      public boolean containsKey(Object key)
+      {
+         return get(key) != null;
+      }
+
+      public int size()
+      {
+         return snapshot().size();
+      }
+
+      public Set entrySet()
+      {
+         List bindings = snapshot().values();
+         Map entries = new HashMap(bindings.size());
+         Iterator iter = bindings.iterator();
+         while (iter.hasNext())
+         {
+            Binding b = (Binding) iter.next();
+            entries.put(b.getName(), b);
+         }
+         return entries.entrySet();
+      }
+   }
+}
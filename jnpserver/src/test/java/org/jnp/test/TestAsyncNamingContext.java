@@ -0,0 +1,162 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.AsyncNamingContext;
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.server.NamingServer;
+
+/** Tests of the asynchronous lookup, list and bind of AsyncNamingContext.
+
+ @version $Revision$
+ */
+public class TestAsyncNamingContext extends TestCase
+{
+   public TestAsyncNamingContext(String name)
+   {
+      super(name);
+   }
+
+   public void testOperations() throws Exception
+   {
+      NamingContext ctx = new NamingContext(null, null, new NamingServer());
+      AsyncNamingContext async = new AsyncNamingContext(ctx);
+      assertNull(async.bindAsync("a", "a value").get());
+      assertEquals("a value", async.lookupAsync("a").get());
+      NamingEnumeration names = (NamingEnumeration) async.listAsync("").get();
+      assertTrue(names.hasMore());
+
+      try
+      {
+         async.lookupAsync("missing").get();
+         fail("Expected NameNotFoundException");
+      }
+      catch (ExecutionException e)
+      {
+         assertTrue(e.getCause() instanceof NameNotFoundException);
+      }
+   }
+
+   public void testDeadline() throws Exception
+   {
+      NamingServer server = new NamingServer();
+      NamingContext ctx = new NamingContext(null, null, slowProxy(server, 1000));
+      ctx.bind("slow", "value");
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try
+      {
+         AsyncNamingContext async = new AsyncNamingContext(ctx, executor);
+         Future lookup = async.lookupAsync("slow", 100);
+         long start = System.currentTimeMillis();
+         try
+         {
+            lookup.get();
+            fail("Expected CancellationException");
+         }
+         catch (CancellationException expected)
+         {
+         }
+         assertTrue(System.currentTimeMillis() - start < 900);
+
+         // A queued operation can be cancelled before it runs
+         Future first = async.lookupAsync("slow");
+         Future second = async.lookupAsync("slow");
+         Future queued = async.lookupAsync("slow");
+         assertTrue(queued.cancel(false));
+         assertEquals("value", first.get());
+         assertEquals("value", second.get());
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+   }
+
+   public void testCompletedDeadlines() throws Exception
+   {
+      NamingContext ctx = new NamingContext(null, null, new NamingServer());
+      ctx.bind("fast", "value");
+      AsyncNamingContext async = new AsyncNamingContext(ctx);
+      for (int i = 0; i < 1000; i ++)
+         assertEquals("value", async.lookupAsync("fast", 600000).get());
+
+      // The deadlines of the completed lookups are not left queued
+      Field field = AsyncNamingContext.class.getDeclaredField("deadlines");
+      field.setAccessible(true);
+      ScheduledThreadPoolExecutor deadlines = (ScheduledThreadPoolExecutor) field.get(null);
+      // FutureTask.done() of the last lookup may run after get() returned
+      for (int i = 0; i < 100 && deadlines.getQueue().isEmpty() == false; i ++)
+         Thread.sleep(10);
+      assertEquals(0, deadlines.getQueue().size());
+   }
+
+   private static Naming slowProxy(final Naming naming, final long delay)
+   {
+      InvocationHandler handler = new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+         {
+            if (method.getName().equals("equals"))
+               return Boolean.valueOf(proxy == args[0]);
+            if (method.getName().equals("lookup"))
+               Thread.sleep(delay);
+            try
+            {
+               return method.invoke(naming, args);
+            }
+            catch (InvocationTargetException e)
+            {
+               throw e.getTargetException();
+            }
+         }
+      };
+      return (Naming) Proxy.newProxyInstance(Naming.class.getClassLoader(),
+         new Class[] {Naming.class}, handler);
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestAsyncNamingContext.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
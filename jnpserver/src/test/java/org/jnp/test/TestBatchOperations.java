@@ -0,0 +1,189 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingOperation;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.interfaces.NamingResult;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+import org.jnp.server.NamingServer;
+import org.jnp.server.TrieNamingServer;
+
+/** Tests of batches of bind, rebind and unbind operations, applied directly
+ to both storage engines and through NamingContext to a remote naming
+ server. The time to register a batch of names remotely is reported against
+ single binds.
+
+ @version $Revision$
+ */
+public class TestBatchOperations extends TestCase
+{
+   private static final int BATCH = 500;
+
+   private NamingParser parser = new NamingParser();
+
+   public TestBatchOperations(String name)
+   {
+      super(name);
+   }
+
+   public void testAtomicMapEngine() throws Exception
+   {
+      runAtomicScenario(new NamingServer());
+   }
+
+   public void testAtomicTrieEngine() throws Exception
+   {
+      runAtomicScenario(new TrieNamingServer());
+   }
+
+   public void testRemoteBatch() throws Exception
+   {
+      NamingBeanImpl namingBean = new NamingBeanImpl();
+      namingBean.start();
+      Main namingMain = new Main();
+      namingMain.setPort(0);
+      namingMain.setBindAddress("localhost");
+      namingMain.setNamingInfo(namingBean);
+      namingMain.start();
+      try
+      {
+         Hashtable env = new Hashtable();
+         env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+         NamingContext ctx = new NamingContext(env, null, null);
+         ctx.createSubcontext("single");
+         ctx.createSubcontext("batched");
+
+         NamingOperation[] ops = new NamingOperation[BATCH];
+         for (int i = 0; i < BATCH; i ++)
+            ops[i] = new NamingOperation(NamingOperation.BIND, parser.parse("batched/name" + i), "value" + i);
+         long start = System.nanoTime();
+         for (int i = 0; i < BATCH; i ++)
+            ctx.bind("single/name" + i, "value" + i);
+         long single = System.nanoTime() - start;
+         start = System.nanoTime();
+         NamingResult[] results = ctx.batch(ops, false);
+         long batch = System.nanoTime() - start;
+         for (int i = 0; i < BATCH; i ++)
+            assertFalse(results[i].isFailure());
+         assertEquals("value7", ctx.lookup("batched/name7"));
+         System.out.println(BATCH + " names, bind ms=" + single / 1000000
+            + ", batch ms=" + batch / 1000000);
+
+         // A failed operation does not stop a batch that is not atomic
+         ops = new NamingOperation[] {
+            new NamingOperation(NamingOperation.BIND, parser.parse("batched/name1"), "again"),
+            new NamingOperation(NamingOperation.REBIND, parser.parse("batched/name1"), "replaced"),
+            new NamingOperation(NamingOperation.UNBIND, parser.parse("batched/name2"), null)
+         };
+         results = ctx.batch(ops, false);
+         assertTrue(results[0].getException() instanceof NameAlreadyBoundException);
+         assertFalse(results[1].isFailure());
+         assertFalse(results[2].isFailure());
+         assertEquals("replaced", ctx.lookup("batched/name1"));
+         try
+         {
+            ctx.lookup("batched/name2");
+            fail("Expected NameNotFoundException");
+         }
+         catch (NameNotFoundException expected)
+         {
+         }
+      }
+      finally
+      {
+         namingMain.stop();
+         namingBean.stop();
+      }
+   }
+
+   private void runAtomicScenario(Naming server) throws Exception
+   {
+      server.createSubcontext(parser.parse("app"));
+      server.createSubcontext(parser.parse("app/sub"));
+      server.bind(parser.parse("app/sub/x"), "x", String.class.getName());
+      server.bind(parser.parse("app/a"), "a", String.class.getName());
+      server.bind(parser.parse("app/b"), "b", String.class.getName());
+
+      NamingOperation[] ops = {
+         new NamingOperation(NamingOperation.BIND, parser.parse("app/c"), "c", String.class.getName()),
+         new NamingOperation(NamingOperation.REBIND, parser.parse("app/a"), "a2", String.class.getName()),
+         new NamingOperation(NamingOperation.UNBIND, parser.parse("app/b"), null, null),
+         new NamingOperation(NamingOperation.REBIND, parser.parse("app/sub"), "plain", String.class.getName()),
+         new NamingOperation(NamingOperation.BIND, parser.parse("app/a"), "conflict", String.class.getName()),
+         new NamingOperation(NamingOperation.BIND, parser.parse("app/d"), "d", String.class.getName())
+      };
+      NamingResult[] results = server.batch(ops, true);
+      assertEquals(ops.length, results.length);
+      assertTrue(results[4].getException() instanceof NameAlreadyBoundException);
+      for (int i = 0; i < ops.length; i ++)
+         assertTrue("Operation " + i + " failed", results[i].isFailure());
+
+      // Nothing was applied
+      assertEquals("a", server.lookup(parser.parse("app/a")));
+      assertEquals("b", server.lookup(parser.parse("app/b")));
+      assertEquals("x", server.lookup(parser.parse("app/sub/x")));
+      assertNotFound(server, "app/c");
+      assertNotFound(server, "app/d");
+
+      // Without the conflict the whole batch applies
+      ops[4] = new NamingOperation(NamingOperation.BIND, parser.parse("app/e"), "e", String.class.getName());
+      results = server.batch(ops, true);
+      for (int i = 0; i < ops.length; i ++)
+         assertFalse("Operation " + i + " succeeded", results[i].isFailure());
+      assertEquals("a2", server.lookup(parser.parse("app/a")));
+      assertEquals("plain", server.lookup(parser.parse("app/sub")));
+      assertEquals("d", server.lookup(parser.parse("app/d")));
+      assertNotFound(server, "app/b");
+   }
+
+   private void assertNotFound(Naming server, String name) throws Exception
+   {
+      try
+      {
+         server.lookup(parser.parse(name));
+         fail("Expected NameNotFoundException for " + name);
+      }
+      catch (NameNotFoundException expected)
+      {
+      }
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestBatchOperations.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
@@ -0,0 +1,382 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.BinaryNaming;
+import org.jnp.interfaces.BinaryProtocol;
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingOperation;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.interfaces.NamingResult;
+import org.jnp.interfaces.TimedSocketFactory;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/** Tests of the binary naming protocol, with a loopback benchmark of its
+ lookups against those over RMI.
+
+ @version $Revision$
+ */
+public class TestBinaryNaming extends TestCase
+{
+   private NamingBeanImpl namingBean;
+   private Main namingMain;
+   private NamingParser parser = new NamingParser();
+
+   public TestBinaryNaming(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      namingBean = new NamingBeanImpl();
+      namingBean.start();
+      namingMain = new Main();
+      namingMain.setPort(0);
+      namingMain.setBinaryPort(0);
+      namingMain.setBindAddress("localhost");
+      namingMain.setNamingInfo(namingBean);
+      namingMain.start();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      namingMain.stop();
+      namingBean.stop();
+   }
+
+   public void testContext() throws Exception
+   {
+      Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+      NamingContext ctx = new NamingContext(env, null, null);
+      ctx.bind("a", "a value");
+      assertTrue(ctx.getNaming() instanceof BinaryNaming);
+      assertEquals("a value", ctx.lookup("a"));
+      ctx.rebind("a", new Integer(1));
+      assertEquals(new Integer(1), ctx.lookup("a"));
+
+      // The naming server of a subcontext is the binary proxy
+      Context sub = ctx.createSubcontext("sub");
+      sub.bind("b", "b value");
+      assertEquals("b value", ctx.lookup("sub/b"));
+      assertTrue(((NamingContext) ctx.lookup("sub")).getNaming() instanceof BinaryNaming);
+
+      int count = 0;
+      NamingEnumeration iter = ctx.listBindings("sub");
+      while (iter.hasMore())
+      {
+         iter.next();
+         count ++;
+      }
+      assertEquals(1, count);
+
+      ctx.unbind("a");
+      try
+      {
+         ctx.lookup("a");
+         fail("Expected NameNotFoundException");
+      }
+      catch (NameNotFoundException expected)
+      {
+      }
+   }
+
+   public void testNaming() throws Exception
+   {
+      Naming naming = new BinaryNaming("localhost", namingMain.getBinaryPort(), null);
+      NamingResult[] results = naming.batch(new NamingOperation[] {
+         new NamingOperation(NamingOperation.BIND, parser.parse("x"), "x value"),
+         new NamingOperation(NamingOperation.BIND, parser.parse("y"), "y value")}, true);
+      assertFalse(results[0].isFailure());
+      results = naming.lookupAll(new Name[] {parser.parse("x"), parser.parse("missing")});
+      assertEquals("x value", results[0].getValue());
+      assertTrue(results[1].getException() instanceof NameNotFoundException);
+      assertTrue(naming.getVersion(parser.parse("x")) >= -1);
+      assertEquals(namingBean.getNamingInstance().list(parser.parse("")).size(),
+         naming.list(parser.parse("")).size());
+   }
+
+   public void testPipelinedCalls() throws Exception
+   {
+      final Naming naming = new BinaryNaming("localhost", namingMain.getBinaryPort(), null);
+      for (int i = 0; i < 10; i ++)
+         naming.bind(parser.parse("n" + i), "v" + i, String.class.getName());
+      final Exception[] failures = new Exception[10];
+      Thread[] threads = new Thread[failures.length];
+      for (int i = 0; i < threads.length; i ++)
+      {
+         final int index = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  Name name = parser.parse("n" + index);
+                  for (int n = 0; n < 500; n ++)
+                  {
+                     if (("v" + index).equals(naming.lookup(name)) == false)
+                        throw new IllegalStateException("Wrong value for " + name);
+                  }
+               }
+               catch (Exception e)
+               {
+                  failures[index] = e;
+               }
+            }
+         };
+         threads[i].start();
+      }
+      for (int i = 0; i < threads.length; i ++)
+      {
+         threads[i].join();
+         if (failures[i] != null)
+            throw failures[i];
+      }
+   }
+
+   public void testFallback() throws Exception
+   {
+      ServerSocket unused = new ServerSocket(0);
+      int port = unused.getLocalPort();
+      unused.close();
+      Naming naming = new BinaryNaming("localhost", port, namingBean.getNamingInstance());
+      naming.bind(parser.parse("f"), "f value", String.class.getName());
+      assertEquals("f value", naming.lookup(parser.parse("f")));
+   }
+
+   public void testTimeout() throws Exception
+   {
+      // A binary port that accepts connections but never answers
+      ServerSocket dead = new ServerSocket(0);
+      try
+      {
+         BinaryNaming naming = new BinaryNaming("localhost", dead.getLocalPort(), null);
+         naming.setTimeout(200);
+         long start = System.currentTimeMillis();
+         try
+         {
+            naming.lookup(parser.parse("t"));
+            fail("Expected RemoteException");
+         }
+         catch (RemoteException expected)
+         {
+         }
+         assertTrue(System.currentTimeMillis() - start < 2000);
+      }
+      finally
+      {
+         dead.close();
+      }
+
+      // The proxy of a bootstrap gets the sotimeout of the env
+      Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+      env.put(TimedSocketFactory.JNP_SO_TIMEOUT, "5000");
+      NamingContext ctx = new NamingContext(env, null, null);
+      ctx.list("");
+      assertEquals(5000, ((BinaryNaming) ctx.getNaming()).getTimeout());
+   }
+
+   public void testUnreadResponses() throws Exception
+   {
+      char[] chars = new char[256];
+      Arrays.fill(chars, 'x');
+      namingBean.getNamingInstance().rebind(parser.parse("big"), new String(chars), String.class.getName());
+
+      // A client that pipelines lookups without reading the responses
+      final int count = 500000;
+      final Socket socket = new Socket("localhost", namingMain.getBinaryPort());
+      try
+      {
+         final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(frame);
+         out.writeInt(0);
+         out.writeInt(1);
+         out.writeByte(BinaryProtocol.LOOKUP);
+         BinaryProtocol.writeName(out, parser.parse("big"));
+         final byte[] request = frame.toByteArray();
+         int length = request.length - 4;
+         request[2] = (byte) (length >>> 8);
+         request[3] = (byte) length;
+         final CountDownLatch written = new CountDownLatch(1);
+         Thread writer = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+                  for (int i = 0; i < count; i ++)
+                     os.write(request);
+                  os.flush();
+                  written.countDown();
+               }
+               catch (IOException ignored)
+               {
+               }
+            }
+         };
+         writer.setDaemon(true);
+         writer.start();
+
+         // The server stops reading the requests once the responses back up
+         assertFalse(written.await(5, TimeUnit.SECONDS));
+
+         // All the requests are answered once the client reads
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         for (int i = 0; i < count; i ++)
+         {
+            int responseLength = in.readInt();
+            in.skipBytes(responseLength);
+         }
+         assertTrue(written.await(10, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         socket.close();
+      }
+   }
+
+   public void testInvalidLengths() throws Exception
+   {
+      Socket socket = new Socket("localhost", namingMain.getBinaryPort());
+      try
+      {
+         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+         DataInputStream in = new DataInputStream(socket.getInputStream());
+
+         // A lookupAll of more names than the frame holds
+         ByteArrayOutputStream frame = new ByteArrayOutputStream();
+         DataOutputStream request = new DataOutputStream(frame);
+         request.writeInt(1);
+         request.writeByte(BinaryProtocol.LOOKUP_ALL);
+         request.writeInt(Integer.MAX_VALUE);
+         assertRejected(out, in, frame.toByteArray(), 1);
+
+         // A bound value longer than the frame
+         frame.reset();
+         request.writeInt(2);
+         request.writeByte(BinaryProtocol.BIND);
+         BinaryProtocol.writeName(request, parser.parse("huge"));
+         request.writeBoolean(false);
+         request.writeByte(3);
+         request.writeInt(Integer.MAX_VALUE - 16);
+         assertRejected(out, in, frame.toByteArray(), 2);
+
+         // The server still answers other calls
+         NamingContext ctx = new NamingContext(null, null, new BinaryNaming("localhost",
+            namingMain.getBinaryPort(), null));
+         ctx.bind("after", "value");
+         assertEquals("value", ctx.lookup("after"));
+      }
+      finally
+      {
+         socket.close();
+      }
+   }
+
+   private static void assertRejected(DataOutputStream out, DataInputStream in,
+      byte[] request, int requestId) throws IOException
+   {
+      out.writeInt(request.length);
+      out.write(request);
+      out.flush();
+      byte[] response = new byte[in.readInt()];
+      in.readFully(response);
+      DataInputStream value = new DataInputStream(new ByteArrayInputStream(response));
+      assertEquals(requestId, value.readInt());
+      assertEquals(BinaryProtocol.STATUS_EXCEPTION, value.readByte());
+   }
+
+   public void testBenchmark() throws Exception
+   {
+      NamingBeanImpl rmiBean = new NamingBeanImpl();
+      rmiBean.start();
+      Main rmiMain = new Main();
+      rmiMain.setPort(0);
+      rmiMain.setBindAddress("localhost");
+      rmiMain.setNamingInfo(rmiBean);
+      rmiMain.start();
+      try
+      {
+         long binary = time(namingMain.getPort());
+         long rmi = time(rmiMain.getPort());
+         System.out.println("10000 lookups: binary=" + binary + "ms, rmi=" + rmi + "ms");
+      }
+      finally
+      {
+         rmiMain.stop();
+         rmiBean.stop();
+      }
+   }
+
+   private long time(int port) throws Exception
+   {
+      Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + port);
+      NamingContext ctx = new NamingContext(env, null, null);
+      ctx.rebind("bench", "value");
+      Naming naming = ctx.getNaming();
+      Name name = parser.parse("bench");
+      for (int i = 0; i < 2000; i ++)
+         naming.lookup(name);
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < 10000; i ++)
+         naming.lookup(name);
+      return System.currentTimeMillis() - start;
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestBinaryNaming.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
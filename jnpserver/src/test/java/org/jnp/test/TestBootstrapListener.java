@@ -0,0 +1,195 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.Socket;
+import java.rmi.MarshalledObject;
+import java.util.Arrays;
+
+import javax.net.ServerSocketFactory;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.HealthProbe;
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/** Tests of the bootstrap listener of Main, which writes the stub
+ serialized once to every client and answers the health probes.
+
+ @version $Revision$
+ */
+public class TestBootstrapListener extends TestCase
+{
+   private NamingBeanImpl namingBean;
+   private Main namingMain;
+
+   public TestBootstrapListener(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      namingBean = new NamingBeanImpl();
+      namingBean.start();
+      namingMain = new Main();
+      namingMain.setPort(0);
+      namingMain.setBindAddress("localhost");
+      namingMain.setNamingInfo(namingBean);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      namingMain.stop();
+      namingBean.stop();
+   }
+
+   public void testConcurrentBootstrap() throws Exception
+   {
+      namingMain.start();
+      final Exception[] failures = new Exception[20];
+      Thread[] threads = new Thread[failures.length];
+      for (int i = 0; i < threads.length; i ++)
+      {
+         final int index = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int n = 0; n < 25; n ++)
+                  {
+                     if ((bootstrap() instanceof Naming) == false)
+                        throw new IllegalStateException("Not a Naming stub");
+                  }
+               }
+               catch (Exception e)
+               {
+                  failures[index] = e;
+               }
+            }
+         };
+         threads[i].start();
+      }
+      for (int i = 0; i < threads.length; i ++)
+      {
+         threads[i].join();
+         if (failures[i] != null)
+            throw failures[i];
+      }
+   }
+
+   public void testNamingProxyChange() throws Exception
+   {
+      namingMain.start();
+      assertTrue(bootstrap() instanceof Naming);
+      namingMain.setNamingProxy("proxy");
+      assertEquals("proxy", bootstrap());
+   }
+
+   public void testLargeStub() throws Exception
+   {
+      byte[] proxy = new byte[4 * 1024 * 1024];
+      Arrays.fill(proxy, (byte) 7);
+      namingMain.setNamingProxy(proxy);
+      namingMain.start();
+      assertTrue(Arrays.equals(proxy, (byte[]) bootstrap()));
+   }
+
+   public void testServerSocketFactory() throws Exception
+   {
+      namingMain.setJNPServerSocketFactoryBean(ServerSocketFactory.getDefault());
+      namingMain.start();
+      assertTrue(bootstrap() instanceof Naming);
+      namingMain.setNamingProxy("proxy");
+      assertEquals("proxy", bootstrap());
+   }
+
+   public void testHealthProbe() throws Exception
+   {
+      NamingParser parser = new NamingParser();
+      Naming naming = namingBean.getNamingInstance();
+      int bindings = naming.list(parser.parse("")).size();
+      naming.bind(parser.parse("a"), "a", String.class.getName());
+      naming.bind(parser.parse("b"), "b", String.class.getName());
+      namingMain.setHealthProbeWait(200);
+      namingMain.start();
+      HealthProbe health = HealthProbe.probe("localhost", namingMain.getPort(), 2000);
+      assertTrue(health.isReady());
+      assertEquals(bindings + 2, health.getBindingCount());
+      assertTrue(health.getUptime() >= 0);
+
+      // The bootstrap clients still get the stub after the wait
+      assertTrue(bootstrap() instanceof Naming);
+   }
+
+   public void testHealthProbeServerSocketFactory() throws Exception
+   {
+      namingMain.setJNPServerSocketFactoryBean(ServerSocketFactory.getDefault());
+      namingMain.setHealthProbeWait(200);
+      namingMain.start();
+      assertTrue(HealthProbe.probe("localhost", namingMain.getPort(), 2000).isReady());
+      assertTrue(bootstrap() instanceof Naming);
+   }
+
+   public void testHealthProbeDisabled() throws Exception
+   {
+      namingMain.start();
+      try
+      {
+         HealthProbe.probe("localhost", namingMain.getPort(), 2000);
+         fail("Expected IOException");
+      }
+      catch (IOException expected)
+      {
+      }
+   }
+
+   private Object bootstrap() throws Exception
+   {
+      Socket s = new Socket("localhost", namingMain.getPort());
+      try
+      {
+         ObjectInputStream in = new ObjectInputStream(s.getInputStream());
+         MarshalledObject stub = (MarshalledObject) in.readObject();
+         return stub.get();
+      }
+      finally
+      {
+         s.close();
+      }
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestBootstrapListener.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.util.Hashtable;
+
+import javax.naming.Binding;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.OperationNotSupportedException;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.server.NamingServer;
+
+/** Tests of the shared context handles returned by NamingServer lookups,
+ and of the copy on write environment of the contexts a NamingContext
+ derives from them.
+
+ @version $Revision$
+ */
+public class TestContextHandles extends TestCase
+{
+   private NamingParser parser = new NamingParser();
+
+   public TestContextHandles(String name)
+   {
+      super(name);
+   }
+
+   public void testServerReturnsSameHandle() throws Exception
+   {
+      NamingServer server = new NamingServer();
+      server.createSubcontext(parser.parse("comp"));
+      server.createSubcontext(parser.parse("comp/env"));
+      Object ctx = server.lookup(parser.parse("comp/env"));
+      assertSame(ctx, server.lookup(parser.parse("comp/env")));
+      assertSame(server.lookup(parser.parse("")), server.lookup(parser.parse("")));
+      assertEquals("comp/env", ((NamingContext) ctx).getNameInNamespace());
+      Binding b = (Binding) server.listBindings(parser.parse("comp")).iterator().next();
+      assertSame(ctx, b.getObject());
+      try
+      {
+         ((NamingContext) ctx).addToEnvironment("key", "value");
+         fail("Expected OperationNotSupportedException");
+      }
+      catch (OperationNotSupportedException expected)
+      {
+      }
+   }
+
+   public void testCopyOnWriteEnvironment() throws Exception
+   {
+      NamingServer server = new NamingServer();
+      server.createSubcontext(parser.parse("comp"));
+      server.createSubcontext(parser.parse("comp/env"));
+      server.bind(parser.parse("comp/env/ds"), "OrdersDS", String.class.getName());
+      Hashtable env = new Hashtable();
+      env.put("custom", "parent");
+      NamingContext root = new NamingContext(env, null, server);
+
+      Context sub = (Context) root.lookup("java:comp/env");
+      assertEquals("comp/env", sub.getNameInNamespace());
+      assertEquals("parent", sub.getEnvironment().get("custom"));
+      assertNull(sub.getEnvironment().get(NamingContext.JNP_PARSED_NAME));
+      assertEquals("OrdersDS", sub.lookup("ds"));
+      // The handle was not modified
+      assertNotSame(sub, server.lookup(parser.parse("comp/env")));
+
+      // Writes by either context are not seen by the other
+      sub.addToEnvironment("custom", "child");
+      assertEquals("parent", root.getEnvironment().get("custom"));
+      Context other = (Context) root.lookup("comp");
+      root.addToEnvironment("custom", "changed");
+      assertEquals("parent", other.getEnvironment().get("custom"));
+      assertEquals("child", sub.getEnvironment().get("custom"));
+
+      NamingEnumeration bindings = root.listBindings("comp");
+      Context listed = (Context) ((Binding) bindings.next()).getObject();
+      assertEquals("changed", listed.getEnvironment().get("custom"));
+      listed.removeFromEnvironment("custom");
+      assertEquals("changed", root.getEnvironment().get("custom"));
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestContextHandles.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
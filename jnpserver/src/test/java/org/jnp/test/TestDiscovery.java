@@ -0,0 +1,251 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Context;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.NamingContext;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/** Tests of the multicast discovery of NamingContext against a responder
+ that answers every request with an unreachable server first and the naming
+ server second, and of the discovery responder of Main.
+
+ @version $Revision$
+ */
+public class TestDiscovery extends TestCase
+{
+   private static final String GROUP = "230.0.0.99";
+
+   private NamingBeanImpl namingBean;
+   private Main namingMain;
+   private MulticastSocket responder;
+   private AtomicInteger requests = new AtomicInteger();
+   private int deadPort;
+
+   public TestDiscovery(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      namingBean = new NamingBeanImpl();
+      namingBean.start();
+      namingMain = new Main();
+      namingMain.setPort(0);
+      namingMain.setBindAddress("localhost");
+      namingMain.setNamingInfo(namingBean);
+      namingMain.start();
+
+      ServerSocket unused = new ServerSocket(0);
+      deadPort = unused.getLocalPort();
+      unused.close();
+      DatagramSocket free = new DatagramSocket(0);
+      int discoveryPort = free.getLocalPort();
+      free.close();
+      responder = new MulticastSocket(discoveryPort);
+      responder.joinGroup(InetAddress.getByName(GROUP));
+      Thread t = new Thread("TestDiscovery responder")
+      {
+         public void run()
+         {
+            respond();
+         }
+      };
+      t.setDaemon(true);
+      t.start();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      responder.close();
+      namingMain.stop();
+      namingBean.stop();
+   }
+
+   public void testSharedDiscovery() throws Exception
+   {
+      final Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + deadPort);
+      env.put(NamingContext.JNP_PARTITION_NAME, "TestPartition");
+      env.put(NamingContext.JNP_DISCOVERY_GROUP, GROUP);
+      env.put(NamingContext.JNP_DISCOVERY_PORT, String.valueOf(responder.getLocalPort()));
+      env.put(NamingContext.JNP_DISCOVERY_TIMEOUT, "2000");
+      env.put(NamingContext.JNP_DISCOVERY_WINDOW, "300");
+
+      final CountDownLatch start = new CountDownLatch(1);
+      final Exception[] failures = new Exception[5];
+      Thread[] threads = new Thread[failures.length];
+      for (int i = 0; i < threads.length; i ++)
+      {
+         final int index = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  start.await();
+                  new NamingContext(env, null, null).list("");
+               }
+               catch (Exception e)
+               {
+                  failures[index] = e;
+               }
+            }
+         };
+         threads[i].start();
+      }
+      start.countDown();
+      for (int i = 0; i < threads.length; i ++)
+      {
+         threads[i].join();
+         if (failures[i] != null)
+            throw failures[i];
+      }
+      assertEquals(1, requests.get());
+
+      // The discovered servers are cached
+      new NamingContext(env, null, null).list("");
+      assertEquals(1, requests.get());
+   }
+
+   public void testMainResponder() throws Exception
+   {
+      NamingBeanImpl bean = new NamingBeanImpl();
+      bean.start();
+      Main main = new Main();
+      main.setPort(0);
+      main.setBindAddress("localhost");
+      main.setNamingInfo(bean);
+      main.setDiscoveryEnabled(true);
+      main.setDiscoveryGroup(GROUP);
+      main.setDiscoveryPort(0);
+      main.setDiscoveryPartitionName("ResponderPartition");
+      main.start();
+      MulticastSocket client = new MulticastSocket(0);
+      try
+      {
+         Hashtable env = new Hashtable();
+         env.put(Context.PROVIDER_URL, "localhost:" + deadPort);
+         env.put(NamingContext.JNP_PARTITION_NAME, "ResponderPartition");
+         env.put(NamingContext.JNP_DISCOVERY_GROUP, GROUP);
+         env.put(NamingContext.JNP_DISCOVERY_PORT, String.valueOf(main.getDiscoveryPort()));
+         env.put(NamingContext.JNP_DISCOVERY_TIMEOUT, "2000");
+         env.put(NamingContext.JNP_DISCOVERY_WINDOW, "50");
+         bean.getNamingInstance().bind(new NamingContext(null, null, null).getNameParser("").parse("responder"),
+            "found", String.class.getName());
+         assertEquals("found", new NamingContext(env, null, null).lookup("responder"));
+
+         // Requests for other partitions are ignored
+         InetAddress group = InetAddress.getByName(GROUP);
+         client.setSoTimeout(300);
+         assertNull(discover(client, group, main.getDiscoveryPort(), "GET_ADDRESS:OtherPartition"));
+         String expected = InetAddress.getByName("localhost").getHostAddress() + ":" + main.getPort();
+         assertEquals(expected, discover(client, group, main.getDiscoveryPort(), "GET_ADDRESS"));
+
+         // A burst of requests is answered
+         client.setSoTimeout(2000);
+         long start = System.currentTimeMillis();
+         for (int i = 0; i < 1000; i ++)
+            assertEquals(expected, discover(client, group, main.getDiscoveryPort(), "GET_ADDRESS:ResponderPartition"));
+         assertTrue(System.currentTimeMillis() - start < 5000);
+      }
+      finally
+      {
+         client.close();
+         main.stop();
+         bean.stop();
+      }
+   }
+
+   /**
+    * Send a discovery request and wait for the reply.
+    *
+    * @return the reply, null if none arrived before the socket timeout
+    */
+   private String discover(MulticastSocket client, InetAddress group, int port, String request)
+      throws Exception
+   {
+      byte[] data = request.getBytes();
+      client.send(new DatagramPacket(data, data.length, group, port));
+      byte[] buf = new byte[100];
+      DatagramPacket reply = new DatagramPacket(buf, buf.length);
+      try
+      {
+         client.receive(reply);
+      }
+      catch (SocketTimeoutException e)
+      {
+         return null;
+      }
+      return new String(reply.getData(), 0, reply.getLength());
+   }
+
+   private void respond()
+   {
+      byte[] buf = new byte[100];
+      while (responder.isClosed() == false)
+      {
+         try
+         {
+            DatagramPacket request = new DatagramPacket(buf, buf.length);
+            responder.receive(request);
+            String data = new String(request.getData(), 0, request.getLength());
+            if (data.equals("GET_ADDRESS:TestPartition") == false)
+               continue;
+            requests.incrementAndGet();
+            byte[] dead = ("localhost:" + deadPort).getBytes();
+            responder.send(new DatagramPacket(dead, dead.length, request.getSocketAddress()));
+            Thread.sleep(50);
+            byte[] live = ("localhost:" + namingMain.getPort()).getBytes();
+            responder.send(new DatagramPacket(live, live.length, request.getSocketAddress()));
+         }
+         catch (Exception e)
+         {
+            // Closed
+         }
+      }
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestDiscovery.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
@@ -0,0 +1,166 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.UnmarshalException;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingResult;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/** Tests of NamingContext.lookupAll against a remote naming server, and of
+ the fallback to single lookups for a server without lookupAll. The time to
+ resolve a batch of names remotely is reported for both.
+
+ @version $Revision$
+ */
+public class TestLookupAll extends TestCase
+{
+   private static final int BATCH = 500;
+
+   private NamingBeanImpl namingBean;
+   private Main namingMain;
+   private NamingContext ctx;
+
+   public TestLookupAll(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      namingBean = new NamingBeanImpl();
+      namingBean.start();
+      namingMain = new Main();
+      namingMain.setPort(0);
+      namingMain.setBindAddress("localhost");
+      namingMain.setNamingInfo(namingBean);
+      namingMain.start();
+
+      Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+      ctx = new NamingContext(env, null, null);
+      ctx.createSubcontext("batch");
+      for (int i = 0; i < BATCH; i ++)
+         ctx.bind("batch/name" + i, "value" + i);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      for (int i = 0; i < BATCH; i ++)
+         ctx.unbind("batch/name" + i);
+      ctx.destroySubcontext("batch");
+      namingMain.stop();
+      namingBean.stop();
+   }
+
+   public void testLookupAll() throws Exception
+   {
+      NamingResult[] results = ctx.lookupAll(new String[] {"batch/name1", "batch/missing", "batch", "batch/name2"});
+      assertEquals(4, results.length);
+      assertEquals("value1", results[0].getValue());
+      assertTrue(results[1].isFailure());
+      assertTrue(results[1].getException() instanceof NameNotFoundException);
+      try
+      {
+         results[1].getValue();
+         fail("Expected NameNotFoundException");
+      }
+      catch (NameNotFoundException expected)
+      {
+      }
+      Context batch = (Context) results[2].getValue();
+      assertEquals("batch", batch.getNameInNamespace());
+      assertEquals("value2", results[3].getValue());
+   }
+
+   public void testFallbackToLookup() throws Exception
+   {
+      final Naming naming = ctx.getNaming();
+      InvocationHandler handler = new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+         {
+            if (method.getName().equals("lookupAll"))
+               throw new UnmarshalException("unrecognized method hash: method not supported by remote object");
+            try
+            {
+               return method.invoke(naming, args);
+            }
+            catch (InvocationTargetException e)
+            {
+               throw e.getTargetException();
+            }
+         }
+      };
+      Naming oldServer = (Naming) Proxy.newProxyInstance(Naming.class.getClassLoader(),
+         new Class[] {Naming.class}, handler);
+      NamingContext oldCtx = new NamingContext(ctx.getEnvironment(), null, oldServer);
+      NamingResult[] results = oldCtx.lookupAll(new String[] {"batch/name1", "batch/missing"});
+      assertEquals("value1", results[0].getValue());
+      assertTrue(results[1].getException() instanceof NameNotFoundException);
+   }
+
+   public void testBatchRoundTrips() throws Exception
+   {
+      String[] names = new String[BATCH];
+      for (int i = 0; i < BATCH; i ++)
+         names[i] = "batch/name" + i;
+      // Warm up
+      for (int i = 0; i < BATCH; i ++)
+         ctx.lookup(names[i]);
+      ctx.lookupAll(names);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < BATCH; i ++)
+         ctx.lookup(names[i]);
+      long single = System.nanoTime() - start;
+      start = System.nanoTime();
+      NamingResult[] results = ctx.lookupAll(names);
+      long batch = System.nanoTime() - start;
+      for (int i = 0; i < BATCH; i ++)
+         assertEquals("value" + i, results[i].getValue());
+      System.out.println(BATCH + " names, lookup ms=" + single / 1000000
+         + ", lookupAll ms=" + batch / 1000000);
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestLookupAll.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
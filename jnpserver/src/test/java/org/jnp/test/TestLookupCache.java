@@ -0,0 +1,197 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.MarshalledValuePair;
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.server.NamingServer;
+import org.jnp.server.TrieNamingServer;
+
+/** Tests of the naming server versions and of the NamingContext lookup
+ cache that revalidates against them.
+
+ @version $Revision$
+ */
+public class TestLookupCache extends TestCase
+{
+   private NamingParser parser = new NamingParser();
+
+   public TestLookupCache(String name)
+   {
+      super(name);
+   }
+
+   public void testServerVersions() throws Exception
+   {
+      NamingServer server = new NamingServer();
+      server.createSubcontext(parser.parse("a"));
+      server.createSubcontext(parser.parse("a/b"));
+      server.createSubcontext(parser.parse("c"));
+      server.bind(parser.parse("a/b/x"), "x", String.class.getName());
+      // The updates before the first getVersion assign no versions
+      assertEquals(0, server.getVersion(parser.parse("a/b/x")));
+      server.rebind(parser.parse("a/b/x"), "x", String.class.getName());
+      long v = server.getVersion(parser.parse("a/b/x"));
+      assertTrue(v != 0);
+
+      // Updates of an unrelated context do not change the version
+      server.bind(parser.parse("c/y"), "y", String.class.getName());
+      assertEquals(v, server.getVersion(parser.parse("a/b/x")));
+
+      server.rebind(parser.parse("a/b/x"), "x2", String.class.getName());
+      long v2 = server.getVersion(parser.parse("a/b/x"));
+      assertTrue(v2 != v);
+
+      // Replacing a context on the path changes the version
+      server.unbind(parser.parse("a/b/x"));
+      server.unbind(parser.parse("a/b"));
+      server.createSubcontext(parser.parse("a/b"));
+      server.bind(parser.parse("a/b/x"), "x2", String.class.getName());
+      assertTrue(v2 != server.getVersion(parser.parse("a/b/x")));
+      assertEquals(-1, server.getVersion(parser.parse("missing/x")));
+
+      TrieNamingServer trie = new TrieNamingServer();
+      v = trie.getVersion(parser.parse("x"));
+      trie.bind(parser.parse("x"), "x", String.class.getName());
+      assertTrue(v != trie.getVersion(parser.parse("x")));
+   }
+
+   public void testCachedLookups() throws Exception
+   {
+      NamingServer server = new NamingServer();
+      server.createSubcontext(parser.parse("jdbc"));
+      server.bind(parser.parse("jdbc/DS"), new MarshalledValuePair("ds1"), String.class.getName());
+      server.bind(parser.parse("other"), new MarshalledValuePair("o"), String.class.getName());
+      HashMap calls = new HashMap();
+      Naming counting = countingProxy(server, calls);
+
+      Hashtable env = new Hashtable();
+      env.put(NamingContext.JNP_CACHE_PREFIXES, "jdbc");
+      env.put(NamingContext.JNP_CACHE_TTL, "200");
+      NamingContext ctx = new NamingContext(env, null, counting);
+      assertEquals("ds1", ctx.lookup("jdbc/DS"));
+      assertEquals("ds1", ctx.lookup("jdbc/DS"));
+      assertEquals("ds1", ctx.lookup("jdbc/DS"));
+      // A miss reads the value and its version in one call
+      assertEquals(1, count(calls, "lookupVersioned"));
+      assertEquals(0, count(calls, "getVersion"));
+      assertEquals(0, count(calls, "lookup"));
+      ctx.lookup("other");
+      ctx.lookup("other");
+      assertEquals(2, count(calls, "lookup"));
+
+      // An update by the server is seen once the entry expires
+      server.rebind(parser.parse("jdbc/DS"), new MarshalledValuePair("ds2"), String.class.getName());
+      assertEquals("ds1", ctx.lookup("jdbc/DS"));
+      Thread.sleep(300);
+      assertEquals("ds2", ctx.lookup("jdbc/DS"));
+      assertEquals(2, count(calls, "lookupVersioned"));
+
+      // An unchanged entry is revalidated without a lookup
+      Thread.sleep(300);
+      int versions = count(calls, "getVersion");
+      assertEquals("ds2", ctx.lookup("jdbc/DS"));
+      assertEquals(2, count(calls, "lookupVersioned"));
+      assertEquals(versions + 1, count(calls, "getVersion"));
+
+      // Updates through the context drop the entry at once
+      ctx.rebind("jdbc/DS", "ds3");
+      assertEquals("ds3", ctx.lookup("jdbc/DS"));
+   }
+
+   public void testCachedPairsAreUnmarshalled() throws Exception
+   {
+      NamingServer server = new NamingServer();
+      server.bind(parser.parse("list"), new MarshalledValuePair(new ArrayList()),
+         ArrayList.class.getName());
+      Hashtable env = new Hashtable();
+      env.put(NamingContext.JNP_CACHE_PREFIXES, "list");
+      NamingContext ctx = new NamingContext(env, null, server);
+
+      // Each hit gets its own copy, so a caller cannot change the cached value
+      boolean byReference = MarshalledValuePair.getEnableCallByReference();
+      MarshalledValuePair.setEnableCallByReference(false);
+      try
+      {
+         List first = (List) ctx.lookup("list");
+         first.add("changed");
+         List second = (List) ctx.lookup("list");
+         assertNotSame(first, second);
+         assertTrue(second.isEmpty());
+      }
+      finally
+      {
+         MarshalledValuePair.setEnableCallByReference(byReference);
+      }
+   }
+
+   private static int count(HashMap calls, String method)
+   {
+      Integer count = (Integer) calls.get(method);
+      return count == null ? 0 : count.intValue();
+   }
+
+   private static Naming countingProxy(final Naming naming, final HashMap calls)
+   {
+      InvocationHandler handler = new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+         {
+            if (method.getName().equals("equals"))
+               return Boolean.valueOf(proxy == args[0]);
+            calls.put(method.getName(), new Integer(count(calls, method.getName()) + 1));
+            try
+            {
+               return method.invoke(naming, args);
+            }
+            catch (InvocationTargetException e)
+            {
+               throw e.getTargetException();
+            }
+         }
+      };
+      return (Naming) Proxy.newProxyInstance(Naming.class.getClassLoader(),
+         new Class[] {Naming.class}, handler);
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestLookupCache.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.MarshalledValuePair;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.server.NamingServer;
+
+/** Tests of the lazy marshalling of MarshalledValuePair.
+
+ @version $Revision$
+ */
+public class TestMarshalledValuePair extends TestCase
+{
+   public TestMarshalledValuePair(String name)
+   {
+      super(name);
+   }
+
+   public void testInVMBind() throws Exception
+   {
+      NamingContext ctx = new NamingContext(null, null, new NamingServer());
+      CountingValue value = new CountingValue();
+      ctx.bind("counted", value);
+      assertSame(value, ctx.lookup("counted"));
+      assertEquals(0, value.writes);
+   }
+
+   public void testMarshalledOnce() throws Exception
+   {
+      CountingValue value = new CountingValue();
+      MarshalledValuePair pair = new MarshalledValuePair(value);
+      assertNull(pair.marshalledValue);
+
+      MarshalledValuePair copy = (MarshalledValuePair) copy(pair);
+      copy(pair);
+      assertEquals(1, value.writes);
+      assertNotNull(pair.marshalledValue);
+      assertNull(copy.value);
+      assertTrue(copy.get() instanceof CountingValue);
+
+      // A lookup that does not use the reference reads the cached form
+      MarshalledValuePair.setEnableCallByReference(false);
+      try
+      {
+         Object read = pair.get();
+         assertNotSame(value, read);
+         assertTrue(read instanceof CountingValue);
+         assertEquals(1, value.writes);
+      }
+      finally
+      {
+         MarshalledValuePair.setEnableCallByReference(true);
+      }
+   }
+
+   public void testNullValue() throws Exception
+   {
+      MarshalledValuePair pair = new MarshalledValuePair(null);
+      assertNull(pair.get());
+      assertNull(((MarshalledValuePair) copy(pair)).get());
+   }
+
+   private static Object copy(Object obj) throws Exception
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(baos);
+      out.writeObject(obj);
+      out.close();
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+      return in.readObject();
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestMarshalledValuePair.class);
+      junit.textui.TestRunner.run(suite);
+   }
+
+   /**
+    * Counts the times it is serialized.
+    */
+   public static class CountingValue implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      transient int writes;
+
+      private void writeObject(ObjectOutputStream out) throws IOException
+      {
+         writes ++;
+         out.defaultWriteObject();
+      }
+   }
+}
@@ -0,0 +1,235 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.naming.Name;
+import javax.naming.NameAlreadyBoundException;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.NamingParser;
+import org.jnp.server.NamingServer;
+
+/** A contention test of concurrent writers against a NamingServer. Each
+ writer thread re-registers its own set of bindings under a shared subcontext
+ while a reader thread performs lookups, and the writer throughput is
+ reported for an increasing number of threads.
+
+ @version $Revision$
+ */
+public class TestNamingServerConcurrency extends TestCase
+{
+   /** The number of rebind operations each writer performs per measurement */
+   private static final int OPS_PER_WRITER = 20000;
+   /** The number of distinct bindings each writer cycles through */
+   private static final int NAMES_PER_WRITER = 100;
+
+   private NamingParser parser = new NamingParser();
+
+   public TestNamingServerConcurrency(String name)
+   {
+      super(name);
+   }
+
+   public void testConcurrentBindUnbind() throws Exception
+   {
+      final NamingServer server = new NamingServer();
+      server.createSubcontext(parser.parse("shared"));
+      final Name name = parser.parse("shared/contended");
+      final int[] bound = new int[1];
+      int threadCount = 8;
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] threads = new Thread[threadCount];
+      final Throwable[] failure = new Throwable[1];
+      for (int t = 0; t < threadCount; t ++)
+      {
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  start.await();
+                  for (int i = 0; i < 2000; i ++)
+                  {
+                     try
+                     {
+                        server.bind(name, "value", String.class.getName());
+                        synchronized (bound)
+                        {
+                           bound[0] ++;
+                        }
+                        server.unbind(name);
+                     }
+                     catch (NameAlreadyBoundException expected)
+                     {
+                     }
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+         threads[t].start();
+      }
+      start.countDown();
+      for (int t = 0; t < threadCount; t ++)
+         threads[t].join();
+      if (failure[0] != null)
+         throw new Exception("Writer failed", failure[0]);
+      assertTrue("Some binds succeeded", bound[0] > 0);
+      assertTrue("Context is empty", server.list(parser.parse("shared")).isEmpty());
+   }
+
+   public void testWriterThroughput() throws Exception
+   {
+      int cpus = Runtime.getRuntime().availableProcessors();
+      // Warm up
+      measure(1);
+      for (int threads = 1; threads <= cpus * 2; threads *= 2)
+      {
+         long opsPerSecond = measure(threads);
+         System.out.println("writers=" + threads + ", rebinds/s=" + opsPerSecond);
+      }
+   }
+
+   /**
+    * Measure the single threaded bulk registration done during server boot,
+    * binding a fresh set of names into a tree of subcontexts.
+    */
+   public void testBulkBindThroughput() throws Exception
+   {
+      int contexts = 50;
+      int bindingsPerContext = 200;
+      Name[] names = new Name[contexts * bindingsPerContext];
+      for (int c = 0; c < contexts; c ++)
+      {
+         for (int b = 0; b < bindingsPerContext; b ++)
+            names[c * bindingsPerContext + b] = parser.parse("app" + c + "/ejb/bean" + b);
+      }
+      long rate = 0;
+      // The first rounds warm up
+      for (int round = 0; round < 5; round ++)
+      {
+         NamingServer server = new NamingServer();
+         for (int c = 0; c < contexts; c ++)
+         {
+            server.createSubcontext(parser.parse("app" + c));
+            server.createSubcontext(parser.parse("app" + c + "/ejb"));
+         }
+         long start = System.nanoTime();
+         for (int i = 0; i < names.length; i ++)
+            server.bind(names[i], "value", String.class.getName());
+         long elapsed = System.nanoTime() - start;
+         rate = (names.length * 1000000000L) / Math.max(elapsed, 1);
+      }
+      System.out.println("bulk binds/s=" + rate);
+   }
+
+   private long measure(int threadCount) throws Exception
+   {
+      final NamingServer server = new NamingServer();
+      server.createSubcontext(parser.parse("deploy"));
+      final Name[][] names = new Name[threadCount][NAMES_PER_WRITER];
+      for (int t = 0; t < threadCount; t ++)
+      {
+         for (int n = 0; n < NAMES_PER_WRITER; n ++)
+            names[t][n] = parser.parse("deploy/service" + t + "-" + n);
+      }
+      final Name lookupName = names[0][0];
+      server.rebind(lookupName, "value", String.class.getName());
+
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threadCount);
+      final Throwable[] failure = new Throwable[1];
+      for (int t = 0; t < threadCount; t ++)
+      {
+         final Name[] writerNames = names[t];
+         Thread writer = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  start.await();
+                  for (int i = 0; i < OPS_PER_WRITER; i ++)
+                  {
+                     Name n = writerNames[i % NAMES_PER_WRITER];
+                     server.rebind(n, "value" + i, String.class.getName());
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure[0] = e;
+               }
+               finally
+               {
+                  done.countDown();
+               }
+            }
+         };
+         writer.start();
+      }
+      // A concurrent reader, lookups must never block on the writers
+      final AtomicBoolean stop = new AtomicBoolean();
+      Thread reader = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               while (stop.get() == false)
+                  server.lookup(lookupName);
+            }
+            catch (Throwable e)
+            {
+               failure[0] = e;
+            }
+         }
+      };
+      reader.start();
+
+      long begin = System.nanoTime();
+      start.countDown();
+      done.await();
+      long elapsed = System.nanoTime() - begin;
+      stop.set(true);
+      reader.join();
+      if (failure[0] != null)
+         throw new Exception("Test thread failed", failure[0]);
+      assertEquals(threadCount * NAMES_PER_WRITER, server.list(parser.parse("deploy")).size());
+      return (threadCount * (long) OPS_PER_WRITER * 1000000000L) / Math.max(elapsed, 1);
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestNamingServerConcurrency.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
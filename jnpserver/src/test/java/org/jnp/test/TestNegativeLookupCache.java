@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+
+import javax.naming.NameNotFoundException;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.server.NamingServer;
+
+/** Tests of the NamingContext cache of lookups that failed with a
+ NameNotFoundException.
+
+ @version $Revision$
+ */
+public class TestNegativeLookupCache extends TestCase
+{
+   private NamingParser parser = new NamingParser();
+   private int lookups;
+
+   public TestNegativeLookupCache(String name)
+   {
+      super(name);
+   }
+
+   public void testNegativeLookups() throws Exception
+   {
+      NamingServer server = new NamingServer();
+      Hashtable env = new Hashtable();
+      env.put(NamingContext.JNP_NEGATIVE_CACHE_TTL, "200");
+      NamingContext ctx = new NamingContext(env, null, countingProxy(server));
+
+      long hits = NamingContext.getNegativeCacheHits();
+      long misses = NamingContext.getNegativeCacheMisses();
+      assertNotFound(ctx, "optional");
+      assertNotFound(ctx, "optional");
+      assertNotFound(ctx, "optional");
+      assertEquals(1, lookups);
+      assertEquals(hits + 2, NamingContext.getNegativeCacheHits());
+      assertEquals(misses + 1, NamingContext.getNegativeCacheMisses());
+
+      // A bind through the context drops the entry at once
+      ctx.bind("optional", "value");
+      assertEquals("value", ctx.lookup("optional"));
+      assertEquals(2, lookups);
+
+      // A bind by another client is seen once the entry expires
+      assertNotFound(ctx, "other");
+      server.bind(parser.parse("other"), "other", String.class.getName());
+      assertNotFound(ctx, "other");
+      Thread.sleep(300);
+      assertEquals("other", ctx.lookup("other"));
+      assertEquals(4, lookups);
+
+      // So is a context created through the context
+      assertNotFound(ctx, "sub");
+      ctx.createSubcontext("sub");
+      assertNotNull(ctx.lookup("sub"));
+   }
+
+   public void testDisabled() throws Exception
+   {
+      NamingContext ctx = new NamingContext(null, null, countingProxy(new NamingServer()));
+      long misses = NamingContext.getNegativeCacheMisses();
+      assertNotFound(ctx, "optional");
+      assertNotFound(ctx, "optional");
+      assertEquals(2, lookups);
+      assertEquals(misses, NamingContext.getNegativeCacheMisses());
+   }
+
+   private void assertNotFound(NamingContext ctx, String name) throws Exception
+   {
+      try
+      {
+         ctx.lookup(name);
+         fail("Expected NameNotFoundException for " + name);
+      }
+      catch (NameNotFoundException expected)
+      {
+      }
+   }
+
+   private Naming countingProxy(final Naming naming)
+   {
+      InvocationHandler handler = new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+         {
+            if (method.getName().equals("equals"))
+               return Boolean.valueOf(proxy == args[0]);
+            if (method.getName().equals("lookup"))
+               lookups ++;
+            try
+            {
+               return method.invoke(naming, args);
+            }
+            catch (InvocationTargetException e)
+            {
+               throw e.getTargetException();
+            }
+         }
+      };
+      return (Naming) Proxy.newProxyInstance(Naming.class.getClassLoader(),
+         new Class[] {Naming.class}, handler);
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestNegativeLookupCache.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
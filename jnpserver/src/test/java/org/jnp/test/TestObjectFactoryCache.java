@@ -0,0 +1,158 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+import javax.naming.spi.ObjectFactory;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.NamingContext;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/** Tests of the cache of the ObjectFactory instances and shareable objects
+ of the References returned by lookups.
+
+ @version $Revision$
+ */
+public class TestObjectFactoryCache extends TestCase
+{
+   private NamingBeanImpl namingBean;
+   private Main namingMain;
+
+   public TestObjectFactoryCache(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      namingBean = new NamingBeanImpl();
+      namingBean.start();
+      namingMain = new Main();
+      namingMain.setPort(0);
+      namingMain.setBindAddress("localhost");
+      namingMain.setNamingInfo(namingBean);
+      namingMain.start();
+      CountingFactory.instances.set(0);
+      CountingFactory.calls.set(0);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      namingMain.stop();
+      namingBean.stop();
+   }
+
+   public void testFactoryCache() throws Exception
+   {
+      NamingContext binder = new NamingContext(createEnv(), null, null);
+      binder.rebind("factoryRef", new Reference(StringBuffer.class.getName(),
+         CountingFactory.class.getName(), null));
+
+      // NamingManager creates a factory for every lookup
+      NamingContext ctx = new NamingContext(createEnv(), null, null);
+      ctx.lookup("factoryRef");
+      ctx.lookup("factoryRef");
+      assertEquals(2, CountingFactory.instances.get());
+
+      Hashtable env = createEnv();
+      env.put(NamingContext.JNP_OBJECT_FACTORY_CACHE, "true");
+      ctx = new NamingContext(env, null, null);
+      long hits = NamingContext.getObjectFactoryCacheHits();
+      Object first = ctx.lookup("factoryRef");
+      for (int i = 0; i < 9; i ++)
+         assertNotSame(first, ctx.lookup("factoryRef"));
+      assertTrue(CountingFactory.instances.get() <= 3);
+      assertEquals(12, CountingFactory.calls.get());
+      assertTrue(NamingContext.getObjectFactoryCacheHits() >= hits + 9);
+
+      // A factory that cannot be loaded leaves the reference to NamingManager
+      Reference unknown = new Reference(StringBuffer.class.getName(), "org.jnp.test.NoSuchFactory", null);
+      binder.rebind("unknownRef", unknown);
+      assertEquals(unknown, ctx.lookup("unknownRef"));
+   }
+
+   public void testShareableReference() throws Exception
+   {
+      NamingContext binder = new NamingContext(createEnv(), null, null);
+      Reference ref = new Reference(StringBuffer.class.getName(), CountingFactory.class.getName(), null);
+      ref.add(new StringRefAddr(NamingContext.JNP_SHAREABLE, "true"));
+      binder.rebind("shareableRef", ref);
+
+      Hashtable env = createEnv();
+      env.put(NamingContext.JNP_OBJECT_FACTORY_CACHE, "true");
+      NamingContext ctx = new NamingContext(env, null, null);
+      long hits = NamingContext.getSharedObjectHits();
+      Object first = ctx.lookup("shareableRef");
+      for (int i = 0; i < 9; i ++)
+         assertSame(first, ctx.lookup("shareableRef"));
+      assertEquals(1, CountingFactory.calls.get());
+      assertEquals(hits + 9, NamingContext.getSharedObjectHits());
+
+      // Without the cache the marker is ignored
+      ctx = new NamingContext(createEnv(), null, null);
+      assertNotSame(first, ctx.lookup("shareableRef"));
+   }
+
+   private Hashtable createEnv()
+   {
+      Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+      return env;
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestObjectFactoryCache.class);
+      junit.textui.TestRunner.run(suite);
+   }
+
+   /**
+    * Counts its instances and calls, returning a new StringBuffer for each.
+    */
+   public static class CountingFactory implements ObjectFactory
+   {
+      static final AtomicInteger instances = new AtomicInteger();
+      static final AtomicInteger calls = new AtomicInteger();
+
+      public CountingFactory()
+      {
+         instances.incrementAndGet();
+      }
+
+      public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable environment)
+      {
+         calls.incrementAndGet();
+         return new StringBuffer("created");
+      }
+   }
+}
@@ -0,0 +1,158 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import javax.naming.CannotProceedException;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.NotContextException;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.server.NamingServer;
+
+/** Tests of the NamingServer full path index, and a benchmark of lookups
+ over 1 to 10 component names with and without the index.
+
+ @version $Revision$
+ */
+public class TestPathIndex extends TestCase
+{
+   private static final int LOOKUPS = 200000;
+
+   private NamingParser parser = new NamingParser();
+
+   public TestPathIndex(String name)
+   {
+      super(name);
+   }
+
+   public void testIndexedLookups() throws Exception
+   {
+      NamingServer server = new NamingServer(true);
+      server.createSubcontext(parser.parse("comp"));
+      server.createSubcontext(parser.parse("comp/env"));
+      server.createSubcontext(parser.parse("comp/env/jdbc"));
+      server.bind(parser.parse("comp/env/jdbc/OrdersDS"), "orders", String.class.getName());
+      assertEquals("orders", server.lookup(parser.parse("comp/env/jdbc/OrdersDS")));
+      server.rebind(parser.parse("comp/env/jdbc/OrdersDS"), "orders2", String.class.getName());
+      assertEquals("orders2", server.lookup(parser.parse("comp/env/jdbc/OrdersDS")));
+
+      // Subcontexts are not indexed
+      Object ctx = server.lookup(parser.parse("comp/env/jdbc"));
+      assertTrue(ctx instanceof NamingContext);
+
+      // Unbinding a context must drop the bindings below it
+      server.unbind(parser.parse("comp/env"));
+      try
+      {
+         server.lookup(parser.parse("comp/env/jdbc/OrdersDS"));
+         fail("Expected NameNotFoundException");
+      }
+      catch (NameNotFoundException expected)
+      {
+      }
+
+      // As must replacing it
+      server.createSubcontext(parser.parse("comp/env"));
+      server.bind(parser.parse("comp/env/x"), "x", String.class.getName());
+      assertEquals("x", server.lookup(parser.parse("comp/env/x")));
+      server.rebind(parser.parse("comp/env"), "plain", String.class.getName());
+      try
+      {
+         server.lookup(parser.parse("comp/env/x"));
+         fail("Expected NotContextException");
+      }
+      catch (NotContextException expected)
+      {
+      }
+
+      // Federated names fall back to the tree walk
+      Reference ref = new Reference("javax.naming.Context", new StringRefAddr("nns", "ENC"));
+      server.bind(parser.parse("comp/fed"), ref, Reference.class.getName());
+      try
+      {
+         server.lookup(parser.parse("comp/fed/a/b"));
+         fail("Expected CannotProceedException");
+      }
+      catch (CannotProceedException expected)
+      {
+         assertEquals("a/b", expected.getRemainingName().toString());
+      }
+   }
+
+   public void testLookupDepthBenchmark() throws Exception
+   {
+      NamingServer plain = new NamingServer();
+      NamingServer indexed = new NamingServer(true);
+      for (int depth = 1; depth <= 10; depth ++)
+      {
+         Name name = createPath(plain, depth);
+         createPath(indexed, depth);
+         // Warm up
+         lookups(plain, name, LOOKUPS / 10);
+         lookups(indexed, name, LOOKUPS / 10);
+         long plainRate = lookups(plain, name, LOOKUPS);
+         long indexedRate = lookups(indexed, name, LOOKUPS);
+         System.out.println("depth=" + depth + ", lookups/s tree=" + plainRate
+            + ", indexed=" + indexedRate);
+      }
+   }
+
+   private Name createPath(NamingServer server, int depth) throws Exception
+   {
+      StringBuffer path = new StringBuffer("depth" + depth);
+      server.createSubcontext(parser.parse(path.toString()));
+      for (int i = 1; i < depth - 1; i ++)
+      {
+         path.append("/c").append(i);
+         server.createSubcontext(parser.parse(path.toString()));
+      }
+      if (depth > 1)
+         path.append("/leaf");
+      Name name = parser.parse(path.toString());
+      if (depth > 1)
+         server.bind(name, "value", String.class.getName());
+      return name;
+   }
+
+   private long lookups(NamingServer server, Name name, int count) throws Exception
+   {
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i ++)
+         server.lookup(name);
+      long elapsed = System.nanoTime() - start;
+      return (count * 1000000000L) / Math.max(elapsed, 1);
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestPathIndex.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
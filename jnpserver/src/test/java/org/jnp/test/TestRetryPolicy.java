@@ -0,0 +1,159 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.util.Hashtable;
+
+import javax.naming.CommunicationException;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.BackoffRetryPolicy;
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.server.NamingServer;
+
+/** Tests of BackoffRetryPolicy and of the retries of the NamingContext calls
+ that fail with a ConnectException.
+
+ @version $Revision$
+ */
+public class TestRetryPolicy extends TestCase
+{
+   private int failures;
+
+   public TestRetryPolicy(String name)
+   {
+      super(name);
+   }
+
+   public void testBackoff() throws Exception
+   {
+      Hashtable env = new Hashtable();
+      env.put(NamingContext.JNP_MAX_RETRIES, "5");
+      env.put(BackoffRetryPolicy.JNP_RETRY_BASE_DELAY, "10");
+      env.put(BackoffRetryPolicy.JNP_RETRY_MAX_DELAY, "100");
+      BackoffRetryPolicy policy = new BackoffRetryPolicy(env);
+      policy.startCall();
+      long delay = 0;
+      for (int i = 0; i < 4; i ++)
+      {
+         long previous = delay;
+         delay = policy.getRetryDelay(i, previous, 0);
+         assertTrue("delay=" + delay, delay >= 10 && delay <= 100);
+         assertTrue("delay=" + delay, delay <= Math.max(previous, 10) * 3);
+      }
+      assertEquals(-1, policy.getRetryDelay(4, delay, 0));
+
+      // No retry past the deadline
+      env.put(BackoffRetryPolicy.JNP_RETRY_DEADLINE, "50");
+      policy = new BackoffRetryPolicy(env);
+      assertEquals(-1, policy.getRetryDelay(0, 0, 45));
+
+      // The budget of a policy that gets no new calls runs out
+      env.remove(BackoffRetryPolicy.JNP_RETRY_DEADLINE);
+      env.put(BackoffRetryPolicy.JNP_RETRY_BUDGET, "0");
+      policy = new BackoffRetryPolicy(env);
+      int retries = 0;
+      while (policy.getRetryDelay(0, 0, 0) >= 0)
+         retries ++;
+      assertEquals(10, retries);
+   }
+
+   public void testContextRetries() throws Exception
+   {
+      Naming server = failingProxy(new NamingServer());
+      Hashtable env = new Hashtable();
+      env.put(NamingContext.JNP_MAX_RETRIES, "3");
+      env.put(BackoffRetryPolicy.JNP_RETRY_BASE_DELAY, "1");
+      NamingContext ctx = new NamingContext(env, null, server);
+
+      long retries = NamingContext.getRetryCount();
+      failures = 2;
+      ctx.bind("a", "a value");
+      failures = 2;
+      assertEquals("a value", ctx.lookup("a"));
+      failures = 2;
+      assertTrue(ctx.list("").hasMore());
+      assertEquals(retries + 6, NamingContext.getRetryCount());
+
+      // Without retries the first ConnectException fails the call
+      ctx = new NamingContext(null, null, server);
+      long denied = NamingContext.getRetryDeniedCount();
+      failures = 1;
+      try
+      {
+         ctx.lookup("a");
+         fail("Expected CommunicationException");
+      }
+      catch (CommunicationException e)
+      {
+         assertTrue(e.getRootCause() instanceof ConnectException);
+      }
+      assertEquals(denied + 1, NamingContext.getRetryDeniedCount());
+   }
+
+   /**
+    * A naming server whose calls fail with a ConnectException while
+    * failures is positive.
+    */
+   private Naming failingProxy(final Naming naming)
+   {
+      InvocationHandler handler = new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+         {
+            if (method.getName().equals("equals"))
+               return Boolean.valueOf(proxy == args[0]);
+            if (failures > 0 && method.getDeclaringClass() == Naming.class)
+            {
+               failures --;
+               throw new ConnectException("Connection refused");
+            }
+            try
+            {
+               return method.invoke(naming, args);
+            }
+            catch (InvocationTargetException e)
+            {
+               throw e.getTargetException();
+            }
+         }
+      };
+      return (Naming) Proxy.newProxyInstance(Naming.class.getClassLoader(),
+         new Class[] {Naming.class}, handler);
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestRetryPolicy.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
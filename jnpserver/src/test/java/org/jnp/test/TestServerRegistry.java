@@ -0,0 +1,282 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.net.SocketFactory;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.NamingContext;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/** Tests of the registry of naming server stubs shared by NamingContexts
+ and of the parallel connect to the provider urls and of the circuit
+ breakers of the servers.
+
+ @version $Revision$
+ */
+public class TestServerRegistry extends TestCase
+{
+   private NamingBeanImpl namingBean;
+   private Main namingMain;
+
+   public TestServerRegistry(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      namingBean = new NamingBeanImpl();
+      namingBean.start();
+      namingMain = new Main();
+      namingMain.setPort(0);
+      namingMain.setBindAddress("localhost");
+      namingMain.setNamingInfo(namingBean);
+      namingMain.start();
+      CountingSocketFactory.sockets.set(0);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      namingMain.stop();
+      namingBean.stop();
+   }
+
+   public void testSingleBootstrap() throws Exception
+   {
+      final Hashtable env = createEnv();
+      final CountDownLatch start = new CountDownLatch(1);
+      final Exception[] failures = new Exception[10];
+      Thread[] threads = new Thread[failures.length];
+      for (int i = 0; i < threads.length; i ++)
+      {
+         final int index = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  start.await();
+                  new NamingContext(env, null, null).list("");
+               }
+               catch (Exception e)
+               {
+                  failures[index] = e;
+               }
+            }
+         };
+         threads[i].start();
+      }
+      start.countDown();
+      for (int i = 0; i < threads.length; i ++)
+      {
+         threads[i].join();
+         if (failures[i] != null)
+            throw failures[i];
+      }
+      assertEquals(1, CountingSocketFactory.sockets.get());
+
+      // The stub is not lost to the garbage collector
+      System.gc();
+      new NamingContext(env, null, null).list("");
+      assertEquals(1, CountingSocketFactory.sockets.get());
+   }
+
+   public void testIdleTimeout() throws Exception
+   {
+      Hashtable env = createEnv();
+      env.put(NamingContext.JNP_SERVER_IDLE_TIMEOUT, "200");
+      new NamingContext(env, null, null).list("");
+      new NamingContext(env, null, null).list("");
+      assertEquals(1, CountingSocketFactory.sockets.get());
+      Thread.sleep(400);
+      new NamingContext(env, null, null).list("");
+      assertEquals(2, CountingSocketFactory.sockets.get());
+   }
+
+   public void testParallelConnect() throws Exception
+   {
+      // A bootstrap port that accepts connections but never answers
+      ServerSocket dead = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+      try
+      {
+         Hashtable env = createEnv();
+         env.put(Context.PROVIDER_URL, "localhost:" + dead.getLocalPort()
+            + ",localhost:" + namingMain.getPort());
+         env.put(NamingContext.JNP_PARALLEL_CONNECT, "true");
+         long start = System.currentTimeMillis();
+         new NamingContext(env, null, null).list("");
+         assertTrue(System.currentTimeMillis() - start < 2000);
+         assertEquals(2, CountingSocketFactory.sockets.get());
+
+         // The winner is registered
+         new NamingContext(createEnv(), null, null).list("");
+         assertEquals(2, CountingSocketFactory.sockets.get());
+      }
+      finally
+      {
+         dead.close();
+      }
+   }
+
+   public void testSharedEnvironment() throws Exception
+   {
+      NamingContext root = new NamingContext(createEnv(), null, null);
+      Context sub = (Context) root.lookup("");
+      // The server a context connects to is not written into the shared env
+      sub.list("");
+      assertNull(root.getEnvironment().get("hostKey"));
+      assertNull(sub.getEnvironment().get("hostKey"));
+      root.list("");
+      assertNull(root.getEnvironment().get("hostKey"));
+   }
+
+   public void testCircuitBreaker() throws Exception
+   {
+      ServerSocket unused = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+      int port = unused.getLocalPort();
+      unused.close();
+      Hashtable env = createEnv();
+      env.put(Context.PROVIDER_URL, "localhost:" + port);
+      env.put(NamingContext.JNP_DISABLE_DISCOVERY, "true");
+      env.put(NamingContext.JNP_BREAKER_THRESHOLD, "2");
+      env.put(NamingContext.JNP_BREAKER_OPEN_TIME, "300");
+      assertConnectFails(env);
+      assertConnectFails(env);
+      assertEquals(2, CountingSocketFactory.sockets.get());
+
+      // The open circuit fails without connecting
+      assertConnectFails(env);
+      assertEquals(2, CountingSocketFactory.sockets.get());
+
+      // The probe closes the circuit once the server is up
+      NamingBeanImpl bean = new NamingBeanImpl();
+      bean.start();
+      Main main = new Main();
+      main.setPort(port);
+      main.setBindAddress("localhost");
+      main.setNamingInfo(bean);
+      main.start();
+      try
+      {
+         boolean connected = false;
+         for (int i = 0; i < 60 && connected == false; i ++)
+         {
+            try
+            {
+               new NamingContext(env, null, null).list("");
+               connected = true;
+            }
+            catch (CommunicationException e)
+            {
+               Thread.sleep(50);
+            }
+         }
+         assertTrue(connected);
+      }
+      finally
+      {
+         main.stop();
+         bean.stop();
+      }
+   }
+
+   private void assertConnectFails(Hashtable env) throws Exception
+   {
+      try
+      {
+         new NamingContext(env, null, null).list("");
+         fail("Expected CommunicationException");
+      }
+      catch (CommunicationException expected)
+      {
+      }
+   }
+
+   private Hashtable createEnv()
+   {
+      Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+      env.put(NamingContext.JNP_SOCKET_FACTORY, CountingSocketFactory.class.getName());
+      return env;
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestServerRegistry.class);
+      junit.textui.TestRunner.run(suite);
+   }
+
+   /**
+    * Counts the bootstrap connections, slowly enough for concurrent
+    * contexts to overlap.
+    */
+   public static class CountingSocketFactory extends SocketFactory
+   {
+      static final AtomicInteger sockets = new AtomicInteger();
+
+      public Socket createSocket(String host, int port) throws IOException
+      {
+         return createSocket(host, port, null, 0);
+      }
+
+      public Socket createSocket(String host, int port, InetAddress localAddr, int localPort)
+         throws IOException
+      {
+         sockets.incrementAndGet();
+         try
+         {
+            Thread.sleep(100);
+         }
+         catch (InterruptedException ignored)
+         {
+         }
+         return new Socket(host, port, localAddr, localPort);
+      }
+
+      public Socket createSocket(InetAddress host, int port) throws IOException
+      {
+         return createSocket(host.getHostName(), port, null, 0);
+      }
+
+      public Socket createSocket(InetAddress host, int port, InetAddress localAddr, int localPort)
+         throws IOException
+      {
+         return createSocket(host.getHostName(), port, localAddr, localPort);
+      }
+   }
+}
@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.TimedSocketFactory;
+
+/** Tests of the timed connects of TimedSocketFactory.
+
+ @version $Revision$
+ */
+public class TestTimedSocketFactory extends TestCase
+{
+   public TestTimedSocketFactory(String name)
+   {
+      super(name);
+   }
+
+   public void testTimedConnect() throws Exception
+   {
+      Hashtable env = new Hashtable();
+      env.put(TimedSocketFactory.JNP_TIMEOUT, "2000");
+      env.put(TimedSocketFactory.JNP_SO_TIMEOUT, "1500");
+      TimedSocketFactory factory = new TimedSocketFactory(env);
+      InetAddress localhost = InetAddress.getByName("localhost");
+      ServerSocket server = new ServerSocket(0, 50, localhost);
+      int port = server.getLocalPort();
+      int threads = Thread.activeCount();
+      try
+      {
+         Socket socket = factory.createSocket(localhost, port, localhost, 0);
+         assertTrue(socket.isConnected());
+         assertEquals(localhost, socket.getLocalAddress());
+         assertEquals(1500, socket.getSoTimeout());
+         socket.close();
+      }
+      finally
+      {
+         server.close();
+      }
+      // No thread is started to time the connect
+      assertTrue(Thread.activeCount() <= threads);
+
+      try
+      {
+         factory.createSocket(localhost, port).close();
+         fail("Expected the connect to the closed port to fail");
+      }
+      catch (IOException expected)
+      {
+      }
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestTimedSocketFactory.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
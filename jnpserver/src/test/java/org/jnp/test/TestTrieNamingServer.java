@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import javax.naming.Binding;
+import javax.naming.CannotProceedException;
+import javax.naming.Name;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameClassPair;
+import javax.naming.NameNotFoundException;
+import javax.naming.NotContextException;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.Naming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.NamingParser;
+import org.jnp.server.NamingServer;
+import org.jnp.server.TrieNamingServer;
+
+/** Tests that the trie storage engine behaves like the default NamingServer.
+
+ @version $Revision$
+ */
+public class TestTrieNamingServer extends TestCase
+{
+   private NamingParser parser = new NamingParser();
+
+   public TestTrieNamingServer(String name)
+   {
+      super(name);
+   }
+
+   public void testMapEngine() throws Exception
+   {
+      runScenario(new NamingServer());
+   }
+
+   public void testTrieEngine() throws Exception
+   {
+      runScenario(new TrieNamingServer());
+   }
+
+   public void testHashCollisions() throws Exception
+   {
+      // "Aa" and "BB" have the same String.hashCode
+      Naming server = new TrieNamingServer();
+      server.bind(parser.parse("Aa"), "1", String.class.getName());
+      server.bind(parser.parse("BB"), "2", String.class.getName());
+      server.bind(parser.parse("AaAa"), "3", String.class.getName());
+      server.bind(parser.parse("BBBB"), "4", String.class.getName());
+      assertEquals("1", server.lookup(parser.parse("Aa")));
+      assertEquals("2", server.lookup(parser.parse("BB")));
+      assertEquals("3", server.lookup(parser.parse("AaAa")));
+      assertEquals("4", server.lookup(parser.parse("BBBB")));
+      server.unbind(parser.parse("Aa"));
+      assertEquals("2", server.lookup(parser.parse("BB")));
+      assertEquals(3, server.list(parser.parse("")).size());
+   }
+
+   public void testManyBindings() throws Exception
+   {
+      Naming server = new TrieNamingServer();
+      server.createSubcontext(parser.parse("ctx"));
+      for (int i = 0; i < 5000; i ++)
+         server.bind(parser.parse("ctx/n" + i), new Integer(i), Integer.class.getName());
+      assertEquals(5000, server.list(parser.parse("ctx")).size());
+      for (int i = 0; i < 5000; i += 2)
+         server.unbind(parser.parse("ctx/n" + i));
+      assertEquals(2500, server.list(parser.parse("ctx")).size());
+      for (int i = 1; i < 5000; i += 2)
+         assertEquals(new Integer(i), server.lookup(parser.parse("ctx/n" + i)));
+   }
+
+   private void runScenario(Naming server) throws Exception
+   {
+      server.createSubcontext(parser.parse("comp"));
+      server.createSubcontext(parser.parse("comp/env"));
+      server.bind(parser.parse("comp/env/ds"), "OrdersDS", String.class.getName());
+      server.bind(parser.parse("top"), "value", String.class.getName());
+
+      assertEquals("OrdersDS", server.lookup(parser.parse("comp/env/ds")));
+      assertEquals("value", server.lookup(parser.parse("top")));
+      Object ctx = server.lookup(parser.parse("comp/env"));
+      assertTrue(ctx instanceof NamingContext);
+      assertEquals("comp/env", ((NamingContext) ctx).getNameInNamespace());
+      ctx = server.lookup(parser.parse("comp/"));
+      assertEquals("comp", ((NamingContext) ctx).getNameInNamespace());
+
+      try
+      {
+         server.bind(parser.parse("comp/env/ds"), "other", String.class.getName());
+         fail("Expected NameAlreadyBoundException");
+      }
+      catch (NameAlreadyBoundException expected)
+      {
+      }
+      try
+      {
+         server.createSubcontext(parser.parse("comp/env"));
+         fail("Expected NameAlreadyBoundException");
+      }
+      catch (NameAlreadyBoundException expected)
+      {
+      }
+      try
+      {
+         server.lookup(parser.parse("comp/missing"));
+         fail("Expected NameNotFoundException");
+      }
+      catch (NameNotFoundException expected)
+      {
+      }
+      try
+      {
+         server.bind(parser.parse("top/x"), "x", String.class.getName());
+         fail("Expected NotContextException");
+      }
+      catch (NotContextException expected)
+      {
+      }
+
+      server.rebind(parser.parse("comp/env/ds"), "InvoicesDS", String.class.getName());
+      assertEquals("InvoicesDS", server.lookup(parser.parse("comp/env/ds")));
+
+      assertEquals(names(server.list(parser.parse(""))), "[comp, top]");
+      Collection bindings = server.listBindings(parser.parse("comp"));
+      assertEquals(1, bindings.size());
+      Binding b = (Binding) bindings.iterator().next();
+      assertEquals("env", b.getName());
+      assertTrue(b.getObject() instanceof NamingContext);
+
+      // Federation through a Reference with a nns address
+      Reference ref = new Reference("javax.naming.Context", new StringRefAddr("nns", "ENC"));
+      server.bind(parser.parse("fed"), ref, Reference.class.getName());
+      try
+      {
+         server.lookup(parser.parse("fed/env/x"));
+         fail("Expected CannotProceedException");
+      }
+      catch (CannotProceedException expected)
+      {
+         assertEquals("env/x", expected.getRemainingName().toString());
+         assertEquals(ref, expected.getResolvedObj());
+      }
+
+      server.unbind(parser.parse("comp/env/ds"));
+      assertTrue(server.list(parser.parse("comp/env")).isEmpty());
+      try
+      {
+         server.unbind(parser.parse("comp/env/ds"));
+         fail("Expected NameNotFoundException");
+      }
+      catch (NameNotFoundException expected)
+      {
+      }
+   }
+
+   private String names(Collection pairs)
+   {
+      TreeSet names = new TreeSet();
+      Iterator iter = pairs.iterator();
+      while (iter.hasNext())
+         names.add(((NameClassPair) iter.next()).getName());
+      return names.toString();
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestTrieNamingServer.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
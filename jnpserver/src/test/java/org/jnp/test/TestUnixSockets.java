@@ -0,0 +1,249 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.io.File;
+import java.net.BindException;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.BinaryNaming;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.interfaces.UnixSockets;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/** Tests of the unix domain socket of the binary naming protocol, which
+ need JDK 16 or later.
+
+ @version $Revision$
+ */
+public class TestUnixSockets extends TestCase
+{
+   private NamingBeanImpl namingBean;
+   private Main namingMain;
+   private File socketFile;
+
+   public TestUnixSockets(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      socketFile = File.createTempFile("jnp", ".sock");
+      socketFile.delete();
+      namingBean = new NamingBeanImpl();
+      namingBean.start();
+      namingMain = new Main();
+      namingMain.setPort(0);
+      namingMain.setBindAddress("localhost");
+      namingMain.setNamingInfo(namingBean);
+      if (UnixSockets.isSupported())
+         namingMain.setUnixSocketPath(socketFile.getPath());
+      namingMain.start();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      namingMain.stop();
+      namingBean.stop();
+      socketFile.delete();
+   }
+
+   public void testUnixSocket() throws Exception
+   {
+      if (UnixSockets.isSupported() == false)
+      {
+         System.out.println("Skipping testUnixSocket, no unix domain sockets");
+         return;
+      }
+      Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+      env.put(NamingContext.JNP_UNIX_SOCKET, socketFile.getPath());
+      NamingContext ctx = new NamingContext(env, null, null);
+      ctx.bind("u", "u value");
+      assertEquals("u value", ctx.lookup("u"));
+      BinaryNaming naming = (BinaryNaming) ctx.getNaming();
+      assertEquals(socketFile.getPath(), naming.getUnixPath());
+
+      // The contexts returned over the socket use it too
+      Context sub = ctx.createSubcontext("usub");
+      sub.bind("v", "v value");
+      assertEquals("v value", ctx.lookup("usub/v"));
+      naming = (BinaryNaming) ((NamingContext) ctx.lookup("usub")).getNaming();
+      assertEquals(socketFile.getPath(), naming.getUnixPath());
+   }
+
+   public void testServerUrl() throws Exception
+   {
+      if (UnixSockets.isSupported() == false)
+      {
+         System.out.println("Skipping testServerUrl, no unix domain sockets");
+         return;
+      }
+      NamingBeanImpl bean = new NamingBeanImpl();
+      bean.setUseGlobalService(false);
+      bean.setInstallGlobalService(false);
+      bean.start();
+      Main main = new Main();
+      main.setPort(0);
+      main.setBindAddress("localhost");
+      main.setNamingInfo(bean);
+      main.start();
+      try
+      {
+         Hashtable env = new Hashtable();
+         env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+         env.put(NamingContext.JNP_UNIX_SOCKET, socketFile.getPath());
+         NamingContext ctx = new NamingContext(env, null, null);
+         ctx.rebind("which", "unix socket server");
+         Hashtable secondEnv = new Hashtable();
+         secondEnv.put(Context.PROVIDER_URL, "localhost:" + main.getPort());
+         new NamingContext(secondEnv, null, null).rebind("which", "second server");
+
+         // A name with a server url does not use the socket of the context
+         ctx = new NamingContext(env, null, null);
+         assertEquals("second server", ctx.lookup("jnp://localhost:" + main.getPort() + "/which"));
+         ctx = new NamingContext(env, null, null);
+         assertEquals("unix socket server", ctx.lookup("which"));
+         assertTrue(ctx.getNaming() instanceof BinaryNaming);
+      }
+      finally
+      {
+         main.stop();
+         bean.stop();
+      }
+   }
+
+   public void testSocketFile() throws Exception
+   {
+      if (UnixSockets.isSupported() == false)
+      {
+         System.out.println("Skipping testSocketFile, no unix domain sockets");
+         return;
+      }
+      // A socket in use is not replaced
+      try
+      {
+         UnixSockets.bind(socketFile.getPath(), 5).close();
+         fail("Expected BindException");
+      }
+      catch (BindException expected)
+      {
+      }
+
+      // Neither is a file that is not a socket
+      File file = File.createTempFile("jnp", ".txt");
+      try
+      {
+         UnixSockets.bind(file.getPath(), 5).close();
+         fail("Expected BindException");
+      }
+      catch (BindException expected)
+      {
+      }
+      finally
+      {
+         assertTrue(file.delete());
+      }
+
+      // A stale socket is replaced, and removed by the server that bound it
+      File stale = new File(socketFile.getPath() + ".stale");
+      UnixSockets.bind(stale.getPath(), 5).close();
+      assertTrue(stale.exists());
+      Main main = createMain(stale.getPath());
+      main.start();
+      try
+      {
+         assertEquals("bound", lookupOverSocket(stale.getPath()));
+      }
+      finally
+      {
+         main.stop();
+      }
+      assertFalse(stale.exists());
+
+      // A server that failed to bind a socket in use does not remove it
+      main = createMain(socketFile.getPath());
+      try
+      {
+         main.start();
+         fail("Expected BindException");
+      }
+      catch (BindException expected)
+      {
+      }
+      finally
+      {
+         main.stop();
+      }
+      assertTrue(socketFile.exists());
+      assertEquals("bound", lookupOverSocket(socketFile.getPath()));
+   }
+
+   private Main createMain(String path) throws Exception
+   {
+      // A naming server of its own, as a server can be exported only once
+      NamingBeanImpl bean = new NamingBeanImpl();
+      bean.setUseGlobalService(false);
+      bean.setInstallGlobalService(false);
+      bean.start();
+      Main main = new Main();
+      main.setPort(0);
+      main.setBindAddress("localhost");
+      main.setNamingInfo(bean);
+      main.setUnixSocketPath(path);
+      return main;
+   }
+
+   private String lookupOverSocket(String path) throws Exception
+   {
+      Hashtable env = new Hashtable();
+      env.put(NamingContext.JNP_UNIX_SOCKET, path);
+      NamingContext ctx = new NamingContext(env, null, null);
+      ctx.rebind("socketFile", "bound");
+      assertTrue(ctx.getNaming() instanceof BinaryNaming);
+      return (String) ctx.lookup("socketFile");
+   }
+
+   public void testTcpFallback() throws Exception
+   {
+      Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+      env.put(NamingContext.JNP_UNIX_SOCKET, socketFile.getPath() + ".missing");
+      NamingContext ctx = new NamingContext(env, null, null);
+      ctx.rebind("t", "t value");
+      assertEquals("t value", ctx.lookup("t"));
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestUnixSockets.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
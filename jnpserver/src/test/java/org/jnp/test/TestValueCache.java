@@ -0,0 +1,172 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.NameAlreadyBoundException;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.MarshalledValuePair;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/** Tests of the client cache of the values unmarshalled by lookups.
+
+ @version $Revision$
+ */
+public class TestValueCache extends TestCase
+{
+   private NamingBeanImpl namingBean;
+   private Main namingMain;
+   private boolean byReference;
+
+   public TestValueCache(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      namingBean = new NamingBeanImpl();
+      namingBean.start();
+      namingMain = new Main();
+      namingMain.setPort(0);
+      namingMain.setBindAddress("localhost");
+      namingMain.setNamingInfo(namingBean);
+      namingMain.start();
+      // Unmarshal the values as a remote client would
+      byReference = MarshalledValuePair.getEnableCallByReference();
+      MarshalledValuePair.setEnableCallByReference(false);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      MarshalledValuePair.setEnableCallByReference(byReference);
+      namingMain.stop();
+      namingBean.stop();
+   }
+
+   public void testImmutableValues() throws Exception
+   {
+      Hashtable env = createEnv();
+      env.put(NamingContext.JNP_IMMUTABLE_VALUES, "true");
+      NamingContext binder = new NamingContext(env, null, null);
+      binder.rebind("cached", list("first"));
+      binder.rebind("string", "a string");
+
+      env = createEnv();
+      env.put(NamingContext.JNP_VALUE_CACHE, "true");
+      NamingContext ctx = new NamingContext(env, null, null);
+      long hits = NamingContext.getValueCacheHits();
+      Object value = ctx.lookup("cached");
+      assertEquals(list("first"), value);
+      assertSame(value, ctx.lookup("cached"));
+      assertSame(ctx.lookup("string"), ctx.lookup("string"));
+      assertEquals(hits + 2, NamingContext.getValueCacheHits());
+
+      // A new binding of the name is unmarshalled
+      binder.rebind("cached", list("second"));
+      assertEquals(list("second"), ctx.lookup("cached"));
+
+      // Each ClassLoader gets its own instance
+      Thread thread = Thread.currentThread();
+      ClassLoader old = thread.getContextClassLoader();
+      thread.setContextClassLoader(new URLClassLoader(new URL[0], old));
+      try
+      {
+         Object other = ctx.lookup("cached");
+         assertEquals(list("second"), other);
+         assertNotSame(other, value);
+         assertSame(other, ctx.lookup("cached"));
+      }
+      finally
+      {
+         thread.setContextClassLoader(old);
+      }
+   }
+
+   public void testMutableValues() throws Exception
+   {
+      NamingContext binder = new NamingContext(createEnv(), null, null);
+      binder.rebind("mutable", list("value"));
+      try
+      {
+         binder.createSubcontext("shared");
+      }
+      catch (NameAlreadyBoundException ignored)
+      {
+      }
+      binder.rebind("shared/mutable", list("value"));
+
+      // Values not marked immutable are not shared by default
+      Hashtable env = createEnv();
+      env.put(NamingContext.JNP_VALUE_CACHE, "true");
+      NamingContext ctx = new NamingContext(env, null, null);
+      assertNotSame(ctx.lookup("mutable"), ctx.lookup("mutable"));
+      assertNotSame(ctx.lookup("shared/mutable"), ctx.lookup("shared/mutable"));
+
+      // Unless allowed by prefix or type
+      env.put(NamingContext.JNP_VALUE_CACHE_PREFIXES, "shared");
+      ctx = new NamingContext(env, null, null);
+      assertNotSame(ctx.lookup("mutable"), ctx.lookup("mutable"));
+      assertSame(ctx.lookup("shared/mutable"), ctx.lookup("shared/mutable"));
+      env.remove(NamingContext.JNP_VALUE_CACHE_PREFIXES);
+      env.put(NamingContext.JNP_VALUE_CACHE_TYPES, ArrayList.class.getName());
+      ctx = new NamingContext(env, null, null);
+      assertSame(ctx.lookup("mutable"), ctx.lookup("mutable"));
+
+      // Without the cache every lookup unmarshals
+      ctx = new NamingContext(createEnv(), null, null);
+      long misses = NamingContext.getValueCacheMisses();
+      assertNotSame(ctx.lookup("mutable"), ctx.lookup("mutable"));
+      assertEquals(misses, NamingContext.getValueCacheMisses());
+   }
+
+   private static ArrayList list(String element)
+   {
+      ArrayList list = new ArrayList();
+      list.add(element);
+      return list;
+   }
+
+   private Hashtable createEnv()
+   {
+      Hashtable env = new Hashtable();
+      env.put(Context.PROVIDER_URL, "localhost:" + namingMain.getPort());
+      return env;
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestValueCache.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}
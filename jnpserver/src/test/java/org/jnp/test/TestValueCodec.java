@@ -0,0 +1,256 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jnp.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Properties;
+
+import javax.naming.Context;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jnp.interfaces.FastValueCodec;
+import org.jnp.interfaces.MarshalledValuePair;
+import org.jnp.interfaces.NamingContext;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/** Tests of FastValueCodec, of the MarshalledValuePairs encoded with it, and
+ a comparison of its speed and size with Java serialization.
+
+ @version $Revision$
+ */
+public class TestValueCodec extends TestCase
+{
+   public TestValueCodec(String name)
+   {
+      super(name);
+   }
+
+   public void testRoundTrip() throws Exception
+   {
+      FastValueCodec codec = new FastValueCodec();
+      Object[] values = {"a string", "\u00e9t\u00e9", new Integer(-7), new Long(1L << 40),
+         Boolean.TRUE, new Short((short) 3), new Byte((byte) -1), new Character('x'),
+         new Float(1.5f), new Double(-2.25)};
+      for (int i = 0; i < values.length; i ++)
+      {
+         assertTrue(codec.canEncode(values[i]));
+         assertEquals(values[i], codec.decode(codec.encode(values[i])));
+      }
+      String[] strings = {"one", null, ""};
+      assertTrue(Arrays.equals(strings, (String[]) codec.decode(codec.encode(strings))));
+      Properties props = createProperties(20);
+      assertEquals(props, codec.decode(codec.encode(props)));
+
+      // Values it cannot encode in full are left to serialization
+      assertFalse(codec.canEncode(null));
+      assertFalse(codec.canEncode(new ArrayList()));
+      assertFalse(codec.canEncode(new Properties(props)));
+      Properties mixed = new Properties();
+      mixed.put("key", new Integer(1));
+      assertFalse(codec.canEncode(mixed));
+   }
+
+   public void testInvalidLengths() throws Exception
+   {
+      FastValueCodec codec = new FastValueCodec();
+      byte[][] values = {codec.encode("a string"), codec.encode(new String[] {"one"}),
+         codec.encode(createProperties(2))};
+      for (int i = 0; i < values.length; i ++)
+      {
+         // A length after the tag larger than the bytes left
+         byte[] bytes = (byte[]) values[i].clone();
+         bytes[1] = 0x7f;
+         try
+         {
+            codec.decode(bytes);
+            fail("Expected IOException");
+         }
+         catch (IOException e)
+         {
+            // expected
+         }
+         bytes[1] = (byte) 0xff;
+         try
+         {
+            codec.decode(bytes);
+            fail("Expected IOException");
+         }
+         catch (IOException e)
+         {
+            // expected
+         }
+      }
+   }
+
+   public void testPair() throws Exception
+   {
+      Properties props = createProperties(5);
+      MarshalledValuePair pair = copy(new MarshalledValuePair(props, new FastValueCodec()));
+      assertEquals(FastValueCodec.class.getName(), pair.codecName);
+      assertNull(pair.marshalledValue);
+      assertEquals(props, pair.get());
+
+      // A value the codec cannot encode is serialized
+      pair = copy(new MarshalledValuePair(new ArrayList(), new FastValueCodec()));
+      assertNull(pair.codecName);
+      assertEquals(new ArrayList(), pair.get());
+   }
+
+   public void testNotACodec() throws Exception
+   {
+      MarshalledValuePair pair = copy(new MarshalledValuePair(createProperties(1),
+         new FastValueCodec()));
+      pair.codecName = NotACodec.class.getName();
+      try
+      {
+         pair.get();
+         fail("Expected IOException");
+      }
+      catch (IOException e)
+      {
+         // The class named by the pair is never instantiated
+         assertFalse(NotACodec.created);
+      }
+   }
+
+   public void testContext() throws Exception
+   {
+      NamingBeanImpl bean = new NamingBeanImpl();
+      bean.start();
+      Main main = new Main();
+      main.setPort(0);
+      main.setBindAddress("localhost");
+      main.setNamingInfo(bean);
+      main.start();
+      try
+      {
+         Hashtable env = new Hashtable();
+         env.put(Context.PROVIDER_URL, "localhost:" + main.getPort());
+         env.put(NamingContext.JNP_VALUE_CODECS, FastValueCodec.class.getName());
+         NamingContext ctx = new NamingContext(env, null, null);
+         Properties props = createProperties(5);
+         ctx.rebind("codecProps", props);
+         ctx.rebind("codecList", new ArrayList());
+         boolean byReference = MarshalledValuePair.getEnableCallByReference();
+         MarshalledValuePair.setEnableCallByReference(false);
+         try
+         {
+            assertEquals(props, ctx.lookup("codecProps"));
+            assertEquals(new ArrayList(), ctx.lookup("codecList"));
+         }
+         finally
+         {
+            MarshalledValuePair.setEnableCallByReference(byReference);
+         }
+      }
+      finally
+      {
+         main.stop();
+         bean.stop();
+      }
+   }
+
+   public void testBenchmark() throws Exception
+   {
+      Properties props = createProperties(20);
+      FastValueCodec codec = new FastValueCodec();
+      int count = 20000;
+
+      long start = System.currentTimeMillis();
+      int serializedSize = 0;
+      for (int i = 0; i < count; i ++)
+         serializedSize = serialize(props).length;
+      long serializeTime = System.currentTimeMillis() - start;
+      byte[] serialized = serialize(props);
+      start = System.currentTimeMillis();
+      for (int i = 0; i < count; i ++)
+         new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+      long deserializeTime = System.currentTimeMillis() - start;
+
+      start = System.currentTimeMillis();
+      int encodedSize = 0;
+      for (int i = 0; i < count; i ++)
+         encodedSize = codec.encode(props).length;
+      long encodeTime = System.currentTimeMillis() - start;
+      byte[] encoded = codec.encode(props);
+      start = System.currentTimeMillis();
+      for (int i = 0; i < count; i ++)
+         codec.decode(encoded);
+      long decodeTime = System.currentTimeMillis() - start;
+
+      System.out.println(count + " Properties of 20 entries, serialization: "
+         + serializeTime + "ms write, " + deserializeTime + "ms read, " + serializedSize
+         + " bytes; FastValueCodec: " + encodeTime + "ms write, " + decodeTime
+         + "ms read, " + encodedSize + " bytes");
+      assertTrue(encodedSize < serializedSize);
+   }
+
+   private static Properties createProperties(int size)
+   {
+      Properties props = new Properties();
+      for (int i = 0; i < size; i ++)
+         props.setProperty("property." + i, "value of property " + i);
+      return props;
+   }
+
+   private static byte[] serialize(Object value) throws Exception
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(baos);
+      out.writeObject(value);
+      out.close();
+      return baos.toByteArray();
+   }
+
+   private static MarshalledValuePair copy(MarshalledValuePair pair) throws Exception
+   {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(pair)));
+      return (MarshalledValuePair) in.readObject();
+   }
+
+   public static class NotACodec
+   {
+      static boolean created;
+
+      public NotACodec()
+      {
+         created = true;
+      }
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      System.setErr(System.out);
+      TestSuite suite = new TestSuite(TestValueCodec.class);
+      junit.textui.TestRunner.run(suite);
+   }
+}